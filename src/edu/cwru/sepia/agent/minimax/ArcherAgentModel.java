@@ -0,0 +1,229 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.util.Direction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An OpponentModel that plays like edu.cwru.sepia.agent.ArcherAgent, the
+ * opponent in enemy_agents/. Each archer looks at its closest footman
+ * (chebyshev distance, the first one found wins ties) and
+ *  - attacks it if it is at least APPROACH_DISTANCE away (in the game that
+ *    walks towards it while it is out of range),
+ *  - attacks it if it has fewer than 2 HP per cell of distance left,
+ *  - otherwise steps to whichever cardinal neighbour scores best by
+ *    cellScore, later directions winning ties, or attacks if no neighbour
+ *    scores at least as well as staying put.
+ * Unlike MoveGenerator, an archer in range may step away rather than attack.
+ *
+ * The predicted reply comes first. The others are built from each archer's
+ * remaining options, ranked by the score ArcherAgent gives the cell they leave
+ * the archer on, and change one archer at a time. That also covers the random
+ * step ArcherAgent takes 5% of the time when a single footman is left.
+ */
+public class ArcherAgentModel implements OpponentModel {
+
+	//At this chebyshev distance or more, ArcherAgent always goes for the closest footman
+	private static final int APPROACH_DISTANCE = 4;
+
+	public List<GameStateChild> predictReplies(GameState state, int limit) {
+		List<GameStateChild> replies = new ArrayList<GameStateChild>(limit);
+		if (!state.isTurnComplete()) {
+			//Part of the archer turn has been played one unit at a time already
+			return replies;
+		}
+		List<List<MoveGenerator.UnitMove>> options = new ArrayList<List<MoveGenerator.UnitMove>>();
+		for (int unit = 0; unit < state.getUnitCount(); unit++) {
+			if (!state.isFootman(unit) && state.getUnitHP(unit) > 0) {
+				List<MoveGenerator.UnitMove> ranked = rankedOptions(state, unit);
+				if (ranked.isEmpty()) {
+					return replies;
+				}
+				options.add(ranked);
+			}
+		}
+		if (options.isEmpty()) {
+			return replies;
+		}
+
+		int[] choice = new int[options.size()];
+		addReply(state, options, choice, replies);
+		//Then one archer at a time does something else, the likelier deviations first
+		boolean more = true;
+		for (int rank = 1; more && replies.size() < limit; rank++) {
+			more = false;
+			for (int archer = 0; archer < options.size() && replies.size() < limit; archer++) {
+				if (rank < options.get(archer).size()) {
+					more = true;
+					choice[archer] = rank;
+					addReply(state, options, choice, replies);
+					choice[archer] = 0;
+				}
+			}
+		}
+		return replies;
+	}
+
+	//Plays the chosen option of every archer, unless that leads to a state already in the list
+	private static void addReply(GameState state, List<List<MoveGenerator.UnitMove>> options, int[] choice,
+			List<GameStateChild> replies) {
+		List<MoveGenerator.UnitMove> moves = new ArrayList<MoveGenerator.UnitMove>(choice.length);
+		for (int archer = 0; archer < choice.length; archer++) {
+			moves.add(options.get(archer).get(choice[archer]));
+		}
+		GameStateChild reply = MoveGenerator.playMoves(state, moves);
+		for (GameStateChild sibling : replies) {
+			if (sibling.state.sameSituation(reply.state)) {
+				return;
+			}
+		}
+		replies.add(reply);
+	}
+
+	/**
+	 * What this archer would do according to ArcherAgent's policy, followed by
+	 * its other attacks and steps, best scored first. Empty if no footman is
+	 * left.
+	 */
+	private static List<MoveGenerator.UnitMove> rankedOptions(final GameState state, int archer) {
+		List<MoveGenerator.UnitMove> options = new ArrayList<MoveGenerator.UnitMove>();
+		int closest = closestFootman(state, archer);
+		if (closest < 0) {
+			return options;
+		}
+		int x = state.getUnitX(archer);
+		int y = state.getUnitY(archer);
+
+		MoveGenerator.UnitMove predicted;
+		int distance = chebyshev(x, y, state.getUnitX(closest), state.getUnitY(closest));
+		if (distance >= APPROACH_DISTANCE || state.getUnitHP(closest) < 2 * distance) {
+			predicted = attack(state, archer, closest);
+		}
+		else {
+			predicted = flee(state, archer, closest);
+		}
+		options.add(predicted);
+
+		List<MoveGenerator.UnitMove> others = new ArrayList<MoveGenerator.UnitMove>();
+		for (int other = 0; other < state.getUnitCount(); other++) {
+			if (state.isFootman(other) && state.getUnitHP(other) > 0 && MoveGenerator.inRange(state, archer, other)
+					&& !(predicted.isAttack() && predicted.target == other)) {
+				others.add(new MoveGenerator.UnitMove(archer, null, other, x, y, 0));
+			}
+		}
+		for (Direction direction : MoveGenerator.CARDINALS) {
+			int toX = x + direction.xComponent();
+			int toY = y + direction.yComponent();
+			if (!state.isBlocked(toX, toY) && direction != predicted.direction) {
+				others.add(new MoveGenerator.UnitMove(archer, direction, -1, toX, toY, 0));
+			}
+		}
+		//Stable sort, so equally scored attacks stay in slot order ahead of steps
+		Collections.sort(others, new Comparator<MoveGenerator.UnitMove>() {
+			public int compare(MoveGenerator.UnitMove a, MoveGenerator.UnitMove b) {
+				return Double.compare(cellScore(state, b.toX, b.toY), cellScore(state, a.toX, a.toY));
+			}
+		});
+		options.addAll(others);
+		return options;
+	}
+
+	//The first live footman at the smallest chebyshev distance, or -1
+	private static int closestFootman(GameState state, int archer) {
+		int closest = -1;
+		int best = Integer.MAX_VALUE;
+		for (int unit = 0; unit < state.getUnitCount(); unit++) {
+			if (state.isFootman(unit) && state.getUnitHP(unit) > 0) {
+				int distance = chebyshev(state.getUnitX(archer), state.getUnitY(archer),
+						state.getUnitX(unit), state.getUnitY(unit));
+				if (distance < best) {
+					best = distance;
+					closest = unit;
+				}
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * ArcherAgent's compound attack: an attack when in range, otherwise a step
+	 * towards the target along the axis it is furthest off on.
+	 */
+	private static MoveGenerator.UnitMove attack(GameState state, int archer, int target) {
+		int x = state.getUnitX(archer);
+		int y = state.getUnitY(archer);
+		if (MoveGenerator.inRange(state, archer, target)) {
+			return new MoveGenerator.UnitMove(archer, null, target, x, y, 0);
+		}
+		int dx = state.getUnitX(target) - x;
+		int dy = state.getUnitY(target) - y;
+		Direction direction;
+		if (Math.abs(dx) >= Math.abs(dy)) {
+			direction = dx > 0 ? Direction.EAST : Direction.WEST;
+		}
+		else {
+			direction = dy > 0 ? Direction.SOUTH : Direction.NORTH;
+		}
+		return new MoveGenerator.UnitMove(archer, direction, -1, x + direction.xComponent(),
+				y + direction.yComponent(), 0);
+	}
+
+	//ArcherAgent.bestToMove: obstacles are not considered, and steps off the map are scored on the edge cell
+	private static MoveGenerator.UnitMove flee(GameState state, int archer, int closest) {
+		int x = state.getUnitX(archer);
+		int y = state.getUnitY(archer);
+		double best = cellScore(state, x, y);
+		Direction bestDirection = null;
+		for (Direction direction : MoveGenerator.CARDINALS) {
+			int toX = Math.min(Math.max(x + direction.xComponent(), 0), state.getMapXExtent() - 1);
+			int toY = Math.min(Math.max(y + direction.yComponent(), 0), state.getMapYExtent() - 1);
+			double score = cellScore(state, toX, toY);
+			if (score >= best) {
+				best = score;
+				bestDirection = direction;
+			}
+		}
+		if (bestDirection == null) {
+			return attack(state, archer, closest);
+		}
+		return new MoveGenerator.UnitMove(archer, bestDirection, -1, x + bestDirection.xComponent(),
+				y + bestDirection.yComponent(), 0);
+	}
+
+	/**
+	 * ArcherAgent.getScore: the further from the map edges the better, minus
+	 * a penalty for every footman within 3 cells and plus the distance of the
+	 * ones further away. A cell with a footman on it is worth -1000.
+	 */
+	static double cellScore(GameState state, int x, int y) {
+		int xExtent = state.getMapXExtent();
+		int yExtent = state.getMapYExtent();
+		double score = 2 * Math.sqrt(xExtent * xExtent + yExtent * yExtent
+				- (x * x + (xExtent - x) * (xExtent - x) + y * y + (yExtent - y) * (yExtent - y)));
+		for (int unit = 0; unit < state.getUnitCount(); unit++) {
+			if (state.isFootman(unit) && state.getUnitHP(unit) > 0) {
+				int distance = chebyshev(x, y, state.getUnitX(unit), state.getUnitY(unit));
+				if (distance == 0) {
+					score = -1000;
+				}
+				else if (distance == 1) {
+					score -= 100;
+				}
+				else if (distance > 3) {
+					score += distance;
+				}
+				else {
+					score -= 20 * (4 - distance);
+				}
+			}
+		}
+		return score;
+	}
+
+	private static int chebyshev(int x1, int y1, int x2, int y2) {
+		return Math.max(Math.abs(x1 - x2), Math.abs(y1 - y2));
+	}
+}
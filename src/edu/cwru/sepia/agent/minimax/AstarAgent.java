@@ -9,9 +9,13 @@ import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.util.Direction;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AstarAgent extends Agent {
     class MapLocation
@@ -143,6 +147,21 @@ public class AstarAgent extends Agent {
     private long totalPlanTime = 0; // nsecs
     private long totalExecutionTime = 0; //nsecs
 
+    //Hop distances already found with A*, per obstacle layout hash, keyed by packHop(start, goal, blocker).
+    //Static so every AstarAgent (GameState makes one per copy) shares them, and saved with the player data
+    private static final Map<Long, Map<Long, Double>> hopCache = new ConcurrentHashMap<Long, Map<Long, Double>>();
+    //Most hop distances remembered per layout, so the saved data stays small
+    private static final int MAX_CACHED_HOPS = 1 << 16;
+    private static final int HOP_CACHE_MAGIC = 0x484f5053; // "HOPS"
+    private static final int HOP_CACHE_VERSION = 1;
+
+    //Landmark lower bounds for the map being searched (see Landmarks); null falls back to Manhattan distance
+    private Landmarks landmarks;
+    //Shortest paths to read off instead of searching, on maps that have one (see PathDatabase)
+    private PathDatabase paths;
+    //Tells a bounded search that stopped at its bound whether the goal is there at all (see Connectivity); null to search on
+    private Connectivity connectivity;
+
     public AstarAgent(int playernum)
     {
         super(playernum);
@@ -221,6 +240,11 @@ public class AstarAgent extends Agent {
             return null;
         }
 
+        boolean[] blocked = DistanceTable.obstacleGrid(newstate);
+        landmarks = Landmarks.forMap(newstate.getXExtent(), newstate.getYExtent(), blocked);
+        connectivity = Connectivity.forMap(newstate.getXExtent(), newstate.getYExtent(), blocked);
+        paths = PathDatabase.lookup(DistanceTable.layoutHash(newstate.getXExtent(), newstate.getYExtent(), blocked));
+
         long startTime = System.nanoTime();
         path = findPath(newstate);
         totalPlanTime += System.nanoTime() - startTime;
@@ -252,7 +276,9 @@ public class AstarAgent extends Agent {
             // start moving to the next step in the path
             nextLoc = path.pop();
 
-            System.out.println("Moving to (" + nextLoc.x + ", " + nextLoc.y + ")");
+            if (Trace.on(Trace.DEBUG)) {
+                Trace.log(Trace.DEBUG, "Moving to (" + nextLoc.x + ", " + nextLoc.y + ")");
+            }
         }
 
         if(nextLoc != null && (footmanX != nextLoc.x || footmanY != nextLoc.y))
@@ -281,7 +307,7 @@ public class AstarAgent extends Agent {
                 return actions;
             }
             else {
-                System.out.println("Attacking TownHall");
+                Trace.log(Trace.DEBUG, "Attacking TownHall");
                 // if no more movements in the planned path then attack
                 actions.put(footmanID, Action.createPrimitiveAttack(footmanID, townhallID));
             }
@@ -301,12 +327,88 @@ public class AstarAgent extends Agent {
 
     @Override
     public void savePlayerData(OutputStream os) {
-
+        try {
+            DataOutputStream out = new DataOutputStream(os);
+            writeHopCache(out);
+            //The runner owns the stream, so flush but don't close it
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Could not save hop distances: " + e.getMessage());
+        }
     }
 
     @Override
     public void loadPlayerData(InputStream is) {
+        try {
+            readHopCache(new DataInputStream(is));
+        } catch (IOException e) {
+            System.err.println("Could not load hop distances: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes every cached hop distance: int magic, int version, int layout
+     * count, then per layout a long layout hash, an int entry count and
+     * (long packed cells, double hops) per entry.
+     */
+    public static void writeHopCache(DataOutputStream out) throws IOException {
+        out.writeInt(HOP_CACHE_MAGIC);
+        out.writeInt(HOP_CACHE_VERSION);
+        //Copy first; searches on other threads may still be adding entries
+        Map<Long, Map<Long, Double>> snapshot = new HashMap<Long, Map<Long, Double>>();
+        for (Map.Entry<Long, Map<Long, Double>> layout : hopCache.entrySet()) {
+            snapshot.put(layout.getKey(), new HashMap<Long, Double>(layout.getValue()));
+        }
+        out.writeInt(snapshot.size());
+        for (Map.Entry<Long, Map<Long, Double>> layout : snapshot.entrySet()) {
+            out.writeLong(layout.getKey());
+            out.writeInt(layout.getValue().size());
+            for (Map.Entry<Long, Double> entry : layout.getValue().entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeDouble(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds the hop distances written by writeHopCache to the cache.
+     */
+    public static void readHopCache(DataInputStream in) throws IOException {
+        if (in.readInt() != HOP_CACHE_MAGIC || in.readInt() != HOP_CACHE_VERSION) {
+            throw new IOException("not saved hop distances (version " + HOP_CACHE_VERSION + ")");
+        }
+        int layouts = in.readInt();
+        for (int i = 0; i < layouts; i++) {
+            long layoutHash = in.readLong();
+            int count = in.readInt();
+            Map<Long, Double> entries = layoutCache(layoutHash);
+            for (int j = 0; j < count; j++) {
+                long key = in.readLong();
+                double hops = in.readDouble();
+                if (entries.size() < MAX_CACHED_HOPS) {
+                    entries.put(key, hops);
+                }
+            }
+        }
+    }
+
+    private static Map<Long, Double> layoutCache(long layoutHash) {
+        Map<Long, Double> entries = hopCache.get(layoutHash);
+        if (entries == null) {
+            hopCache.putIfAbsent(layoutHash, new ConcurrentHashMap<Long, Double>());
+            entries = hopCache.get(layoutHash);
+        }
+        return entries;
+    }
+
+    private static boolean packable(MapLocation location) {
+        return location.x >= 0 && location.y >= 0 && location.x < 1023 && location.y < 1023;
+    }
 
+    //Start, goal and blocker cells in 10 bits per coordinate; no blocker packs as all ones
+    private static long packHop(MapLocation start, MapLocation goal, MapLocation blocker) {
+        long key = ((long) start.x << 50) | ((long) start.y << 40) | ((long) goal.x << 30) | ((long) goal.y << 20);
+        return blocker == null ? key | 0xFFFFF : key | ((long) blocker.x << 10) | blocker.y;
     }
 
     /**
@@ -395,6 +497,132 @@ public class AstarAgent extends Agent {
 
     	return (double)foundPath.size();
     }
+
+    //Same as above, but remembers the answer for the map with this layout hash (see DistanceTable.layoutHash)
+    public double getHopDistance(MapLocation start, MapLocation goal, int xExtent, int yExtent, MapLocation otherFootmanLoc, HashSet<MapLocation> resourceLocations, long layoutHash){
+    	if (!packable(start) || !packable(goal) || (otherFootmanLoc != null && !packable(otherFootmanLoc))) {
+    		//Coordinates would not fit the packed key
+    		return getHopDistance(start, goal, xExtent, yExtent, otherFootmanLoc, resourceLocations);
+    	}
+    	Map<Long, Double> entries = layoutCache(layoutHash);
+    	long key = packHop(start, goal, otherFootmanLoc);
+    	Double hops = entries.get(key);
+    	if (hops == null) {
+    		hops = getHopDistance(start, goal, xExtent, yExtent, otherFootmanLoc, resourceLocations);
+    		if (entries.size() < MAX_CACHED_HOPS) {
+    			entries.put(key, hops);
+    		}
+    	}
+    	return hops;
+    }
+
+    /**
+     * Bounded version of the cached getHopDistance, for callers that only need
+     * to know whether the goal is closer than bound (getUtility's nearest
+     * archer so far). A* stops as soon as the cheapest open node's f cost
+     * shows every remaining path is at least bound hops long, and then bound
+     * is returned instead of the distance. So an answer below bound is exact,
+     * and an answer of bound means "at least bound". A goal that can't be
+     * reached gives 0 hops, as above, whatever the bound: the map's
+     * Connectivity says so without a search where it can, and where it can't
+     * (a start or goal off the map or on an obstacle) a search that stopped
+     * at the bound is run again without one. So the answer is always
+     * min(unbounded answer, bound).
+     */
+    public double getHopDistance(MapLocation start, MapLocation goal, int xExtent, int yExtent, MapLocation otherFootmanLoc, HashSet<MapLocation> resourceLocations, long layoutHash, double bound){
+    	if (start.x == goal.x && start.y == goal.y) {
+    		return 0;
+    	}
+    	if (otherFootmanLoc != null && goal.x == otherFootmanLoc.x && goal.y == otherFootmanLoc.y) {
+    		return (double)Integer.MAX_VALUE;
+    	}
+    	boolean cacheable = packable(start) && packable(goal) && (otherFootmanLoc == null || packable(otherFootmanLoc));
+    	Map<Long, Double> entries = cacheable ? layoutCache(layoutHash) : null;
+    	long key = cacheable ? packHop(start, goal, otherFootmanLoc) : 0;
+    	if (cacheable) {
+    		Double hops = entries.get(key);
+    		if (hops != null) {
+    			return Math.min(hops, bound);
+    		}
+    	}
+    	int reach = connectivity != null && connectivity.covers(xExtent, yExtent)
+    			? connectivity.reachable(start.x, start.y, goal.x, goal.y, otherFootmanLoc != null ? otherFootmanLoc.x : -1,
+    					otherFootmanLoc != null ? otherFootmanLoc.y : -1)
+    			: Connectivity.UNKNOWN;
+    	if (reach == Connectivity.UNREACHABLE) {
+    		//No search at all, and the same empty path answer the unbounded search gives
+    		return 0;
+    	}
+    	//hops is path length - 1, so a path of at most bound steps is the longest that can come in under it
+    	Stack<MapLocation> foundPath = AstarSearch(start, goal, xExtent, yExtent, otherFootmanLoc, resourceLocations, (float) bound);
+    	if (foundPath == null) {
+    		if (reach == Connectivity.REACHABLE) {
+    			return bound;
+    		}
+    		//Only a complete search can tell "at least bound" from "no way there"
+    		foundPath = AstarSearch(start, goal, xExtent, yExtent, otherFootmanLoc, resourceLocations);
+    		double hops = (double)foundPath.size();
+    		if (cacheable && entries.size() < MAX_CACHED_HOPS) {
+    			entries.put(key, hops);
+    		}
+    		return Math.min(hops, bound);
+    	}
+    	//Only complete searches are worth remembering
+    	double hops = (double)foundPath.size();
+    	if (cacheable && entries.size() < MAX_CACHED_HOPS) {
+    		entries.put(key, hops);
+    	}
+    	return hops;
+    }
+
+    //Gives A* landmark bounds for the map the searches will be on; shared, since Landmarks never change
+    void setLandmarks(Landmarks landmarks) {
+        this.landmarks = landmarks;
+    }
+
+    //Gives bounded searches the map's connectivity; shared, since it never changes
+    void setConnectivity(Connectivity connectivity) {
+        this.connectivity = connectivity;
+    }
+
+    //Lets A* read shortest paths off this map's path database; null to always search
+    void setPathDatabase(PathDatabase paths) {
+        this.paths = paths;
+    }
+
+    //A shortest path from the path database in AstarSearch's format, or null if there is no database for this map,
+    //no path at all, the path runs into the enemy footman (then only a search can find the way around it), or it is
+    //longer than maxCost steps (where AstarSearch would give up too)
+    private Stack<MapLocation> databasePath(MapLocation start, MapLocation goal, int xExtent, int yExtent, MapLocation enemyFootmanLoc, float maxCost)
+    {
+        if (paths == null || paths.getXExtent() != xExtent || paths.getYExtent() != yExtent
+                || start.x < 0 || start.y < 0 || start.x >= xExtent || start.y >= yExtent
+                || goal.x < 0 || goal.y < 0 || goal.x >= xExtent || goal.y >= yExtent) {
+            return null;
+        }
+        int[] cells = paths.path(start.x, start.y, goal.x, goal.y);
+        //cells leaves the start out and has the goal, so one per step, the same as A*'s cost at the goal
+        if (cells == null || cells.length > maxCost) {
+            return null;
+        }
+        //Like reconstructPath: neither end, and the first step on top
+        Stack<MapLocation> path = new Stack<MapLocation>();
+        for (int i = cells.length - 2; i >= 0; i--) {
+            int x = cells[i] % xExtent;
+            int y = cells[i] / xExtent;
+            if (enemyFootmanLoc != null && enemyFootmanLoc.x == x && enemyFootmanLoc.y == y) {
+                return null;
+            }
+            path.add(new MapLocation(x, y, null, 0));
+        }
+        return path;
+    }
+
+    //AstarSearch below with no cost limit
+    private Stack<MapLocation> AstarSearch(MapLocation start, MapLocation goal, int xExtent, int yExtent, MapLocation enemyFootmanLoc, HashSet<MapLocation> resourceLocations)
+    {
+    	return AstarSearch(start, goal, xExtent, yExtent, enemyFootmanLoc, resourceLocations, Float.POSITIVE_INFINITY);
+    }
     
     /**
      * This is the method you will implement for the assignment. Your implementation
@@ -439,17 +667,25 @@ public class AstarAgent extends Agent {
      * @param xExtent Width of the map
      * @param yExtent Height of the map
      * @param resourceLocations Set of positions occupied by resources
-     * @return Stack of positions with top of stack being first move in plan
+     * @param maxCost Longest path (in steps) worth finding; once every open node's f cost is above it the search gives up
+     * @return Stack of positions with top of stack being first move in plan, or null if the search gave up at maxCost
      */
-    private Stack<MapLocation> AstarSearch(MapLocation start, MapLocation goal, int xExtent, int yExtent, MapLocation enemyFootmanLoc, HashSet<MapLocation> resourceLocations)
+    private Stack<MapLocation> AstarSearch(MapLocation start, MapLocation goal, int xExtent, int yExtent, MapLocation enemyFootmanLoc, HashSet<MapLocation> resourceLocations, float maxCost)
     {
     	{
 
+    		//A stored shortest path that avoids the enemy footman is as good as anything A* would find
+    		Stack<MapLocation> known = databasePath(start, goal, xExtent, yExtent, enemyFootmanLoc, maxCost);
+    		if (known != null) {
+    			return known;
+    		}
+    		//Landmarks only help on the map they were built for
+    		Landmarks bounds = landmarks != null && landmarks.covers(xExtent, yExtent) ? landmarks : null;
     		PriorityQueueList openList = new PriorityQueueList(1);
         	Set<MapLocation> closedList = new HashSet<MapLocation>();
         	
         	start.cost = 0;
-        	start.estTotalCost = start.cost + heuristic(start, goal);
+        	start.estTotalCost = start.cost + heuristic(start, goal, bounds);
         	openList.add(start);
         	
         	MapLocation current = null;
@@ -466,6 +702,10 @@ public class AstarAgent extends Agent {
         		}
         		
         		current = openList.poll();
+        		//The heuristic never overestimates, so nothing left in the open list leads to a path within maxCost
+        		if (current.estTotalCost > maxCost) {
+        			return null;
+        		}
 	        	closedList.add(current);
 	        	
         		if (current.equals(goal))
@@ -498,7 +738,7 @@ public class AstarAgent extends Agent {
         			{
         				neighbor.cameFrom = current;
         				neighbor.cost = temp_g;
-        				neighbor.estTotalCost = neighbor.cost + heuristic(neighbor, goal);
+        				neighbor.estTotalCost = neighbor.cost + heuristic(neighbor, goal, bounds);
         				
         				if(!(openList.contains(neighbor)))
         				{
@@ -515,7 +755,7 @@ public class AstarAgent extends Agent {
         }
     	
     	//no path. Return empty path
-    	System.out.println("No path found using Astar!");
+    	Trace.log(Trace.DEBUG, "No path found using Astar!");
         return new Stack<MapLocation>();
         
     }
@@ -537,11 +777,13 @@ public class AstarAgent extends Agent {
     	return path;
     }
     
-    private int heuristic(MapLocation current, MapLocation goal)
+    //Moves are 4-connected, so Manhattan distance never overestimates; landmarks raise it where walls are in the way
+    private int heuristic(MapLocation current, MapLocation goal, Landmarks bounds)
     {
-    	int distance = 0;
-    	distance = Math.max(Math.abs(goal.x-current.x), Math.abs(goal.y-current.y));
-    	return distance;
+    	if (bounds != null) {
+    		return bounds.lowerBound(current.x, current.y, goal.x, goal.y);
+    	}
+    	return Math.abs(goal.x-current.x) + Math.abs(goal.y-current.y);
     }
     
     private MapLocation[] getNeighbor(MapLocation current, int xExtent, int yExtent, Set<MapLocation> resourceLocations, MapLocation enemyFootmanLoc) 
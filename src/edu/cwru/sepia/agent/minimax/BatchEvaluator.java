@@ -0,0 +1,178 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.List;
+
+/**
+ * Computes GameState.getUtility for all the children of one node together.
+ *
+ * The siblings' units are copied into struct-of-arrays form first (x, y and
+ * HP per unit slot, with the siblings of one slot next to each other), and
+ * every term of the utility is then one loop over the siblings: the HP sums,
+ * a distance table lookup per footman/archer pair, the running minimum and
+ * the final combination. Those loops are branch-light and run over primitive
+ * arrays, so HotSpot can unroll and vectorize the arithmetic ones. The
+ * project targets Java 8, which has no Vector API, so this is the portable
+ * way to get that.
+ *
+ * Siblings the table can't answer exactly are evaluated by getUtility one at
+ * a time: ones where the two footmen are planned jointly, or ones where a
+ * hop distance needs A* because the other footman might be in the way. The
+ * results are stored in each state (GameState.setUtility), so ordering and
+ * leaf evaluation reuse them. Not thread safe: one evaluator per searching
+ * thread.
+ */
+class BatchEvaluator {
+
+	//Struct of arrays, indexed unit * capacity + sibling
+	private int[] x = new int[0];
+	private int[] y = new int[0];
+	private int[] hp = new int[0];
+	//Per sibling scratch space
+	private double[] hpMetric = new double[0];
+	private double[] distanceMetric = new double[0];
+	private double[] nearest = new double[0];
+	//Set for siblings that need the one at a time getUtility
+	private boolean[] scalar = new boolean[0];
+	private int capacity = 0;
+
+	/**
+	 * Works out the utility of every child that does not have one yet. The
+	 * children must all be siblings (same map and units).
+	 */
+	void evaluate(List<GameStateChild> children) {
+		int count = children.size();
+		if (count == 0) {
+			return;
+		}
+		GameState first = children.get(0).state;
+		DistanceTable table = first.getDistanceTable();
+		int units = first.getUnitCount();
+		int footmen = first.getFootmanCount();
+		ensureCapacity(count, units);
+
+		for (int s = 0; s < count; s++) {
+			GameState state = children.get(s).state;
+			scalar[s] = table == null || state.hasUtility() || state.usesCooperativeDistance();
+			for (int unit = 0; unit < units; unit++) {
+				int index = unit * capacity + s;
+				x[index] = state.getUnitX(unit);
+				y[index] = state.getUnitY(unit);
+				hp[index] = state.getUnitHP(unit);
+				if (!onMap(state, x[index], y[index])) {
+					//The table does not cover cells off the map
+					scalar[s] = true;
+				}
+			}
+		}
+
+		//The HP and live unit terms, weighted and summed in the same order as GameState's evaluation so that
+		//this gives the same numbers
+		for (int s = 0; s < count; s++) {
+			hpMetric[s] = 0;
+			distanceMetric[s] = 0;
+		}
+		for (int unit = 0; unit < units; unit++) {
+			int base = unit * capacity;
+			boolean footman = unit < footmen;
+			double hpWeight = GameState.getWeight(footman ? EvaluationWeights.FOOTMAN_HP : EvaluationWeights.ARCHER_HP);
+			double aliveWeight = GameState.getWeight(footman ? EvaluationWeights.FOOTMEN_ALIVE
+					: EvaluationWeights.ARCHERS_ALIVE);
+			for (int s = 0; s < count; s++) {
+				hpMetric[s] += hpWeight * hp[base + s] + (hp[base + s] > 0 ? aliveWeight : 0);
+			}
+		}
+
+		//Sum over the footmen of the hop distance to the nearest archer, in the same order as getUtility
+		if (table != null) {
+			for (int i = 0; i < footmen; i++) {
+				for (int s = 0; s < count; s++) {
+					nearest[s] = (double) Integer.MAX_VALUE;
+				}
+				for (int j = footmen; j < units; j++) {
+					addPair(table, count, i, j, footmen == 2 ? 1 - i : -1);
+				}
+				for (int s = 0; s < count; s++) {
+					distanceMetric[s] += nearest[s];
+				}
+			}
+		}
+
+		double distanceWeight = GameState.getWeight(EvaluationWeights.DISTANCE);
+		for (int s = 0; s < count; s++) {
+			GameState state = children.get(s).state;
+			if (scalar[s]) {
+				if (!state.hasUtility()) {
+					state.getUtility();
+				}
+			}
+			else {
+				state.setUtility(hpMetric[s] + distanceWeight * distanceMetric[s]);
+			}
+		}
+	}
+
+	/**
+	 * GameState.getHopDistance from footman slot i to archer slot j (with the
+	 * footman in slot other as a possible blocker, if other >= 0) for every
+	 * sibling, folded into nearest. Siblings where only A* would be exact are
+	 * flagged for scalar evaluation instead.
+	 */
+	private void addPair(DistanceTable table, int count, int i, int j, int other) {
+		int fi = i * capacity;
+		int aj = j * capacity;
+		int bo = other * capacity;
+		for (int s = 0; s < count; s++) {
+			if (scalar[s]) {
+				continue;
+			}
+			int startX = x[fi + s];
+			int startY = y[fi + s];
+			int goalX = x[aj + s];
+			int goalY = y[aj + s];
+			double hops;
+			if (startX == goalX && startY == goalY) {
+				hops = 0;
+			}
+			else if (other >= 0 && goalX == x[bo + s] && goalY == y[bo + s]) {
+				hops = (double) Integer.MAX_VALUE;
+			}
+			else {
+				int distance = table.distance(startX, startY, goalX, goalY);
+				if (distance == DistanceTable.UNREACHABLE) {
+					scalar[s] = true;
+					continue;
+				}
+				if (other >= 0) {
+					int viaBlocker = table.distance(startX, startY, x[bo + s], y[bo + s])
+							+ table.distance(x[bo + s], y[bo + s], goalX, goalY);
+					if (viaBlocker <= distance) {
+						scalar[s] = true;
+						continue;
+					}
+				}
+				hops = distance - 1;
+			}
+			if (hops < nearest[s]) {
+				nearest[s] = hops;
+			}
+		}
+	}
+
+	private static boolean onMap(GameState state, int x, int y) {
+		return x >= 0 && y >= 0 && x < state.getMapXExtent() && y < state.getMapYExtent();
+	}
+
+	private void ensureCapacity(int count, int units) {
+		if (count <= capacity && units * capacity <= x.length) {
+			return;
+		}
+		capacity = Math.max(count, capacity * 2);
+		x = new int[units * capacity];
+		y = new int[units * capacity];
+		hp = new int[units * capacity];
+		hpMetric = new double[capacity];
+		distanceMetric = new double[capacity];
+		nearest = new double[capacity];
+		scalar = new boolean[capacity];
+	}
+}
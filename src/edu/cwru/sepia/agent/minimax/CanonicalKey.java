@@ -0,0 +1,123 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * 64 bit keys for search positions that are the same for every position the
+ * search can't tell apart.
+ *
+ * GameState keeps units in fixed slots, so swapping two units with the same
+ * stats (the two footmen, say) gives a different state that plays exactly the
+ * same. Here each side's units are turned into (x, y, HP, attack, range,
+ * already moved this turn) tuples and sorted before hashing, so slot order
+ * drops out. On maps whose obstacles are symmetric, each position is also
+ * hashed as seen through every reflection (and rotation, on square maps) that
+ * maps the obstacles onto themselves, and the smallest key is used, so mirror
+ * images share a key too.
+ *
+ * The search uses it for the transposition table and SearchKnowledge for the
+ * openings. Not thread safe (it keeps scratch arrays): one per searching
+ * thread.
+ */
+class CanonicalKey {
+
+	//A symmetry is a combination of these: swap x and y first (square maps only), then mirror x and/or y
+	private static final int TRANSPOSE = 4;
+	private static final int MIRROR_Y = 2;
+	private static final int MIRROR_X = 1;
+
+	private long[] tuples = new long[0];
+
+	/**
+	 * The symmetries of a map: every combination of transposing and mirroring
+	 * that maps each obstacle onto an obstacle. Always contains 0 (identity).
+	 */
+	static int[] symmetries(int xExtent, int yExtent, boolean[] blocked) {
+		int[] found = new int[8];
+		int count = 0;
+		for (int symmetry = 0; symmetry < 8; symmetry++) {
+			if ((symmetry & TRANSPOSE) != 0 && xExtent != yExtent) {
+				continue;
+			}
+			boolean matches = true;
+			for (int cell = 0; cell < blocked.length && matches; cell++) {
+				int x = cell % xExtent;
+				int y = cell / xExtent;
+				matches = blocked[transformY(symmetry, x, y, xExtent, yExtent) * xExtent
+						+ transformX(symmetry, x, y, xExtent, yExtent)] == blocked[cell];
+			}
+			if (matches) {
+				found[count++] = symmetry;
+			}
+		}
+		int[] symmetries = new int[count];
+		System.arraycopy(found, 0, symmetries, 0, count);
+		return symmetries;
+	}
+
+	private static int transformX(int symmetry, int x, int y, int xExtent, int yExtent) {
+		int tx = (symmetry & TRANSPOSE) != 0 ? y : x;
+		return (symmetry & MIRROR_X) != 0 ? xExtent - 1 - tx : tx;
+	}
+
+	private static int transformY(int symmetry, int x, int y, int xExtent, int yExtent) {
+		int ty = (symmetry & TRANSPOSE) != 0 ? x : y;
+		return (symmetry & MIRROR_Y) != 0 ? yExtent - 1 - ty : ty;
+	}
+
+	/**
+	 * The key of this state with the given side to move: the same for any two
+	 * states that differ only in which slots interchangeable units are in, or
+	 * by a symmetry of the map. Never 0.
+	 */
+	long key(GameState state, boolean footmenTurn) {
+		int units = state.getUnitCount();
+		if (tuples.length < units) {
+			tuples = new long[units];
+		}
+		long best = 0;
+		int[] symmetries = state.getSymmetries();
+		for (int i = 0; i < symmetries.length; i++) {
+			long key = keyUnder(state, symmetries[i], footmenTurn, units);
+			if (i == 0 || key < best) {
+				best = key;
+			}
+		}
+		return best == 0 ? 1 : best;
+	}
+
+	private long keyUnder(GameState state, int symmetry, boolean footmenTurn, int units) {
+		int xExtent = state.getMapXExtent();
+		int yExtent = state.getMapYExtent();
+		for (int unit = 0; unit < units; unit++) {
+			int x = transformX(symmetry, state.getUnitX(unit), state.getUnitY(unit), xExtent, yExtent);
+			int y = transformY(symmetry, state.getUnitX(unit), state.getUnitY(unit), xExtent, yExtent);
+			tuples[unit] = (long) (x & 0x3FF) << 52 | (long) (y & 0x3FF) << 42
+					| (long) (state.getUnitHP(unit) & 0xFFFF) << 26 | (long) (state.getUnitAttack(unit) & 0xFF) << 18
+					| (long) (state.getUnitRange(unit) & 0xFF) << 10 | (state.hasMoved(unit) ? 1L << 9 : 0);
+		}
+		int footmen = state.getFootmanCount();
+		sort(0, footmen);
+		sort(footmen, units);
+
+		long hash = state.getLayoutHash();
+		hash = (hash ^ (footmenTurn ? 1 : 2)) * 0x100000001b3L;
+		hash = (hash ^ (state.isTurnComplete() ? 1 : 2)) * 0x100000001b3L;
+		hash = (hash ^ footmen) * 0x100000001b3L;
+		for (int unit = 0; unit < units; unit++) {
+			hash = (hash ^ tuples[unit]) * 0x100000001b3L;
+			hash ^= hash >>> 29;
+		}
+		return hash;
+	}
+
+	//Insertion sort of tuples[from, to); a side is only a handful of units
+	private void sort(int from, int to) {
+		for (int i = from + 1; i < to; i++) {
+			long tuple = tuples[i];
+			int j = i - 1;
+			for (; j >= from && tuples[j] > tuple; j--) {
+				tuples[j + 1] = tuples[j];
+			}
+			tuples[j + 1] = tuple;
+		}
+	}
+}
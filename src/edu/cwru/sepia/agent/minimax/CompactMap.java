@@ -0,0 +1,429 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Just the parts of a SEPIA map the search uses: the extents, the obstacle
+ * cells and every unit's owner, position and combat stats.
+ *
+ * A map can be read from a SEPIA state XML with a single streaming (StAX)
+ * pass, which skips the unit template boilerplate instead of building it, or
+ * from the compact binary form written by write(). Tools that only need the
+ * map (the table precomputations, benchmarks) use this instead of building a
+ * full SEPIA state.
+ *
+ * Binary layout (big endian): int magic, int version, int xExtent, int
+ * yExtent, the obstacle bits in row order packed 8 to a byte, int unit count,
+ * then per unit int ID, int player, int x, int y, int HP, int base health,
+ * int basic attack, int range.
+ */
+public class CompactMap {
+
+	private static final int MAGIC = 0x434d4150; // "CMAP"
+	private static final int VERSION = 1;
+
+	private final int xExtent;
+	private final int yExtent;
+	//Obstacle cells indexed y * xExtent + x, the same as DistanceTable.obstacleGrid
+	private final boolean[] blocked;
+	private final int[] unitID;
+	private final int[] player;
+	private final int[] x;
+	private final int[] y;
+	private final int[] hp;
+	private final int[] baseHealth;
+	private final int[] attack;
+	private final int[] range;
+
+	private CompactMap(int xExtent, int yExtent, boolean[] blocked, int units) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.blocked = blocked;
+		unitID = new int[units];
+		player = new int[units];
+		x = new int[units];
+		y = new int[units];
+		hp = new int[units];
+		baseHealth = new int[units];
+		attack = new int[units];
+		range = new int[units];
+	}
+
+	public int getXExtent() {
+		return xExtent;
+	}
+
+	public int getYExtent() {
+		return yExtent;
+	}
+
+	public boolean[] getBlocked() {
+		return blocked;
+	}
+
+	public long getLayoutHash() {
+		return DistanceTable.layoutHash(xExtent, yExtent, blocked);
+	}
+
+	public int getUnitCount() {
+		return unitID.length;
+	}
+
+	public int getUnitID(int unit) {
+		return unitID[unit];
+	}
+
+	public int getPlayer(int unit) {
+		return player[unit];
+	}
+
+	public int getUnitX(int unit) {
+		return x[unit];
+	}
+
+	public int getUnitY(int unit) {
+		return y[unit];
+	}
+
+	public int getUnitHP(int unit) {
+		return hp[unit];
+	}
+
+	public int getBaseHealth(int unit) {
+		return baseHealth[unit];
+	}
+
+	public int getBasicAttack(int unit) {
+		return attack[unit];
+	}
+
+	public int getRange(int unit) {
+		return range[unit];
+	}
+
+	/**
+	 * Indexes (into this map's unit arrays) of the given player's units, in
+	 * file order like State.getUnitIds.
+	 */
+	public List<Integer> getUnits(int playerNumber) {
+		List<Integer> units = new ArrayList<Integer>();
+		for (int unit = 0; unit < unitID.length; unit++) {
+			if (player[unit] == playerNumber) {
+				units.add(unit);
+			}
+		}
+		return units;
+	}
+
+	/**
+	 * Reads a map from either a SEPIA state XML (by extension) or the compact
+	 * binary form.
+	 */
+	public static CompactMap load(File file) throws IOException {
+		if (file.getName().toLowerCase().endsWith(".xml")) {
+			return fromXml(file);
+		}
+		return read(file);
+	}
+
+	public static CompactMap read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return read(in);
+		} catch (IOException e) {
+			throw new IOException(file + ": " + e.getMessage(), e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads one map in the binary form from a stream, which is left open (for
+	 * PositionRecorder's logs, where maps are embedded in records).
+	 */
+	public static CompactMap read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("not a compact map (version " + VERSION + ")");
+		}
+		int xExtent = in.readInt();
+		int yExtent = in.readInt();
+		if (xExtent <= 0 || yExtent <= 0) {
+			throw new IOException("bad extents " + xExtent + "x" + yExtent);
+		}
+		boolean[] blocked = new boolean[xExtent * yExtent];
+		byte[] bits = new byte[(blocked.length + 7) / 8];
+		in.readFully(bits);
+		for (int cell = 0; cell < blocked.length; cell++) {
+			blocked[cell] = (bits[cell >> 3] & (1 << (cell & 7))) != 0;
+		}
+		CompactMap map = new CompactMap(xExtent, yExtent, blocked, in.readInt());
+		for (int unit = 0; unit < map.unitID.length; unit++) {
+			map.unitID[unit] = in.readInt();
+			map.player[unit] = in.readInt();
+			map.x[unit] = in.readInt();
+			map.y[unit] = in.readInt();
+			map.hp[unit] = in.readInt();
+			map.baseHealth[unit] = in.readInt();
+			map.attack[unit] = in.readInt();
+			map.range[unit] = in.readInt();
+		}
+		return map;
+	}
+
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	//Writes the binary form to a stream and leaves it open
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(xExtent);
+		out.writeInt(yExtent);
+		byte[] bits = new byte[(blocked.length + 7) / 8];
+		for (int cell = 0; cell < blocked.length; cell++) {
+			if (blocked[cell]) {
+				bits[cell >> 3] |= 1 << (cell & 7);
+			}
+		}
+		out.write(bits);
+		out.writeInt(unitID.length);
+		for (int unit = 0; unit < unitID.length; unit++) {
+			out.writeInt(unitID[unit]);
+			out.writeInt(player[unit]);
+			out.writeInt(x[unit]);
+			out.writeInt(y[unit]);
+			out.writeInt(hp[unit]);
+			out.writeInt(baseHealth[unit]);
+			out.writeInt(attack[unit]);
+			out.writeInt(range[unit]);
+		}
+	}
+
+	/**
+	 * A live game's map and units as they are now: player 0's units first,
+	 * then player 1's, each in State.getUnitIds order, so GameState(CompactMap)
+	 * puts every unit in the same slot GameState(StateView) does.
+	 */
+	public static CompactMap fromState(State.StateView state) {
+		List<Integer> ids = new ArrayList<Integer>(state.getUnitIds(0));
+		int footmen = ids.size();
+		ids.addAll(state.getUnitIds(1));
+		CompactMap map = new CompactMap(state.getXExtent(), state.getYExtent(), DistanceTable.obstacleGrid(state),
+				ids.size());
+		for (int unit = 0; unit < ids.size(); unit++) {
+			Unit.UnitView view = state.getUnit(ids.get(unit));
+			map.unitID[unit] = view.getID();
+			map.player[unit] = unit < footmen ? 0 : 1;
+			map.x[unit] = view.getXPosition();
+			map.y[unit] = view.getYPosition();
+			map.hp[unit] = view.getHP();
+			map.baseHealth[unit] = view.getTemplateView().getBaseHealth();
+			map.attack[unit] = view.getTemplateView().getBasicAttack();
+			map.range[unit] = view.getTemplateView().getRange();
+		}
+		return map;
+	}
+
+	/**
+	 * Streams through a SEPIA state XML once, keeping only the state extents,
+	 * the resource node positions, the units and the stats of the templates
+	 * those units use.
+	 */
+	public static CompactMap fromXml(File file) throws IOException {
+		InputStream stream = new BufferedInputStream(new FileInputStream(file));
+		try {
+			XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(stream);
+			try {
+				return parse(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("cannot parse " + file + ": " + e.getMessage(), e);
+		} finally {
+			stream.close();
+		}
+	}
+
+	//Units and templates of one player; units refer to templates by ID, and templates come after the units
+	private static class PlayerData {
+		int number = -1;
+		final List<Map<String, String>> units = new ArrayList<Map<String, String>>();
+		final Map<String, Map<String, String>> templates = new HashMap<String, Map<String, String>>();
+	}
+
+	private static CompactMap parse(XMLStreamReader reader) throws XMLStreamException, IOException {
+		int xExtent = -1;
+		int yExtent = -1;
+		List<int[]> obstacles = new ArrayList<int[]>();
+		List<PlayerData> players = new ArrayList<PlayerData>();
+		PlayerData current = null;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("player")) {
+				current = null;
+				continue;
+			}
+			if (event != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+			String name = reader.getLocalName();
+			if (name.equals("state")) {
+				xExtent = Integer.parseInt(reader.getAttributeValue(null, "xExtent"));
+				yExtent = Integer.parseInt(reader.getAttributeValue(null, "yExtent"));
+			}
+			else if (name.equals("player")) {
+				current = new PlayerData();
+				players.add(current);
+			}
+			else if (current != null && name.equals("ID") && current.number < 0) {
+				current.number = Integer.parseInt(reader.getElementText().trim());
+			}
+			else if (current != null && name.equals("unit")) {
+				current.units.add(readFields(reader));
+			}
+			else if (current != null && name.equals("template")) {
+				Map<String, String> template = readFields(reader);
+				current.templates.put(template.get("ID"), template);
+			}
+			else if (name.equals("resourceNode")) {
+				Map<String, String> node = readFields(reader);
+				obstacles.add(new int[] { number(node, "xPosition"), number(node, "yPosition") });
+			}
+			else if (current != null) {
+				//Anything else inside a player (upgrades, resource amounts...) is of no use to us
+				skipElement(reader);
+			}
+		}
+		if (xExtent <= 0 || yExtent <= 0) {
+			throw new IOException("no state extents");
+		}
+
+		boolean[] blocked = new boolean[xExtent * yExtent];
+		for (int[] obstacle : obstacles) {
+			blocked[obstacle[1] * xExtent + obstacle[0]] = true;
+		}
+		int units = 0;
+		for (PlayerData data : players) {
+			units += data.units.size();
+		}
+		CompactMap map = new CompactMap(xExtent, yExtent, blocked, units);
+		int unit = 0;
+		for (PlayerData data : players) {
+			for (Map<String, String> fields : data.units) {
+				Map<String, String> template = data.templates.get(fields.get("templateID"));
+				if (template == null) {
+					throw new IOException("unit " + fields.get("ID") + " uses unknown template " + fields.get("templateID"));
+				}
+				map.unitID[unit] = number(fields, "ID");
+				map.player[unit] = data.number;
+				map.x[unit] = number(fields, "xPosition");
+				map.y[unit] = number(fields, "yPosition");
+				map.hp[unit] = number(fields, "currentHealth");
+				map.baseHealth[unit] = number(template, "baseHealth");
+				map.attack[unit] = number(template, "baseAttack");
+				map.range[unit] = number(template, "range");
+				unit++;
+			}
+		}
+		return map;
+	}
+
+	//Collects the text of the current element's direct children, leaving the reader on its end tag
+	private static Map<String, String> readFields(XMLStreamReader reader) throws XMLStreamException {
+		Map<String, String> fields = new HashMap<String, String>();
+		StringBuilder text = new StringBuilder();
+		String field = null;
+		int depth = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if (++depth == 1) {
+					field = reader.getLocalName();
+					text.setLength(0);
+				}
+			}
+			else if ((event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) && depth == 1) {
+				text.append(reader.getText());
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (depth == 0) {
+					return fields;
+				}
+				if (depth-- == 1) {
+					fields.put(field, text.toString().trim());
+				}
+			}
+		}
+		return fields;
+	}
+
+	//Skips to the end tag of the element the reader is on
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private static int number(Map<String, String> fields, String name) throws IOException {
+		String value = fields.get(name);
+		if (value == null) {
+			throw new IOException("missing " + name);
+		}
+		return Integer.parseInt(value);
+	}
+
+	/**
+	 * Converts SEPIA state XMLs to compact maps, e.g.
+	 * java edu.cwru.sepia.agent.minimax.CompactMap data/Game2fv2a_Obstacles.xml
+	 * writes data/Game2fv2a_Obstacles.map
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: CompactMap <state xml>...");
+			System.exit(1);
+		}
+		for (String mapName : args) {
+			long startTime = System.nanoTime();
+			CompactMap map = fromXml(new File(mapName));
+			File output = new File(mapName.replaceAll("\\.[xX][mM][lL]$", "") + ".map");
+			map.write(output);
+			System.out.println(mapName + " -> " + output + " (" + output.length() + " bytes, "
+					+ (System.nanoTime() - startTime) / 1000000 + " ms)");
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Which free cells of a map can reach each other (4-connected), also with a
+ * unit standing on one cell in between.
+ *
+ * A bounded hop search that stops at its bound (see the bounded
+ * AstarAgent.getHopDistance and HopBitboard.distance) only knows the goal is
+ * not closer than that. Callers that must answer 0 for a goal there is no way
+ * to, like the unbounded search does, ask reachable() instead of searching
+ * on. Cells in different regions never reach each other. Within a region a
+ * blocker only separates two cells if it is a cut cell (articulation point)
+ * and they end up in different pieces once it is removed. One depth first
+ * search finds both: a cell below a cut cell's child c, where no back edge
+ * from c's subtree climbs above the cut cell, is in c's piece; every other
+ * cell is in the piece with the rest of the region. A grid cell has at most
+ * four children, so a query is a few comparisons.
+ *
+ * Built once per obstacle layout and shared by every AstarAgent and
+ * GameState on that map; immutable once built.
+ */
+class Connectivity {
+
+	static final int UNREACHABLE = 0;
+	static final int REACHABLE = 1;
+	//Only a search can tell: a cell is off the map or an obstacle
+	static final int UNKNOWN = -1;
+	private static final int NO_CHILD = -1;
+
+	//Built so far, keyed by layout hash (see DistanceTable.layoutHash)
+	private static final Map<Long, Connectivity> built = new HashMap<Long, Connectivity>();
+
+	private final int xExtent;
+	private final int yExtent;
+	//Per cell (y * xExtent + x): region number (-1 for obstacles), depth first order, the last order in its subtree,
+	//and its children in the search tree (four slots per cell) that would be cut off without it
+	private final int[] regions;
+	private final int[] order;
+	private final int[] last;
+	private final int[] cutChildren;
+
+	private Connectivity(int xExtent, int yExtent, int[] regions, int[] order, int[] last, int[] cutChildren) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.regions = regions;
+		this.order = order;
+		this.last = last;
+		this.cutChildren = cutChildren;
+	}
+
+	/**
+	 * The connectivity of a map with these obstacles (indexed y * xExtent +
+	 * x), building it the first time the map is seen.
+	 */
+	static synchronized Connectivity forMap(int xExtent, int yExtent, boolean[] blocked) {
+		long hash = DistanceTable.layoutHash(xExtent, yExtent, blocked);
+		Connectivity connectivity = built.get(hash);
+		if (connectivity == null) {
+			connectivity = build(xExtent, yExtent, blocked);
+			built.put(hash, connectivity);
+		}
+		return connectivity;
+	}
+
+	boolean covers(int xExtent, int yExtent) {
+		return this.xExtent == xExtent && this.yExtent == yExtent;
+	}
+
+	/**
+	 * Whether four way steps can get from (fromX, fromY) to (toX, toY)
+	 * without entering an obstacle or the blocker's cell (a negative blockerX
+	 * for no blocker): REACHABLE, UNREACHABLE or UNKNOWN.
+	 */
+	int reachable(int fromX, int fromY, int toX, int toY, int blockerX, int blockerY) {
+		if (!onMap(fromX, fromY) || !onMap(toX, toY)) {
+			return UNKNOWN;
+		}
+		int from = regions[fromY * xExtent + fromX];
+		int to = regions[toY * xExtent + toX];
+		if (from < 0 || to < 0) {
+			return UNKNOWN;
+		}
+		if (from != to) {
+			return UNREACHABLE;
+		}
+		if (blockerX < 0 || !onMap(blockerX, blockerY)) {
+			return REACHABLE;
+		}
+		int blocker = blockerY * xExtent + blockerX;
+		if (regions[blocker] != from) {
+			return REACHABLE;
+		}
+		return piece(fromY * xExtent + fromX, blocker) == piece(toY * xExtent + toX, blocker) ? REACHABLE : UNREACHABLE;
+	}
+
+	//The cut off child of the blocker whose subtree holds the cell, or NO_CHILD for the rest of the region
+	private int piece(int cell, int blocker) {
+		for (int i = 4 * blocker; i < 4 * blocker + 4; i++) {
+			int child = cutChildren[i];
+			if (child != NO_CHILD && order[child] <= order[cell] && order[cell] <= last[child]) {
+				return child;
+			}
+		}
+		return NO_CHILD;
+	}
+
+	private boolean onMap(int x, int y) {
+		return x >= 0 && y >= 0 && x < xExtent && y < yExtent;
+	}
+
+	//Tarjan's articulation points, with an explicit stack so big open maps can't overflow the thread's
+	private static Connectivity build(int xExtent, int yExtent, boolean[] blocked) {
+		int cells = xExtent * yExtent;
+		int[] regions = new int[cells];
+		Arrays.fill(regions, -1);
+		int[] cutChildren = new int[4 * cells];
+		Arrays.fill(cutChildren, NO_CHILD);
+		//Discovery order (0 for not yet seen), the last order below each cell, the lowest order reachable
+		//through a back edge, and the tree
+		int[] order = new int[cells];
+		int[] last = new int[cells];
+		int[] low = new int[cells];
+		int[] parent = new int[cells];
+		//How many cut off children each cell has so far
+		byte[] cutCount = new byte[cells];
+		//The next of the four directions each cell on the stack still has to try
+		byte[] direction = new byte[cells];
+		int[] stack = new int[cells];
+		int counter = 0;
+		int region = 0;
+
+		for (int root = 0; root < cells; root++) {
+			if (blocked[root] || order[root] != 0) {
+				continue;
+			}
+			int top = 0;
+			stack[top++] = root;
+			order[root] = low[root] = ++counter;
+			parent[root] = -1;
+			regions[root] = region;
+			while (top > 0) {
+				int cell = stack[top - 1];
+				if (direction[cell] < 4) {
+					int next = neighbor(cell, direction[cell]++, xExtent, yExtent);
+					if (next < 0 || blocked[next]) {
+						continue;
+					}
+					if (order[next] == 0) {
+						parent[next] = cell;
+						order[next] = low[next] = ++counter;
+						regions[next] = region;
+						stack[top++] = next;
+					}
+					else if (next != parent[cell]) {
+						low[cell] = Math.min(low[cell], order[next]);
+					}
+				}
+				else {
+					top--;
+					last[cell] = counter;
+					int up = parent[cell];
+					if (up >= 0) {
+						low[up] = Math.min(low[up], low[cell]);
+						//Nothing below this child climbs past its parent, so the parent cuts it off (for the
+						//root every child counts, though the rest of the region is then empty)
+						if (low[cell] >= order[up]) {
+							cutChildren[4 * up + cutCount[up]++] = cell;
+						}
+					}
+				}
+			}
+			region++;
+		}
+		return new Connectivity(xExtent, yExtent, regions, order, last, cutChildren);
+	}
+
+	//The cell one step north, east, south or west of this one, or -1 off the map
+	private static int neighbor(int cell, int direction, int xExtent, int yExtent) {
+		int x = cell % xExtent;
+		int y = cell / xExtent;
+		switch (direction) {
+		case 0:
+			return y > 0 ? cell - xExtent : -1;
+		case 1:
+			return x + 1 < xExtent ? cell + 1 : -1;
+		case 2:
+			return y + 1 < yExtent ? cell + xExtent : -1;
+		default:
+			return x > 0 ? cell - 1 : -1;
+		}
+	}
+}
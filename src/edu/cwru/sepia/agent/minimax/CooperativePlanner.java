@@ -0,0 +1,347 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * Windowed cooperative A* (WHCA*) for our two footmen.
+ *
+ * Each footman is planned in space-time (cell, turn) towards any cell next to
+ * an archer. The first footman's path is written into a reservation table and
+ * the second one has to plan around it, so the two never end up in the same
+ * cell or walk through each other. Both priority orders are tried and the
+ * cheaper joint plan wins. Planning only looks a fixed number of turns ahead;
+ * whatever distance is left after the window is estimated with the static
+ * distance to the goal.
+ *
+ * One planner is shared by every copy of a state, and so by every searching
+ * thread; each thread plans in its own scratch buffers, kept between calls
+ * (and between planners, since each turn's root state builds a new one) and
+ * only reallocated for a bigger map. The space-time grid is never cleared: a
+ * node counts as visited only if its stamp is the current plan's generation.
+ */
+public class CooperativePlanner {
+
+	//Moves available to a footman in one turn: the four cardinal steps and waiting in place
+	private static final int[] STEP_X = { 0, 1, 0, -1, 0 };
+	private static final int[] STEP_Y = { -1, 0, 1, 0, 0 };
+
+	private final int xExtent;
+	private final int yExtent;
+	private final boolean[] blocked;
+	private final DistanceTable distanceTable;
+	private final int window;
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
+
+	//One thread's buffers for jointCost and plan
+	private static final class Scratch {
+		//Space-time nodes (turn * cells + cell): the parent a node was reached from, valid only where the
+		//node's stamp is the current plan's generation
+		final int cells;
+		final int window;
+		final int[] parent;
+		final int[] visited;
+		int planGeneration = 0;
+		final long[] heap;
+		//Goal and occupied cells, valid only where their stamp is the current jointCost's generation
+		final int[] goal;
+		final int[] occupied;
+		int costGeneration = 0;
+		final int[] path0;
+		final int[] path1;
+		//The live archers, for jointCost(GameState)
+		int[] archersX = new int[0];
+		int[] archersY = new int[0];
+
+		Scratch(int cells, int window) {
+			this.cells = cells;
+			this.window = window;
+			int nodes = cells * (window + 1);
+			parent = new int[nodes];
+			visited = new int[nodes];
+			heap = new long[nodes + 1];
+			goal = new int[cells];
+			occupied = new int[cells];
+			path0 = new int[window + 1];
+			path1 = new int[window + 1];
+		}
+
+		//Starts a new plan, forgetting every node visited before
+		int nextPlan() {
+			if (++planGeneration == 0) {
+				Arrays.fill(visited, 0);
+				planGeneration = 1;
+			}
+			return planGeneration;
+		}
+
+		//Starts a new joint cost, forgetting the earlier goal and occupied cells
+		int nextCost() {
+			if (++costGeneration == 0) {
+				Arrays.fill(goal, 0);
+				Arrays.fill(occupied, 0);
+				costGeneration = 1;
+			}
+			return costGeneration;
+		}
+	}
+
+	//This thread's scratch, big enough for this planner's map and window
+	private Scratch scratch() {
+		Scratch buffers = scratch.get();
+		if (buffers == null || buffers.cells < xExtent * yExtent || buffers.window < window) {
+			buffers = new Scratch(xExtent * yExtent, window);
+			scratch.set(buffers);
+		}
+		return buffers;
+	}
+
+	public CooperativePlanner(int xExtent, int yExtent, boolean[] blocked, DistanceTable distanceTable, int window) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.blocked = blocked;
+		this.distanceTable = distanceTable;
+		this.window = window;
+	}
+
+	/**
+	 * True if two units moving at the same time from (from1 to to1) and
+	 * (from2 to to2) would collide: both end in the same cell, or they swap
+	 * cells by walking through each other.
+	 */
+	public static boolean conflicts(int from1X, int from1Y, int to1X, int to1Y,
+			int from2X, int from2Y, int to2X, int to2Y) {
+		if (to1X == to2X && to1Y == to2Y) {
+			return true;
+		}
+		return to1X == from2X && to1Y == from2Y && to2X == from1X && to2Y == from1Y;
+	}
+
+	/**
+	 * Plans both footmen jointly and returns the summed number of moves they
+	 * need before each one is standing next to an archer (the same measure as
+	 * a hop distance).
+	 *
+	 * @param footmenX x positions of the two footmen
+	 * @param footmenY y positions of the two footmen
+	 * @param archersX x positions of the live archers
+	 * @param archersY y positions of the live archers
+	 */
+	public int jointCost(int[] footmenX, int[] footmenY, int[] archersX, int[] archersY) {
+		return jointCost(scratch(), footmenX[0], footmenY[0], footmenX[1], footmenY[1], archersX, archersY,
+				archersX.length);
+	}
+
+	/**
+	 * The same for the first two units of a state (its footmen) against its
+	 * live archers, without allocating; 0 if no archer is left.
+	 */
+	int jointCost(GameState state) {
+		Scratch buffers = scratch();
+		int units = state.getUnitCount();
+		if (buffers.archersX.length < units) {
+			buffers.archersX = new int[units];
+			buffers.archersY = new int[units];
+		}
+		int archerCount = 0;
+		for (int unit = state.getFootmanCount(); unit < units; unit++) {
+			if (state.getUnitHP(unit) > 0) {
+				buffers.archersX[archerCount] = state.getUnitX(unit);
+				buffers.archersY[archerCount++] = state.getUnitY(unit);
+			}
+		}
+		if (archerCount == 0) {
+			return 0;
+		}
+		return jointCost(buffers, state.getUnitX(0), state.getUnitY(0), state.getUnitX(1), state.getUnitY(1),
+				buffers.archersX, buffers.archersY, archerCount);
+	}
+
+	private int jointCost(Scratch buffers, int footman0X, int footman0Y, int footman1X, int footman1Y,
+			int[] archersX, int[] archersY, int archerCount) {
+		int generation = buffers.nextCost();
+		int[] goal = buffers.goal;
+		int[] occupied = buffers.occupied;
+		for (int a = 0; a < archerCount; a++) {
+			occupied[archersY[a] * xExtent + archersX[a]] = generation;
+			for (int s = 0; s < 4; s++) {
+				int x = archersX[a] + STEP_X[s];
+				int y = archersY[a] + STEP_Y[s];
+				if (x >= 0 && y >= 0 && x < xExtent && y < yExtent) {
+					goal[y * xExtent + x] = generation;
+				}
+			}
+		}
+
+		int start0 = footman0Y * xExtent + footman0X;
+		int start1 = footman1Y * xExtent + footman1X;
+		int[] path0 = buffers.path0;
+		int[] path1 = buffers.path1;
+
+		int firstCost = plan(buffers, start0, start1, null, archersX, archersY, archerCount, path0);
+		int bestCost = firstCost + plan(buffers, start1, -1, path0, archersX, archersY, archerCount, path1);
+
+		//Now let the other footman go first and keep whichever order works out cheaper
+		int secondCost = plan(buffers, start1, start0, null, archersX, archersY, archerCount, path1);
+		if (secondCost < bestCost) {
+			bestCost = Math.min(bestCost,
+					secondCost + plan(buffers, start0, -1, path1, archersX, archersY, archerCount, path0));
+		}
+		return bestCost;
+	}
+
+	//Space-time A* for a single footman. "reserved" is the other footman's planned path (or null if it
+	//plans after us, in which case it only blocks its starting cell at turn 0). Fills "path" with the
+	//cell occupied at each turn of the window and returns the estimated number of moves to reach a goal.
+	private int plan(Scratch buffers, int start, int otherStart, int[] reserved,
+			int[] archersX, int[] archersY, int archerCount, int[] path) {
+		int cells = xExtent * yExtent;
+		int[] goal = buffers.goal;
+		int[] occupied = buffers.occupied;
+		int costGeneration = buffers.costGeneration;
+		if (goal[start] == costGeneration) {
+			Arrays.fill(path, start);
+			return 0;
+		}
+
+		int[] parent = buffers.parent;
+		int[] visited = buffers.visited;
+		int generation = buffers.nextPlan();
+		long[] heap = buffers.heap;
+		int heapSize = 0;
+		visited[start] = generation;
+		parent[start] = -1;
+		heap[heapSize++] = ((long) heuristic(start, archersX, archersY, archerCount) << 32) | start;
+
+		int bestEnd = start;
+		int bestEndCost = Integer.MAX_VALUE;
+		while (heapSize > 0) {
+			long top = heap[0];
+			heap[0] = heap[--heapSize];
+			siftDown(heap, heapSize);
+			int node = (int) top;
+			int turn = node / cells;
+			int cell = node % cells;
+
+			if (goal[cell] == costGeneration) {
+				tracePath(node, parent, cells, path, cell);
+				return turn;
+			}
+			if (turn == window) {
+				//Out of window: remember the most promising cell we can reach and keep looking
+				int cost = window + heuristic(cell, archersX, archersY, archerCount);
+				if (cost < bestEndCost) {
+					bestEndCost = cost;
+					bestEnd = node;
+				}
+				continue;
+			}
+
+			int x = cell % xExtent;
+			int y = cell / xExtent;
+			for (int s = 0; s < STEP_X.length; s++) {
+				int nx = x + STEP_X[s];
+				int ny = y + STEP_Y[s];
+				if (nx < 0 || ny < 0 || nx >= xExtent || ny >= yExtent) {
+					continue;
+				}
+				int nextCell = ny * xExtent + nx;
+				int next = (turn + 1) * cells + nextCell;
+				if (blocked[nextCell] || occupied[nextCell] == costGeneration || visited[next] == generation) {
+					continue;
+				}
+				if (reserved != null && (reserved[turn + 1] == nextCell
+						|| (reserved[turn + 1] == cell && reserved[turn] == nextCell))) {
+					continue;
+				}
+				if (reserved == null && turn == 0 && nextCell == otherStart) {
+					continue;
+				}
+				int h = heuristic(nextCell, archersX, archersY, archerCount);
+				if (h == DistanceTable.UNREACHABLE) {
+					continue;
+				}
+				visited[next] = generation;
+				parent[next] = node;
+				heap[heapSize] = ((long) (turn + 1 + h) << 32) | next;
+				siftUp(heap, heapSize++);
+			}
+		}
+
+		if (bestEndCost == Integer.MAX_VALUE) {
+			//Boxed in for the whole window; stay put and charge the static estimate plus the window
+			Arrays.fill(path, start);
+			return window + Math.min(heuristic(start, archersX, archersY, archerCount), xExtent + yExtent);
+		}
+		tracePath(bestEnd, parent, cells, path, bestEnd % cells);
+		return bestEndCost;
+	}
+
+	//Walks the parent links back to turn 0; once at the goal the footman waits there for the rest of the window
+	private void tracePath(int node, int[] parent, int cells, int[] path, int lastCell) {
+		int turn = node / cells;
+		for (int t = turn; t <= window; t++) {
+			path[t] = lastCell;
+		}
+		while (node >= 0) {
+			path[node / cells] = node % cells;
+			node = parent[node];
+		}
+	}
+
+	//Moves still needed from a cell until next to the closest archer; exact with a distance table, Manhattan without
+	private int heuristic(int cell, int[] archersX, int[] archersY, int archerCount) {
+		int x = cell % xExtent;
+		int y = cell / xExtent;
+		int best = DistanceTable.UNREACHABLE;
+		for (int a = 0; a < archerCount; a++) {
+			int distance;
+			if (distanceTable != null) {
+				distance = distanceTable.distance(x, y, archersX[a], archersY[a]);
+				if (distance == DistanceTable.UNREACHABLE) {
+					continue;
+				}
+			}
+			else {
+				distance = Math.abs(x - archersX[a]) + Math.abs(y - archersY[a]);
+			}
+			best = Math.min(best, Math.max(0, distance - 1));
+		}
+		return best;
+	}
+
+	private static void siftUp(long[] heap, int index) {
+		long value = heap[index];
+		while (index > 0) {
+			int parentIndex = (index - 1) >> 1;
+			if (heap[parentIndex] <= value) {
+				break;
+			}
+			heap[index] = heap[parentIndex];
+			index = parentIndex;
+		}
+		heap[index] = value;
+	}
+
+	private static void siftDown(long[] heap, int size) {
+		if (size == 0) {
+			return;
+		}
+		long value = heap[0];
+		int index = 0;
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heap[child + 1] < heap[child]) {
+				child++;
+			}
+			if (heap[child] >= value) {
+				break;
+			}
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = value;
+	}
+}
@@ -0,0 +1,294 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+/**
+ * All-pairs hop distances for one map, stored in a binary file and read back
+ * through a MappedByteBuffer so a lookup is a single read with no warm-up.
+ *
+ * Files live in data/distances (override with -Dminimax.distanceDir) and are
+ * named after a hash of the map's obstacle layout, so a table is computed once
+ * per map and reused by every later episode.
+ *
+ * File layout (big endian):
+ * int magic, int version, int xExtent, int yExtent, long layoutHash,
+ * then cells * cells unsigned shorts indexed by (from * cells + to).
+ */
+public class DistanceTable {
+
+	public static final int UNREACHABLE = 0xFFFF;
+	//Maps with more cells than this (a table of 32 MB) should use a PathDatabase instead
+	public static final int MAX_CELLS = 4096;
+
+	private static final int MAGIC = 0x44495354; // "DIST"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 24;
+
+	//Tables opened so far, keyed by layout hash, so every GameState built on the same map shares one
+	private static final Map<Long, DistanceTable> openTables = new HashMap<Long, DistanceTable>();
+
+	private final ByteBuffer distances;
+	private final int xExtent;
+	private final int yExtent;
+	private final int cells;
+	private final long layoutHash;
+
+	private DistanceTable(ByteBuffer distances, int xExtent, int yExtent, long layoutHash) {
+		this.distances = distances;
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.cells = xExtent * yExtent;
+		this.layoutHash = layoutHash;
+	}
+
+	/**
+	 * Returns the number of steps on a shortest 4-connected path between the
+	 * two cells, ignoring units, or UNREACHABLE.
+	 */
+	public int distance(int fromX, int fromY, int toX, int toY) {
+		int from = fromY * xExtent + fromX;
+		int to = toY * xExtent + toX;
+		return distances.getChar(HEADER_BYTES + 2 * (from * cells + to));
+	}
+
+	public int getXExtent() {
+		return xExtent;
+	}
+
+	public int getYExtent() {
+		return yExtent;
+	}
+
+	public long getLayoutHash() {
+		return layoutHash;
+	}
+
+	/**
+	 * Returns the table already opened for this state's map, or null if the
+	 * agent never called open() for it.
+	 */
+	public static DistanceTable lookup(State.StateView state) {
+		return lookup(layoutHash(state.getXExtent(), state.getYExtent(), obstacleGrid(state)));
+	}
+
+	public static synchronized DistanceTable lookup(long layoutHash) {
+		return openTables.get(layoutHash);
+	}
+
+	/**
+	 * Maps the table for this state's map, computing and writing the file
+	 * first if it does not exist yet. Call this once from initialStep.
+	 */
+	public static DistanceTable open(State.StateView state) {
+		return open(state.getXExtent(), state.getYExtent(), obstacleGrid(state));
+	}
+
+	public static DistanceTable open(CompactMap map) {
+		return open(map.getXExtent(), map.getYExtent(), map.getBlocked());
+	}
+
+	private static synchronized DistanceTable open(int xExtent, int yExtent, boolean[] blocked) {
+		long hash = layoutHash(xExtent, yExtent, blocked);
+
+		DistanceTable table = openTables.get(hash);
+		if (table != null) {
+			return table;
+		}
+
+		File file = tableFile(hash);
+		try {
+			if (!file.exists()) {
+				write(file, xExtent, yExtent, blocked);
+			}
+			table = map(file);
+		} catch (IOException e) {
+			//Not being able to cache on disk only costs us the precompute time, so build it in memory instead
+			System.err.println("Could not use distance table " + file + ": " + e.getMessage());
+			table = new DistanceTable(build(xExtent, yExtent, blocked, hash), xExtent, yExtent, hash);
+		}
+		if (table.layoutHash != hash || table.xExtent != xExtent || table.yExtent != yExtent) {
+			System.err.println("Distance table " + file + " does not match the map, rebuilding in memory");
+			table = new DistanceTable(build(xExtent, yExtent, blocked, hash), xExtent, yExtent, hash);
+		}
+		openTables.put(hash, table);
+		return table;
+	}
+
+	/**
+	 * Memory-maps an existing table file.
+	 */
+	public static DistanceTable map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("not a distance table (version " + VERSION + ")");
+			}
+			int xExtent = buffer.getInt(8);
+			int yExtent = buffer.getInt(12);
+			long hash = buffer.getLong(16);
+			long cells = (long) xExtent * yExtent;
+			if (channel.size() != HEADER_BYTES + 2 * cells * cells) {
+				throw new IOException("truncated distance table");
+			}
+			return new DistanceTable(buffer, xExtent, yExtent, hash);
+		} finally {
+			//The mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Computes the table for a map and writes it to the given file.
+	 */
+	public static void write(File file, int xExtent, int yExtent, boolean[] blocked) throws IOException {
+		ByteBuffer table = build(xExtent, yExtent, blocked, layoutHash(xExtent, yExtent, blocked));
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("cannot create " + parent);
+		}
+		//Write to a temporary file first so a crashed run never leaves a half written table behind
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			table.rewind();
+			while (table.hasRemaining()) {
+				channel.write(table);
+			}
+		} finally {
+			raf.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("cannot rename " + temp + " to " + file);
+		}
+	}
+
+	public static File tableFile(long layoutHash) {
+		return new File(dataDirectory(), String.format("%016x.dist", layoutHash));
+	}
+
+	//Where every precomputed per-map file goes (distance tables, endgame tablebases)
+	public static File dataDirectory() {
+		return new File(System.getProperty("minimax.distanceDir", "data/distances"));
+	}
+
+	//Runs one breadth first search per free cell and lays the results out in the file format
+	private static ByteBuffer build(int xExtent, int yExtent, boolean[] blocked, long hash) {
+		int cells = xExtent * yExtent;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 2 * cells * cells);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(xExtent).putInt(yExtent).putLong(hash);
+
+		int[] queue = new int[cells];
+		char[] row = new char[cells];
+		for (int from = 0; from < cells; from++) {
+			Arrays.fill(row, (char) UNREACHABLE);
+			if (!blocked[from]) {
+				int head = 0;
+				int tail = 0;
+				row[from] = 0;
+				queue[tail++] = from;
+				while (head < tail) {
+					int current = queue[head++];
+					int x = current % xExtent;
+					int y = current / xExtent;
+					char next = (char) (row[current] + 1);
+					if (x > 0 && !blocked[current - 1] && row[current - 1] == UNREACHABLE) {
+						row[current - 1] = next;
+						queue[tail++] = current - 1;
+					}
+					if (x + 1 < xExtent && !blocked[current + 1] && row[current + 1] == UNREACHABLE) {
+						row[current + 1] = next;
+						queue[tail++] = current + 1;
+					}
+					if (y > 0 && !blocked[current - xExtent] && row[current - xExtent] == UNREACHABLE) {
+						row[current - xExtent] = next;
+						queue[tail++] = current - xExtent;
+					}
+					if (y + 1 < yExtent && !blocked[current + xExtent] && row[current + xExtent] == UNREACHABLE) {
+						row[current + xExtent] = next;
+						queue[tail++] = current + xExtent;
+					}
+				}
+			}
+			for (int to = 0; to < cells; to++) {
+				buffer.putChar(row[to]);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	//Marks every cell holding a resource (tree) as blocked, indexed y * xExtent + x
+	public static boolean[] obstacleGrid(State.StateView state) {
+		int xExtent = state.getXExtent();
+		boolean[] blocked = new boolean[xExtent * state.getYExtent()];
+		for (Integer resourceID : state.getAllResourceIds()) {
+			ResourceNode.ResourceView resource = state.getResourceNode(resourceID);
+			blocked[resource.getYPosition() * xExtent + resource.getXPosition()] = true;
+		}
+		return blocked;
+	}
+
+	//64 bit FNV-1a over the extents and the obstacle bits
+	public static long layoutHash(int xExtent, int yExtent, boolean[] blocked) {
+		long hash = 0xcbf29ce484222325L;
+		hash = (hash ^ xExtent) * 0x100000001b3L;
+		hash = (hash ^ yExtent) * 0x100000001b3L;
+		for (int i = 0; i < blocked.length; i++) {
+			hash = (hash ^ (blocked[i] ? 1 : 0)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Loads a SEPIA state XML file through SEPIA's own loader. Slow; use
+	 * CompactMap when only the map is needed.
+	 */
+	public static State.StateView readMapState(File mapFile) throws JAXBException {
+		XmlState xml = (XmlState) JAXBContext.newInstance(XmlState.class).createUnmarshaller().unmarshal(mapFile);
+		return new XmlStateCreator(xml).createState().getView(Agent.OBSERVER_ID);
+	}
+
+	/**
+	 * Precomputes the tables for the given map files (state XMLs or compact
+	 * maps), e.g.
+	 * java edu.cwru.sepia.agent.minimax.DistanceTable data/Game2fv2a_Obstacles.xml
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: DistanceTable <map file>...");
+			System.exit(1);
+		}
+		for (String mapName : args) {
+			CompactMap map = CompactMap.load(new File(mapName));
+			File file = tableFile(map.getLayoutHash());
+			long startTime = System.nanoTime();
+			write(file, map.getXExtent(), map.getYExtent(), map.getBlocked());
+			System.out.println(mapName + " -> " + file + " (" + file.length() + " bytes, "
+					+ (System.nanoTime() - startTime) / 1000000 + " ms)");
+		}
+	}
+}
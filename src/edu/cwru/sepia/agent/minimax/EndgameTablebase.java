@@ -0,0 +1,679 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Exact results for every position with one footman against one archer on a
+ * map, computed offline by retrograde analysis.
+ *
+ * A position is (footman cell, footman hits left, archer cell, archer hits
+ * left), where "hits left" is how many more attacks that unit survives. The
+ * rules are the ones MoveGenerator uses for the search: a unit with its enemy
+ * in range always attacks, otherwise it takes a cardinal step onto a free cell
+ * (or waits if it has none). Attacks only ever lower the hits, so the (hits,
+ * hits) layers are solved from the bottom up and each layer is a plain
+ * retrograde pass over its non-attacking positions: wins spread backwards from
+ * the forced attacks, with a counter per position for the side that has to
+ * find an escape. Whatever is never reached is a draw.
+ *
+ * Only the positions with the footman to move are stored, one byte each: 0
+ * for a draw, t for a footman win on its t-th turn, 128 + t for an archer win
+ * on its t-th turn. Archer to move positions are answered by looking one move
+ * ahead into the stored half.
+ *
+ * File layout (big endian): int magic, int version, int xExtent, int yExtent,
+ * long layoutHash, int footmanAttack, int archerAttack, int archerRange, int
+ * footmanHits, int archerHits, int freeCells, then one byte per position
+ * indexed ((footmanHits - 1) * archerHits + archerHits - 1) * freeCells^2 +
+ * footmanCell * freeCells + archerCell, with cells numbered in row order
+ * skipping obstacles.
+ *
+ * Solving takes seconds even on the small bundled maps and grows with the
+ * fourth power of the map side, so the agent builds missing tables on a
+ * background thread (openInBackground) and searches without one until it is
+ * ready; a game that ends first (SEPIA exits when it does) loses that work,
+ * so build the tables for maps you play often with main beforehand. Tables
+ * over -Dminimax.tablebaseMb megabytes (default 64) are not built during a
+ * game at all; main builds any size the format allows, and files built that
+ * way are always used.
+ */
+public class EndgameTablebase {
+
+	private static final int MAGIC = 0x45475442; // "EGTB"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 48;
+
+	//Longest win (in turns of the winner) a byte can hold; anything longer is left unsolved
+	private static final int MAX_TURNS = 127;
+	private static final int ARCHER_WINS = 128;
+
+	//Largest table solved during a game; the solver needs about twice this in heap
+	private static final long MAX_BUILD_BYTES = Long.getLong("minimax.tablebaseMb", 64) * 1024 * 1024;
+
+	//Tables opened so far, keyed by layout hash and unit stats; null for maps that have none
+	private static final Map<String, EndgameTablebase> openTables = new HashMap<String, EndgameTablebase>();
+	//Tables being opened right now, so a second caller doesn't solve the same one again
+	private static final Set<String> opening = new HashSet<String>();
+
+	private final ByteBuffer results;
+	private final int xExtent;
+	private final int yExtent;
+	private final int footmanAttack;
+	private final int archerAttack;
+	private final int archerRange;
+	private final int footmanHits;
+	private final int archerHits;
+	private final Cells cells;
+
+	private EndgameTablebase(ByteBuffer results, int xExtent, int yExtent, int footmanAttack, int archerAttack,
+			int archerRange, int footmanHits, int archerHits, Cells cells) {
+		this.results = results;
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.footmanAttack = footmanAttack;
+		this.archerAttack = archerAttack;
+		this.archerRange = archerRange;
+		this.footmanHits = footmanHits;
+		this.archerHits = archerHits;
+		this.cells = cells;
+	}
+
+	/**
+	 * Looks up a position. Returns n > 0 if the footman wins in n plys, -n if
+	 * the archer wins in n plys, and 0 for a draw or a position the table does
+	 * not cover (other stats, a unit on an obstacle, more HP than it was built
+	 * for).
+	 */
+	public int probe(int footmanX, int footmanY, int footmanHP, int footmanAttack,
+			int archerX, int archerY, int archerHP, int archerAttack, int archerRange, boolean footmanTurn) {
+		if (footmanAttack != this.footmanAttack || archerAttack != this.archerAttack
+				|| archerRange != this.archerRange) {
+			return 0;
+		}
+		int footman = cellAt(footmanX, footmanY);
+		int archer = cellAt(archerX, archerY);
+		int hf = hitsLeft(footmanHP, archerAttack);
+		int ha = hitsLeft(archerHP, footmanAttack);
+		if (footman < 0 || archer < 0 || footman == archer || hf < 1 || ha < 1 || hf > footmanHits || ha > archerHits) {
+			return 0;
+		}
+		if (footmanTurn) {
+			return footmanToMove(hf, ha, footman, archer);
+		}
+
+		//Archer to move: play its forced attack, or try each of its steps against the stored half
+		if (cells.chebyshev(footman, archer) <= archerRange) {
+			return hf == 1 ? -1 : oneMore(footmanToMove(hf - 1, ha, footman, archer));
+		}
+		int best = 0;
+		boolean found = false;
+		for (int s = 0; s < 4; s++) {
+			int next = cells.neighbor(archer, s);
+			if (next >= 0 && next != footman) {
+				best = betterForArcher(best, footmanToMove(hf, ha, footman, next), found);
+				found = true;
+			}
+		}
+		if (!found) {
+			best = footmanToMove(hf, ha, footman, archer);
+		}
+		return oneMore(best);
+	}
+
+	private int footmanToMove(int hf, int ha, int footman, int archer) {
+		int free = cells.free;
+		long index = ((long) (hf - 1) * archerHits + ha - 1) * free * free + (long) footman * free + archer;
+		return decode(results.get((int) (HEADER_BYTES + index)) & 0xFF, true);
+	}
+
+	private int cellAt(int x, int y) {
+		if (x < 0 || y < 0 || x >= xExtent || y >= yExtent) {
+			return -1;
+		}
+		return cells.index[y * xExtent + x];
+	}
+
+	/**
+	 * Returns the table already opened for this state's map and units, or null
+	 * if the agent never called open() for it. Only the attack and range stats
+	 * have to match; the units may have lost HP since.
+	 */
+	public static synchronized EndgameTablebase lookup(State.StateView state) {
+		int[] stats = unitStats(state);
+		if (stats == null) {
+			return null;
+		}
+		boolean[] blocked = DistanceTable.obstacleGrid(state);
+		long hash = DistanceTable.layoutHash(state.getXExtent(), state.getYExtent(), blocked);
+		return openTables.get(cacheKey(hash, stats));
+	}
+
+	public static synchronized EndgameTablebase lookup(CompactMap map) {
+		int[] stats = unitStats(map);
+		return stats == null ? null : openTables.get(cacheKey(map.getLayoutHash(), stats));
+	}
+
+	/**
+	 * Maps the tablebase for this state's map and units, solving it and
+	 * writing the file first if it does not exist yet. Returns null if the map
+	 * is over the build limit (and has no file) or solving it failed; states
+	 * then simply do without it. Blocks until the table is ready, so the
+	 * agent calls openInBackground instead.
+	 */
+	public static EndgameTablebase open(State.StateView state) {
+		int[] stats = unitStats(state);
+		return stats == null ? null : open(state.getXExtent(), state.getYExtent(), DistanceTable.obstacleGrid(state),
+				stats);
+	}
+
+	public static EndgameTablebase open(CompactMap map) {
+		int[] stats = unitStats(map);
+		return stats == null ? null : open(map.getXExtent(), map.getYExtent(), map.getBlocked(), stats);
+	}
+
+	/**
+	 * Maps the tablebase for this state's map and units if its file exists,
+	 * and otherwise starts solving it on a daemon thread and returns straight
+	 * away. GameStates built from the game after that (see lookup) pick the
+	 * table up once it is ready. Call this once from initialStep.
+	 */
+	public static void openInBackground(State.StateView state) {
+		final int[] stats = unitStats(state);
+		if (stats == null) {
+			return;
+		}
+		final int xExtent = state.getXExtent();
+		final int yExtent = state.getYExtent();
+		final boolean[] blocked = DistanceTable.obstacleGrid(state);
+		if (tableFile(DistanceTable.layoutHash(xExtent, yExtent, blocked), stats).exists()) {
+			open(xExtent, yExtent, blocked, stats);
+			return;
+		}
+		Thread builder = new Thread(new Runnable() {
+			public void run() {
+				open(xExtent, yExtent, blocked, stats);
+			}
+		}, "endgame-tablebase");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	private static EndgameTablebase open(int xExtent, int yExtent, boolean[] blocked, int[] stats) {
+		long hash = DistanceTable.layoutHash(xExtent, yExtent, blocked);
+		String key = cacheKey(hash, stats);
+		//Solving happens outside the lock, so lookup() never waits for it
+		synchronized (EndgameTablebase.class) {
+			if (openTables.containsKey(key) || opening.contains(key)) {
+				return openTables.get(key);
+			}
+			opening.add(key);
+		}
+		EndgameTablebase table = null;
+		try {
+			table = load(xExtent, yExtent, blocked, hash, stats);
+		} finally {
+			synchronized (EndgameTablebase.class) {
+				opening.remove(key);
+				openTables.put(key, table);
+			}
+		}
+		return table;
+	}
+
+	//Maps the file, solving and writing it first if need be; null if the map is too big or solving failed
+	private static EndgameTablebase load(int xExtent, int yExtent, boolean[] blocked, long hash, int[] stats) {
+		File file = tableFile(hash, stats);
+		if (!file.exists()) {
+			long bytes = tableBytes(new Cells(xExtent, yExtent, blocked).free, stats);
+			if (bytes > MAX_BUILD_BYTES) {
+				System.err.println("No endgame tablebase: it would take " + bytes / (1024 * 1024) + " MB, over the "
+						+ MAX_BUILD_BYTES / (1024 * 1024) + " MB limit (build it with EndgameTablebase's main instead)");
+				return null;
+			}
+		}
+		try {
+			try {
+				if (!file.exists()) {
+					write(file, xExtent, yExtent, blocked, stats);
+				}
+				return map(file, blocked);
+			} catch (IOException e) {
+				//Same as the distance tables: without the file we just pay for solving it every run
+				System.err.println("Could not use endgame tablebase " + file + ": " + e.getMessage());
+				return new EndgameTablebase(solve(xExtent, yExtent, blocked, hash, stats), xExtent, yExtent,
+						stats[0], stats[1], stats[2], stats[3], stats[4], new Cells(xExtent, yExtent, blocked));
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("No endgame tablebase: " + e.getMessage());
+		} catch (OutOfMemoryError e) {
+			System.err.println("No endgame tablebase: out of memory solving " + file);
+		}
+		return null;
+	}
+
+	//The size of a table's results, without the header
+	private static long tableBytes(int freeCells, int[] stats) {
+		return (long) stats[3] * stats[4] * freeCells * freeCells;
+	}
+
+	/**
+	 * Memory-maps an existing tablebase file for the given obstacle layout.
+	 */
+	public static EndgameTablebase map(File file, boolean[] blocked) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("not an endgame tablebase (version " + VERSION + ")");
+			}
+			int xExtent = buffer.getInt(8);
+			int yExtent = buffer.getInt(12);
+			long hash = buffer.getLong(16);
+			if (blocked.length != xExtent * yExtent || hash != DistanceTable.layoutHash(xExtent, yExtent, blocked)) {
+				throw new IOException("tablebase was built for another map");
+			}
+			Cells cells = new Cells(xExtent, yExtent, blocked);
+			int footmanHits = buffer.getInt(36);
+			int archerHits = buffer.getInt(40);
+			if (buffer.getInt(44) != cells.free || channel.size() != HEADER_BYTES
+					+ (long) footmanHits * archerHits * cells.free * cells.free) {
+				throw new IOException("truncated endgame tablebase");
+			}
+			return new EndgameTablebase(buffer, xExtent, yExtent, buffer.getInt(24), buffer.getInt(28),
+					buffer.getInt(32), footmanHits, archerHits, cells);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Solves the tablebase for a map and writes it to the given file. stats
+	 * are footman attack, archer attack, archer range, footman hits and archer
+	 * hits, as returned by unitStats.
+	 */
+	public static void write(File file, int xExtent, int yExtent, boolean[] blocked, int[] stats) throws IOException {
+		ByteBuffer table = solve(xExtent, yExtent, blocked, DistanceTable.layoutHash(xExtent, yExtent, blocked), stats);
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("cannot create " + parent);
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			table.rewind();
+			while (table.hasRemaining()) {
+				channel.write(table);
+			}
+		} finally {
+			raf.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("cannot rename " + temp + " to " + file);
+		}
+	}
+
+	public static File tableFile(long layoutHash, int[] stats) {
+		return new File(DistanceTable.dataDirectory(), String.format("%016x-%d-%d-%d-%d-%d.egtb", layoutHash,
+				stats[0], stats[1], stats[2], stats[3], stats[4]));
+	}
+
+	//Footman attack, archer attack, archer range, then footman and archer hits for the healthiest unit
+	//of each side (the map may start units above their template's base health); null once a side is gone
+	private static int[] unitStats(State.StateView state) {
+		List<Integer> footmen = state.getUnitIds(0);
+		List<Integer> archers = state.getUnitIds(1);
+		if (footmen.isEmpty() || archers.isEmpty()) {
+			return null;
+		}
+		Unit.UnitView archer = state.getUnit(archers.get(0));
+		int footmanAttack = state.getUnit(footmen.get(0)).getTemplateView().getBasicAttack();
+		int archerAttack = archer.getTemplateView().getBasicAttack();
+		if (footmanAttack <= 0 || archerAttack <= 0) {
+			return null;
+		}
+		int footmanHP = 0;
+		for (Integer unitID : footmen) {
+			footmanHP = Math.max(footmanHP, state.getUnit(unitID).getHP());
+		}
+		int archerHP = 0;
+		for (Integer unitID : archers) {
+			archerHP = Math.max(archerHP, state.getUnit(unitID).getHP());
+		}
+		return new int[] { footmanAttack, archerAttack, archer.getTemplateView().getRange(),
+				hitsLeft(footmanHP, archerAttack), hitsLeft(archerHP, footmanAttack) };
+	}
+
+	//The same stats for a compact map
+	private static int[] unitStats(CompactMap map) {
+		List<Integer> footmen = map.getUnits(0);
+		List<Integer> archers = map.getUnits(1);
+		if (footmen.isEmpty() || archers.isEmpty()) {
+			return null;
+		}
+		int footmanAttack = map.getBasicAttack(footmen.get(0));
+		int archerAttack = map.getBasicAttack(archers.get(0));
+		if (footmanAttack <= 0 || archerAttack <= 0) {
+			return null;
+		}
+		int footmanHP = 0;
+		for (Integer unit : footmen) {
+			footmanHP = Math.max(footmanHP, map.getUnitHP(unit));
+		}
+		int archerHP = 0;
+		for (Integer unit : archers) {
+			archerHP = Math.max(archerHP, map.getUnitHP(unit));
+		}
+		return new int[] { footmanAttack, archerAttack, map.getRange(archers.get(0)),
+				hitsLeft(footmanHP, archerAttack), hitsLeft(archerHP, footmanAttack) };
+	}
+
+	//Tables are shared by map and unit stats; the hits only size the table, so they are left out
+	private static String cacheKey(long layoutHash, int[] stats) {
+		return String.format("%016x-%d-%d-%d", layoutHash, stats[0], stats[1], stats[2]);
+	}
+
+	private static int hitsLeft(int hp, int attack) {
+		return hp <= 0 ? 0 : (hp + attack - 1) / attack;
+	}
+
+	//Retrograde analysis, one (footman hits, archer hits) layer at a time from the weakest up
+	private static ByteBuffer solve(int xExtent, int yExtent, boolean[] blocked, long hash, int[] stats) {
+		int archerRange = stats[2];
+		int footmanHits = stats[3];
+		int archerHits = stats[4];
+		Cells cells = new Cells(xExtent, yExtent, blocked);
+		int free = cells.free;
+		int layer = free * free;
+		long size = tableBytes(free, stats);
+		if (HEADER_BYTES + size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("map too large for an endgame tablebase");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) (HEADER_BYTES + size));
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(xExtent).putInt(yExtent).putLong(hash);
+		buffer.putInt(stats[0]).putInt(stats[1]).putInt(archerRange).putInt(footmanHits).putInt(archerHits)
+				.putInt(free);
+		//The archer to move half is only needed while solving, to seed the layers above it
+		byte[] archerTable = new byte[(int) size];
+
+		//Signed plys as returned by probe (0 = unresolved) and open escape counts, per side to move
+		int[] footmanPlys = new int[layer];
+		int[] archerPlys = new int[layer];
+		int[] footmanCount = new int[layer];
+		int[] archerCount = new int[layer];
+		//Positions as position * 2 + side, side 0 = footman to move
+		int[] seeds = new int[2 * layer];
+		int[] sorted = new int[2 * layer];
+		int[] queue = new int[2 * layer];
+
+		for (int hf = 1; hf <= footmanHits; hf++) {
+			for (int ha = 1; ha <= archerHits; ha++) {
+				int base = ((hf - 1) * archerHits + ha - 1) * layer;
+				Arrays.fill(footmanPlys, 0);
+				Arrays.fill(archerPlys, 0);
+				Arrays.fill(footmanCount, 0);
+				Arrays.fill(archerCount, 0);
+
+				//Forced attacks leave the layer, so their results come straight from the layers below
+				int seedCount = 0;
+				int maxSeed = 0;
+				for (int p = 0; p < layer; p++) {
+					int footman = p / free;
+					int archer = p % free;
+					if (footman == archer) {
+						continue;
+					}
+					if (cells.manhattan(footman, archer) == 1) {
+						footmanPlys[p] = ha == 1 ? 1 : oneMore(decode(
+								archerTable[base - layer + p] & 0xFF, false));
+						if (footmanPlys[p] != 0) {
+							seeds[seedCount++] = 2 * p;
+							maxSeed = Math.max(maxSeed, Math.abs(footmanPlys[p]));
+						}
+					}
+					else {
+						footmanCount[p] = Math.max(1, cells.degree(footman));
+					}
+					if (cells.chebyshev(footman, archer) <= archerRange) {
+						archerPlys[p] = hf == 1 ? -1 : oneMore(decode(
+								buffer.get(HEADER_BYTES + base - archerHits * layer + p) & 0xFF, true));
+						if (archerPlys[p] != 0) {
+							seeds[seedCount++] = 2 * p + 1;
+							maxSeed = Math.max(maxSeed, Math.abs(archerPlys[p]));
+						}
+					}
+					else {
+						archerCount[p] = Math.max(1, cells.degree(archer));
+					}
+				}
+
+				//Counting sort the seeds by plys, then merge them with the queue so positions are
+				//always finished in order of distance to the end
+				int[] bucketStart = new int[maxSeed + 2];
+				for (int i = 0; i < seedCount; i++) {
+					bucketStart[plysOf(seeds[i], footmanPlys, archerPlys) + 1]++;
+				}
+				for (int b = 1; b < bucketStart.length; b++) {
+					bucketStart[b] += bucketStart[b - 1];
+				}
+				for (int i = 0; i < seedCount; i++) {
+					sorted[bucketStart[plysOf(seeds[i], footmanPlys, archerPlys)]++] = seeds[i];
+				}
+
+				int nextSeed = 0;
+				int head = 0;
+				int tail = 0;
+				while (nextSeed < seedCount || head < tail) {
+					int entry;
+					if (head == tail || (nextSeed < seedCount && plysOf(sorted[nextSeed], footmanPlys, archerPlys)
+							<= plysOf(queue[head], footmanPlys, archerPlys))) {
+						entry = sorted[nextSeed++];
+					}
+					else {
+						entry = queue[head++];
+					}
+					int p = entry >> 1;
+					int footman = p / free;
+					int archer = p % free;
+
+					if ((entry & 1) == 1) {
+						//Archer to move was decided; the footman moves that led here are its predecessors
+						int value = archerPlys[p];
+						for (int s = 0; s <= 4; s++) {
+							int from = s < 4 ? cells.neighbor(footman, s) : (cells.degree(footman) == 0 ? footman : -1);
+							if (from < 0 || from == archer || cells.manhattan(from, archer) == 1) {
+								continue;
+							}
+							int q = from * free + archer;
+							if (footmanPlys[q] != 0) {
+								continue;
+							}
+							if (value > 0 || --footmanCount[q] == 0) {
+								footmanPlys[q] = oneMore(value);
+								queue[tail++] = 2 * q;
+							}
+						}
+					}
+					else {
+						int value = footmanPlys[p];
+						for (int s = 0; s <= 4; s++) {
+							int from = s < 4 ? cells.neighbor(archer, s) : (cells.degree(archer) == 0 ? archer : -1);
+							if (from < 0 || from == footman || cells.chebyshev(footman, from) <= archerRange) {
+								continue;
+							}
+							int q = footman * free + from;
+							if (archerPlys[q] != 0) {
+								continue;
+							}
+							if (value < 0 || --archerCount[q] == 0) {
+								archerPlys[q] = oneMore(value);
+								queue[tail++] = 2 * q + 1;
+							}
+						}
+					}
+				}
+
+				for (int p = 0; p < layer; p++) {
+					buffer.put(HEADER_BYTES + base + p, encode(footmanPlys[p]));
+					archerTable[base + p] = encode(archerPlys[p]);
+				}
+			}
+		}
+		buffer.rewind();
+		return buffer;
+	}
+
+	private static int plysOf(int entry, int[] footmanPlys, int[] archerPlys) {
+		return Math.abs((entry & 1) == 0 ? footmanPlys[entry >> 1] : archerPlys[entry >> 1]);
+	}
+
+	//One ply further from the end, keeping who wins
+	private static int oneMore(int plys) {
+		return plys > 0 ? plys + 1 : plys < 0 ? plys - 1 : 0;
+	}
+
+	//The archer wants its quickest win, then a draw, then the slowest loss
+	private static int betterForArcher(int best, int candidate, boolean haveBest) {
+		if (!haveBest) {
+			return candidate;
+		}
+		if (candidate < 0) {
+			return best < 0 ? Math.max(best, candidate) : candidate;
+		}
+		if (best < 0) {
+			return best;
+		}
+		if (candidate == 0 || best == 0) {
+			return 0;
+		}
+		return Math.max(best, candidate);
+	}
+
+	//The winner always makes the last move, so its turn count and the side to move give back the plys
+	private static byte encode(int plys) {
+		int turns = (Math.abs(plys) + 1) / 2;
+		if (plys == 0 || turns > MAX_TURNS) {
+			return 0;
+		}
+		return (byte) (plys > 0 ? turns : ARCHER_WINS + turns);
+	}
+
+	private static int decode(int value, boolean footmanTurn) {
+		if (value == 0) {
+			return 0;
+		}
+		if (value < ARCHER_WINS) {
+			return footmanTurn ? 2 * value - 1 : 2 * value;
+		}
+		int turns = value - ARCHER_WINS;
+		return footmanTurn ? -2 * turns : -(2 * turns - 1);
+	}
+
+	/**
+	 * Solves the tablebases for the given map files (state XMLs or compact
+	 * maps) up front, e.g.
+	 * java edu.cwru.sepia.agent.minimax.EndgameTablebase data/Game2fv2a_Obstacles.xml
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: EndgameTablebase <map file>...");
+			System.exit(1);
+		}
+		for (String mapName : args) {
+			CompactMap map = CompactMap.load(new File(mapName));
+			int[] stats = unitStats(map);
+			if (stats == null) {
+				System.err.println(mapName + ": needs at least one footman and one archer");
+				continue;
+			}
+			File file = tableFile(map.getLayoutHash(), stats);
+			long startTime = System.nanoTime();
+			try {
+				write(file, map.getXExtent(), map.getYExtent(), map.getBlocked(), stats);
+			} catch (IllegalArgumentException e) {
+				System.err.println(mapName + ": " + e.getMessage());
+				continue;
+			}
+			System.out.println(mapName + " -> " + file + " (" + file.length() + " bytes, "
+					+ (System.nanoTime() - startTime) / 1000000 + " ms)");
+		}
+	}
+
+	//Free cells numbered in row order, with their free cardinal neighbours
+	private static class Cells {
+		final int free;
+		final int[] index;
+		final int[] x;
+		final int[] y;
+		final int[] neighbors;
+		final int[] degree;
+
+		Cells(int xExtent, int yExtent, boolean[] blocked) {
+			index = new int[xExtent * yExtent];
+			int count = 0;
+			for (int cell = 0; cell < index.length; cell++) {
+				index[cell] = blocked[cell] ? -1 : count++;
+			}
+			free = count;
+			x = new int[free];
+			y = new int[free];
+			neighbors = new int[4 * free];
+			degree = new int[free];
+			for (int cell = 0; cell < index.length; cell++) {
+				int i = index[cell];
+				if (i < 0) {
+					continue;
+				}
+				x[i] = cell % xExtent;
+				y[i] = cell / xExtent;
+			}
+			for (int i = 0; i < free; i++) {
+				for (int s = 0; s < 4; s++) {
+					int nx = x[i] + MoveGenerator.CARDINALS[s].xComponent();
+					int ny = y[i] + MoveGenerator.CARDINALS[s].yComponent();
+					int next = nx < 0 || ny < 0 || nx >= xExtent || ny >= yExtent ? -1 : index[ny * xExtent + nx];
+					neighbors[4 * i + s] = next;
+					if (next >= 0) {
+						degree[i]++;
+					}
+				}
+			}
+		}
+
+		int neighbor(int cell, int direction) {
+			return neighbors[4 * cell + direction];
+		}
+
+		int degree(int cell) {
+			return degree[cell];
+		}
+
+		int manhattan(int a, int b) {
+			return Math.abs(x[a] - x[b]) + Math.abs(y[a] - y[b]);
+		}
+
+		int chebyshev(int a, int b) {
+			return Math.max(Math.abs(x[a] - x[b]), Math.abs(y[a] - y[b]));
+		}
+	}
+}
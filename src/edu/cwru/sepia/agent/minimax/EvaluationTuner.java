@@ -0,0 +1,243 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fits the evaluation weights (see EvaluationWeights) to how recorded games
+ * actually ended, Texel style.
+ *
+ * Usage: EvaluationTuner <weights file to write> <log file>..., where the
+ * logs are PositionRecorder logs (-Dminimax.recordFile) of games that ran to
+ * the end, so their positions have results. Every position is rebuilt as a
+ * GameState from its map, with no SEPIA, and its features are worked out once
+ * and kept; after that an iteration is one pass of dot products over the
+ * kept features.
+ *
+ * A position's evaluation v is read as a win probability 1 / (1 + e^(-v / K)).
+ * K is fitted first, with the current weights, and then held, so the weights
+ * keep the scale the search's other constants were picked for. The weights
+ * are then moved by Adam (gradient descent with per weight step sizes, as the
+ * features' scales are far apart) to minimize the mean squared difference
+ * between that probability and the game's result. Each pass is split across
+ * all cores. -Dminimax.tuneIterations sets the number of steps (default
+ * 2000). The weights that start from are the ones GameState would use.
+ */
+public class EvaluationTuner {
+
+	private static final int DEFAULT_ITERATIONS = 2000;
+	private static final double LEARNING_RATE = 0.02;
+	private static final double BETA1 = 0.9;
+	private static final double BETA2 = 0.999;
+	private static final double EPSILON = 1e-8;
+	private static final int REPORT_INTERVAL = 100;
+	//Range searched for the scale K
+	private static final double MIN_SCALE = 1;
+	private static final double MAX_SCALE = 100000;
+	//K when the starting weights predict nothing (the best fit is a flat 50%): MonteCarloTreeSearch's UTILITY_SCALE
+	private static final double FALLBACK_SCALE = 100;
+
+	private final int count;
+	//features[position * FEATURES + feature], and each position's result
+	private final double[] features;
+	private final double[] results;
+	private final ExecutorService pool;
+	private final int threads;
+
+	private EvaluationTuner(double[] features, double[] results, ExecutorService pool, int threads) {
+		this.count = results.length;
+		this.features = features;
+		this.results = results;
+		this.pool = pool;
+		this.threads = threads;
+	}
+
+	/**
+	 * The mean squared error of these weights at this scale, followed by its
+	 * gradient with respect to each weight.
+	 */
+	private double[] errorAndGradient(final double[] weights, final double scale) throws Exception {
+		List<Future<double[]>> parts = new ArrayList<Future<double[]>>(threads);
+		for (int t = 0; t < threads; t++) {
+			final int from = (int) ((long) count * t / threads);
+			final int to = (int) ((long) count * (t + 1) / threads);
+			parts.add(pool.submit(new Callable<double[]>() {
+				public double[] call() {
+					double[] sums = new double[1 + EvaluationWeights.FEATURES];
+					for (int position = from; position < to; position++) {
+						int base = position * EvaluationWeights.FEATURES;
+						double value = 0;
+						for (int feature = 0; feature < EvaluationWeights.FEATURES; feature++) {
+							value += weights[feature] * features[base + feature];
+						}
+						double predicted = 1 / (1 + Math.exp(-value / scale));
+						double miss = predicted - results[position];
+						sums[0] += miss * miss;
+						//d(miss^2)/dw = 2 miss * p(1 - p) / K * feature
+						double slope = 2 * miss * predicted * (1 - predicted) / scale;
+						for (int feature = 0; feature < EvaluationWeights.FEATURES; feature++) {
+							sums[1 + feature] += slope * features[base + feature];
+						}
+					}
+					return sums;
+				}
+			}));
+		}
+		double[] total = new double[1 + EvaluationWeights.FEATURES];
+		for (Future<double[]> part : parts) {
+			double[] sums = part.get();
+			for (int i = 0; i < total.length; i++) {
+				total[i] += sums[i];
+			}
+		}
+		for (int i = 0; i < total.length; i++) {
+			total[i] /= count;
+		}
+		return total;
+	}
+
+	//The scale with the least error for these weights: a golden section search over log(scale)
+	private double fitScale(double[] weights) throws Exception {
+		double low = Math.log(MIN_SCALE);
+		double high = Math.log(MAX_SCALE);
+		double ratio = (Math.sqrt(5) - 1) / 2;
+		double a = high - ratio * (high - low);
+		double b = low + ratio * (high - low);
+		double errorA = errorAndGradient(weights, Math.exp(a))[0];
+		double errorB = errorAndGradient(weights, Math.exp(b))[0];
+		for (int i = 0; i < 60; i++) {
+			if (errorA < errorB) {
+				high = b;
+				b = a;
+				errorB = errorA;
+				a = high - ratio * (high - low);
+				errorA = errorAndGradient(weights, Math.exp(a))[0];
+			}
+			else {
+				low = a;
+				a = b;
+				errorA = errorB;
+				b = low + ratio * (high - low);
+				errorB = errorAndGradient(weights, Math.exp(b))[0];
+			}
+		}
+		double scale = Math.exp((low + high) / 2);
+		if (scale > MAX_SCALE / 2) {
+			System.out.println("The starting weights don't predict the results, using a scale of " + FALLBACK_SCALE);
+			return FALLBACK_SCALE;
+		}
+		return scale;
+	}
+
+	private double[] tune(double[] start, double scale, int iterations) throws Exception {
+		double[] weights = start.clone();
+		double[] best = start.clone();
+		double bestError = Double.MAX_VALUE;
+		double[] moment = new double[EvaluationWeights.FEATURES];
+		double[] second = new double[EvaluationWeights.FEATURES];
+		for (int step = 1; step <= iterations; step++) {
+			double[] result = errorAndGradient(weights, scale);
+			if (result[0] < bestError) {
+				bestError = result[0];
+				System.arraycopy(weights, 0, best, 0, weights.length);
+			}
+			if (step % REPORT_INTERVAL == 0) {
+				System.out.println(String.format("Step %5d: error %.6f, %s", step, result[0],
+						EvaluationWeights.toString(weights)));
+			}
+			for (int feature = 0; feature < EvaluationWeights.FEATURES; feature++) {
+				double gradient = result[1 + feature];
+				moment[feature] = BETA1 * moment[feature] + (1 - BETA1) * gradient;
+				second[feature] = BETA2 * second[feature] + (1 - BETA2) * gradient * gradient;
+				double corrected = moment[feature] / (1 - Math.pow(BETA1, step));
+				double correctedSecond = second[feature] / (1 - Math.pow(BETA2, step));
+				weights[feature] -= LEARNING_RATE * corrected / (Math.sqrt(correctedSecond) + EPSILON);
+			}
+		}
+		if (errorAndGradient(weights, scale)[0] < bestError) {
+			best = weights;
+		}
+		return best;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: EvaluationTuner <weights file to write> <log file>...");
+			System.exit(1);
+		}
+		final List<PositionRecorder.Position> positions = new ArrayList<PositionRecorder.Position>();
+		for (int i = 1; i < args.length; i++) {
+			for (PositionRecorder.Position position : PositionRecorder.readAll(new File(args[i]))) {
+				if (!Double.isNaN(position.result)) {
+					positions.add(position);
+				}
+			}
+		}
+		if (positions.isEmpty()) {
+			System.err.println("No positions from finished games in the logs");
+			System.exit(1);
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			long startTime = System.nanoTime();
+			final double[] features = new double[positions.size() * EvaluationWeights.FEATURES];
+			double[] results = new double[positions.size()];
+			List<Future<?>> parts = new ArrayList<Future<?>>(threads);
+			for (int t = 0; t < threads; t++) {
+				final int from = positions.size() * t / threads;
+				final int to = positions.size() * (t + 1) / threads;
+				parts.add(pool.submit(new Runnable() {
+					public void run() {
+						double[] row = new double[EvaluationWeights.FEATURES];
+						for (int i = from; i < to; i++) {
+							CompactMap map = positions.get(i).map;
+							if (map.getXExtent() * map.getYExtent() <= DistanceTable.MAX_CELLS) {
+								DistanceTable.open(map);
+							}
+							else {
+								PathDatabase.open(map);
+							}
+							new GameState(map).getFeatures(GameState.TIER_FULL, row);
+							System.arraycopy(row, 0, features, i * EvaluationWeights.FEATURES, row.length);
+						}
+					}
+				}));
+			}
+			for (Future<?> part : parts) {
+				part.get();
+			}
+			for (int i = 0; i < results.length; i++) {
+				results[i] = positions.get(i).result;
+			}
+			System.out.println(positions.size() + " positions' features in " + (System.nanoTime() - startTime) / 1000000
+					+ " ms on " + threads + " threads");
+
+			EvaluationTuner tuner = new EvaluationTuner(features, results, pool, threads);
+			double[] start = new double[EvaluationWeights.FEATURES];
+			for (int feature = 0; feature < start.length; feature++) {
+				start[feature] = GameState.getWeight(feature);
+			}
+			double scale = tuner.fitScale(start);
+			double startError = tuner.errorAndGradient(start, scale)[0];
+			System.out.println(String.format("Scale %.2f, error %.6f with %s", scale, startError,
+					EvaluationWeights.toString(start)));
+			startTime = System.nanoTime();
+			int iterations = Integer.getInteger("minimax.tuneIterations", DEFAULT_ITERATIONS);
+			double[] tuned = tuner.tune(start, scale, iterations);
+			double tunedError = tuner.errorAndGradient(tuned, scale)[0];
+			System.out.println(String.format("Error %.6f with %s (%d steps in %d ms)", tunedError,
+					EvaluationWeights.toString(tuned), iterations, (System.nanoTime() - startTime) / 1000000));
+			EvaluationWeights.write(new File(args[0]), tuned, "Fitted by EvaluationTuner to " + positions.size()
+					+ " positions, error " + startError + " -> " + tunedError);
+			System.out.println("Wrote " + args[0]);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
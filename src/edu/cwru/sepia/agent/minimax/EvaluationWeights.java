@@ -0,0 +1,126 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * The weights of GameState's evaluation, a weighted sum of the features
+ * below, and the file they are read from.
+ *
+ * The file is a properties file with one line per feature (name=weight); a
+ * feature it leaves out keeps its default. It is -Dminimax.weightsFile, or
+ * data/evaluation.weights if that is not set, and is read once when the first
+ * GameState is made. EvaluationTuner writes it. Without a file the defaults
+ * are used, which are the original hand picked evaluation: minus 10 per hop
+ * to the nearest archer, minus every unit's HP (the footmen's included, as
+ * the original HP metric never recognised them).
+ */
+final class EvaluationWeights {
+
+	//Summed HP of the footmen, and of the archers
+	static final int FOOTMAN_HP = 0;
+	static final int ARCHER_HP = 1;
+	//Summed hops from each footman to its nearest archer (at the evaluation tier asked for)
+	static final int DISTANCE = 2;
+	//Footmen, and archers, with HP left
+	static final int FOOTMEN_ALIVE = 3;
+	static final int ARCHERS_ALIVE = 4;
+	static final int FEATURES = 5;
+
+	static final String[] NAMES = { "footmanHp", "archerHp", "distance", "footmenAlive", "archersAlive" };
+	private static final double[] DEFAULTS = { -1, -1, -10, 0, 0 };
+
+	static final String DEFAULT_FILE = "data/evaluation.weights";
+
+	private EvaluationWeights() {
+	}
+
+	static double[] defaults() {
+		return DEFAULTS.clone();
+	}
+
+	/**
+	 * The weights from -Dminimax.weightsFile (or the default file), or the
+	 * defaults if there is no such file. A file that is there but can't be
+	 * used is reported and the defaults are used instead.
+	 */
+	static double[] load() {
+		String name = System.getProperty("minimax.weightsFile");
+		File file = new File(name != null ? name : DEFAULT_FILE);
+		if (!file.exists()) {
+			if (name != null) {
+				System.err.println("No evaluation weights file " + file + ", using the defaults");
+			}
+			return defaults();
+		}
+		try {
+			return read(file);
+		} catch (IOException e) {
+			System.err.println("Cannot use the evaluation weights: " + e.getMessage() + ", using the defaults");
+			return defaults();
+		}
+	}
+
+	static double[] read(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		double[] weights = defaults();
+		for (String key : properties.stringPropertyNames()) {
+			int feature = indexOf(key);
+			if (feature < 0) {
+				throw new IOException(file + ": unknown feature " + key);
+			}
+			try {
+				weights[feature] = Double.parseDouble(properties.getProperty(key).trim());
+			} catch (NumberFormatException e) {
+				throw new IOException(file + ": bad weight for " + key + ": " + properties.getProperty(key));
+			}
+		}
+		return weights;
+	}
+
+	static void write(File file, double[] weights, String comment) throws IOException {
+		Properties properties = new Properties();
+		for (int feature = 0; feature < FEATURES; feature++) {
+			properties.setProperty(NAMES[feature], Double.toString(weights[feature]));
+		}
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, comment);
+		} finally {
+			out.close();
+		}
+	}
+
+	static String toString(double[] weights) {
+		StringBuilder text = new StringBuilder();
+		for (int feature = 0; feature < FEATURES; feature++) {
+			text.append(feature == 0 ? "" : ", ").append(NAMES[feature]).append('=')
+					.append(String.format("%.4f", weights[feature]));
+		}
+		return text.toString();
+	}
+
+	private static int indexOf(String name) {
+		for (int feature = 0; feature < FEATURES; feature++) {
+			if (NAMES[feature].equals(name.trim())) {
+				return feature;
+			}
+		}
+		return -1;
+	}
+}
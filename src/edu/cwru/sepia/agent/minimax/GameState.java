@@ -90,6 +90,9 @@ public class GameState {
 			this.type = type;
 		}
 		public UnitState(UnitState unitState) {
+			copyFrom(unitState);
+		}
+		void copyFrom(UnitState unitState) {
 			this.xPosition = unitState.xPosition;
 			this.yPosition = unitState.yPosition;
 			this.unitHP = unitState.unitHP;
@@ -100,16 +103,54 @@ public class GameState {
 		}
 	}
 
-	private List<Integer> friendlyUnitIDs = new ArrayList<Integer>();
-	private List<Integer> enemyUnitIDs = new ArrayList<Integer>();
-	private HashSet<MapLocation> resourceLocations = new HashSet<MapLocation>();
-	private HashSet<AstarAgent.MapLocation> AstarResourceLocations = new HashSet<AstarAgent.MapLocation>();
-	AstarAgent searchAgent = new AstarAgent(0);
+	//These five are filled in when a state is built from the game and never change afterwards, so copies share them
+	private List<Integer> friendlyUnitIDs;
+	private List<Integer> enemyUnitIDs;
+	private HashSet<MapLocation> resourceLocations;
+	private HashSet<AstarAgent.MapLocation> AstarResourceLocations;
+	AstarAgent searchAgent;
 	private int mapXExtent;
 	private int mapYExtent;
-	//units[0] and units[1] are footmen; units[2] and units [3] are archers
-	private UnitState[] units = new UnitState[4];
-	private int numArchers; //We always have 2 footmen, only the number of archers will change, so store it 
+	//All footmen first (friendlyUnitIDs.size() of them), then all archers; sized when the state is built
+	private UnitState[] units;
+	private int numArchers;
+	//Precomputed static distances for this map, shared by every state; null if the agent did not open one
+	private DistanceTable distanceTable;
+	//Obstacle cells indexed y * mapXExtent + x, and the joint footmen planner built on them (shared by all copies)
+	private boolean[] blocked;
+	private long layoutHash;
+	private int[] symmetries;
+	//The obstacles as bit rows, for hop distances the table can't answer; null on maps wider than 64
+	private HopBitboard bitboard;
+	//Which cells can reach which, so a bounded search tells an unreachable archer from a far one (shared)
+	private Connectivity connectivity;
+	private CooperativePlanner cooperativePlanner;
+	//How many turns ahead the two footmen are planned jointly
+	private static final int COOPERATIVE_WINDOW = 8;
+	//Exact results for one footman against one archer on this map; null if the agent did not open them
+	private EndgameTablebase endgameTablebase;
+	//The moves (MoveCode, per unit slot) of the side that moved last, or of the side part way through
+	//playing its turn one unit at a time (see MoveGenerator) while turnInProgress is set
+	private int[] turnMoves;
+	private boolean turnInProgress;
+	//getUtility's result once worked out (here or by BatchEvaluator); NaN until then and after any change to the units
+	private double utility = Double.NaN;
+	//What the search sorts siblings by: the evaluation at whichever tier it could afford for them
+	private double orderValue = Double.NaN;
+
+	/**
+	 * Evaluation tiers, cheapest first; see evaluate. Each has getUtility's
+	 * form (the same weighted features, with cheaper hop counts) so they rank
+	 * states alike, but only TIER_FULL gives the real utility.
+	 */
+	static final int TIER_ESTIMATE = 0;
+	static final int TIER_TABLE = 1;
+	static final int TIER_FULL = 2;
+	static final int TIERS = 3;
+	//Utility of a solved win, less one per ply it takes, so it beats any heuristic value and quicker wins come first
+	private static final double ENDGAME_WIN = 1000000;
+	//The evaluation's feature weights, indexed as in EvaluationWeights; read once for all states
+	private static final double[] weights = EvaluationWeights.load();
 
 	/**
 	 * You will implement this constructor. It will extract all of the needed
@@ -137,9 +178,14 @@ public class GameState {
 	public GameState(State.StateView state) {
 
 		// Initialize the archers and footmen arrays here
+		searchAgent = new AstarAgent(0);
+		resourceLocations = new HashSet<MapLocation>();
+		AstarResourceLocations = new HashSet<AstarAgent.MapLocation>();
 		friendlyUnitIDs = state.getUnitIds(0);
 		enemyUnitIDs = state.getUnitIds(1);
 		numArchers = enemyUnitIDs.size();
+		units = new UnitState[friendlyUnitIDs.size() + numArchers];
+		turnMoves = new int[units.length];
 		// Fill the units array with UnitState objects that tracks the stats of each unit (archers)
 		int index = 0;
 		for (Integer unitID : friendlyUnitIDs) {
@@ -179,26 +225,112 @@ public class GameState {
 		// Get the boundaries (size) of the entire map s
 		mapXExtent = state.getXExtent();
 		mapYExtent = state.getYExtent();
+		distanceTable = DistanceTable.lookup(state);
+		blocked = DistanceTable.obstacleGrid(state);
+		layoutHash = DistanceTable.layoutHash(mapXExtent, mapYExtent, blocked);
+		symmetries = CanonicalKey.symmetries(mapXExtent, mapYExtent, blocked);
+		bitboard = HopBitboard.forMap(mapXExtent, mapYExtent, blocked);
+		connectivity = Connectivity.forMap(mapXExtent, mapYExtent, blocked);
+		searchAgent.setLandmarks(Landmarks.forMap(mapXExtent, mapYExtent, blocked));
+		searchAgent.setConnectivity(connectivity);
+		searchAgent.setPathDatabase(PathDatabase.lookup(layoutHash));
+		cooperativePlanner = new CooperativePlanner(mapXExtent, mapYExtent, blocked, distanceTable, COOPERATIVE_WINDOW);
+		endgameTablebase = EndgameTablebase.lookup(state);
 
 	}
+
+	/**
+	 * Builds the starting state straight from a compact map, for tools that
+	 * run without SEPIA. Player 0's units are the footmen and player 1's the
+	 * archers, as above.
+	 */
+	public GameState(CompactMap map) {
+		searchAgent = new AstarAgent(0);
+		resourceLocations = new HashSet<MapLocation>();
+		AstarResourceLocations = new HashSet<AstarAgent.MapLocation>();
+		friendlyUnitIDs = new ArrayList<Integer>();
+		enemyUnitIDs = new ArrayList<Integer>();
+		units = new UnitState[map.getUnits(0).size() + map.getUnits(1).size()];
+		turnMoves = new int[units.length];
+		int index = 0;
+		for (Integer unit : map.getUnits(0)) {
+			friendlyUnitIDs.add(map.getUnitID(unit));
+			units[index++] = new UnitState(map.getUnitX(unit), map.getUnitY(unit), map.getUnitHP(unit),
+					map.getUnitID(unit), map.getBasicAttack(unit), map.getRange(unit), "footman");
+		}
+		for (Integer unit : map.getUnits(1)) {
+			enemyUnitIDs.add(map.getUnitID(unit));
+			units[index++] = new UnitState(map.getUnitX(unit), map.getUnitY(unit), map.getUnitHP(unit),
+					map.getUnitID(unit), map.getBasicAttack(unit), map.getRange(unit), "archers");
+		}
+		numArchers = enemyUnitIDs.size();
+
+		mapXExtent = map.getXExtent();
+		mapYExtent = map.getYExtent();
+		blocked = map.getBlocked();
+		for (int cell = 0; cell < blocked.length; cell++) {
+			if (blocked[cell]) {
+				resourceLocations.add(new MapLocation(cell % mapXExtent, cell / mapXExtent));
+				AstarResourceLocations.add(searchAgent.new MapLocation(cell % mapXExtent, cell / mapXExtent, null, 0));
+			}
+		}
+		layoutHash = map.getLayoutHash();
+		symmetries = CanonicalKey.symmetries(mapXExtent, mapYExtent, blocked);
+		bitboard = HopBitboard.forMap(mapXExtent, mapYExtent, blocked);
+		connectivity = Connectivity.forMap(mapXExtent, mapYExtent, blocked);
+		searchAgent.setLandmarks(Landmarks.forMap(mapXExtent, mapYExtent, blocked));
+		searchAgent.setConnectivity(connectivity);
+		searchAgent.setPathDatabase(PathDatabase.lookup(layoutHash));
+		distanceTable = DistanceTable.lookup(layoutHash);
+		cooperativePlanner = new CooperativePlanner(mapXExtent, mapYExtent, blocked, distanceTable, COOPERATIVE_WINDOW);
+		endgameTablebase = EndgameTablebase.lookup(map);
+	}
 	
 	public GameState(GameState newState) {
 		//Initializes the new GameState object with the same fields as the one passed in
 		//Basically making a deep copy of a GameState object
+		copyFrom(newState);
+	}
 
-		friendlyUnitIDs.addAll(0, newState.friendlyUnitIDs); 
-		enemyUnitIDs.addAll(0, newState.enemyUnitIDs); 
-		
-		resourceLocations = new HashSet<MapLocation>(newState.resourceLocations);
-		AstarResourceLocations = new HashSet<AstarAgent.MapLocation>(newState.AstarResourceLocations);
+	/**
+	 * Turns this state into a copy of the other one. The units are copied (into
+	 * this state's own UnitStates when it has the right number already), and
+	 * everything that does not change during a search is shared. Used by
+	 * SearchArena to recycle states.
+	 */
+	void copyFrom(GameState newState) {
+		friendlyUnitIDs = newState.friendlyUnitIDs;
+		enemyUnitIDs = newState.enemyUnitIDs;
+		resourceLocations = newState.resourceLocations;
+		AstarResourceLocations = newState.AstarResourceLocations;
+		searchAgent = newState.searchAgent;
 		mapXExtent = newState.mapXExtent;
 		mapYExtent = newState.mapYExtent;
-		int j = 0;
-		while (j < 4 && newState.units[j] != null) {
-			units[j] = new UnitState(newState.units[j]);
-			j++;
+		if (units == null || units.length != newState.units.length) {
+			units = new UnitState[newState.units.length];
+			for (int j = 0; j < units.length; j++) {
+				units[j] = new UnitState(newState.units[j]);
+			}
+			turnMoves = new int[units.length];
+		}
+		else {
+			for (int j = 0; j < units.length; j++) {
+				units[j].copyFrom(newState.units[j]);
+			}
 		}
 		numArchers = newState.numArchers;
+		distanceTable = newState.distanceTable;
+		blocked = newState.blocked;
+		layoutHash = newState.layoutHash;
+		symmetries = newState.symmetries;
+		bitboard = newState.bitboard;
+		connectivity = newState.connectivity;
+		cooperativePlanner = newState.cooperativePlanner;
+		endgameTablebase = newState.endgameTablebase;
+		System.arraycopy(newState.turnMoves, 0, turnMoves, 0, turnMoves.length);
+		turnInProgress = newState.turnInProgress;
+		utility = newState.utility;
+		orderValue = newState.orderValue;
 	}
 
 	/**
@@ -223,54 +355,129 @@ public class GameState {
 	 */
 	public double getUtility() {
 		//System.out.println("GetUtility() called");
+		if (!Double.isNaN(utility)) {
+			return utility;
+		}
+		utility = weigh(fullDistanceMetric());
+		return utility;
+
+	}
+
+	//Summed A* hops from each footman to its nearest archer, as getUtility counts them
+	private double fullDistanceMetric() {
 		double distanceMetric = 0;
 
-		int numFootmen;
-		if (friendlyUnitIDs.size() < 2) {
-			numFootmen = 1;
+		int numFootmen = friendlyUnitIDs.size();
+		//When the two footmen are close enough to get in each other's way, plan them jointly so the
+		//distance accounts for them having to take turns through gaps instead of treating the other as a wall
+		if (footmenMayInteract(numFootmen)) {
+			distanceMetric = getCooperativeDistance(numFootmen);
 		}
-		else
-			numFootmen = 2;
-		//Loop through the footmen and archer, and calculate the min AStar distance between archers and footmen
+		//Otherwise loop through the footmen and archer, and calculate the min AStar distance between archers and footmen
 		//to include in the utility value
-		for (int i = 0; i < numFootmen; i++) {
+		else for (int i = 0; i < numFootmen; i++) {
 			double tempMin = (double)Integer.MAX_VALUE;
 			for (int j = numFootmen; j < numFootmen + numArchers; j++) {
-				//Set the locations of the footman and archer, and the other footman location to be 
-				//passed into Astar
-				AstarAgent.MapLocation footmanLoc = searchAgent.new MapLocation(units[i].xPosition, units[i].yPosition, null, 0);
-				AstarAgent.MapLocation archerLoc = searchAgent.new MapLocation(units[j].xPosition, units[j].yPosition, null, 0);
-				AstarAgent.MapLocation otherFootmanLoc;
-
-				if (numFootmen < 2) {
-					otherFootmanLoc = null;
-				}
-				else {
-					otherFootmanLoc = searchAgent.new MapLocation(units[1 - i].xPosition, units[1 - i].yPosition, null, 0);
-				}
-				
-				double hops = searchAgent.getHopDistance(footmanLoc, archerLoc, mapXExtent, mapYExtent,
-						otherFootmanLoc, AstarResourceLocations);
+				//With more than two footmen no single one is "the" blocker, so only a pair gets one
+				int other = numFootmen == 2 ? 1 - i : -1;
+
+				//Only an archer nearer than the nearest so far matters, so searches stop once they can't beat it
+				double hops = getHopDistance(i, j, other, tempMin);
 				tempMin = tempMin > hops
 						? hops : tempMin;
 			}
 
 			distanceMetric += tempMin;
 		}
+		return distanceMetric;
+	}
 
-		
-		//Now calculate the hpMetric to include in the utility value
-		int hpMetric = 0;
-		for (int j = 0; j < numFootmen + numArchers; j++) {
-			if (units[j].type.equals("footmen")) {
-				hpMetric += units[j].unitHP;
+	//The weighted sum of the features (see EvaluationWeights), given the distance one. BatchEvaluator adds
+	//the same terms in the same order, so that both give identical values
+	private double weigh(double distanceMetric) {
+		double value = 0;
+		for (int j = 0; j < units.length; j++) {
+			if (isFootman(j)) {
+				value += weights[EvaluationWeights.FOOTMAN_HP] * units[j].unitHP
+						+ (units[j].unitHP > 0 ? weights[EvaluationWeights.FOOTMEN_ALIVE] : 0);
+			}
+			else {
+				value += weights[EvaluationWeights.ARCHER_HP] * units[j].unitHP
+						+ (units[j].unitHP > 0 ? weights[EvaluationWeights.ARCHERS_ALIVE] : 0);
+			}
+		}
+		return value + weights[EvaluationWeights.DISTANCE] * distanceMetric;
+	}
+
+	//The evaluation's weight for a feature (see EvaluationWeights)
+	static double getWeight(int feature) {
+		return weights[feature];
+	}
+
+	/**
+	 * Fills features (EvaluationWeights.FEATURES long) with this state's
+	 * evaluation features, the distance counted at the given tier, so that
+	 * their weighted sum is evaluate(tier). Used by EvaluationTuner.
+	 */
+	void getFeatures(int tier, double[] features) {
+		Arrays.fill(features, 0);
+		features[EvaluationWeights.DISTANCE] = tier == TIER_FULL ? fullDistanceMetric() : estimatedDistanceMetric(tier);
+		for (int j = 0; j < units.length; j++) {
+			boolean footman = isFootman(j);
+			features[footman ? EvaluationWeights.FOOTMAN_HP : EvaluationWeights.ARCHER_HP] += units[j].unitHP;
+			if (units[j].unitHP > 0) {
+				features[footman ? EvaluationWeights.FOOTMEN_ALIVE : EvaluationWeights.ARCHERS_ALIVE]++;
+			}
+		}
+	}
+
+	/**
+	 * The evaluation at the given tier:
+	 * TIER_ESTIMATE counts each footman's hops to the nearest archer as if
+	 * the map were open (Manhattan distance), a few additions per unit pair.
+	 * TIER_TABLE reads them from the distance table instead, so walls count
+	 * but the other footman never gets in the way; pairs the table can't
+	 * answer fall back to Manhattan distance. TIER_FULL is getUtility, with A*
+	 * or the joint planner where the footmen may block each other.
+	 */
+	double evaluate(int tier) {
+		if (tier == TIER_FULL) {
+			return getUtility();
+		}
+		return weigh(estimatedDistanceMetric(tier));
+	}
+
+	//The distance feature at TIER_ESTIMATE or TIER_TABLE
+	private double estimatedDistanceMetric(int tier) {
+		int numFootmen = friendlyUnitIDs.size();
+		double distanceMetric = 0;
+		for (int i = 0; i < numFootmen; i++) {
+			int nearest = Integer.MAX_VALUE;
+			for (int j = numFootmen; j < units.length; j++) {
+				int hops = Math.abs(units[i].xPosition - units[j].xPosition)
+						+ Math.abs(units[i].yPosition - units[j].yPosition) - 1;
+				if (tier == TIER_TABLE && distanceTable != null && hops > 0
+						&& onMap(units[i].xPosition, units[i].yPosition)
+						&& onMap(units[j].xPosition, units[j].yPosition)) {
+					int distance = distanceTable.distance(units[i].xPosition, units[i].yPosition,
+							units[j].xPosition, units[j].yPosition);
+					if (distance != DistanceTable.UNREACHABLE) {
+						hops = distance - 1;
+					}
+				}
+				nearest = Math.min(nearest, Math.max(0, hops));
 			}
-			else
-				hpMetric -= units[j].unitHP;
+			distanceMetric += nearest;
 		}
+		return distanceMetric;
+	}
 
-		return  hpMetric - 10 * distanceMetric;
+	double getOrderValue() {
+		return orderValue;
+	}
 
+	void setOrderValue(double orderValue) {
+		this.orderValue = orderValue;
 	}
 
 	/**
@@ -289,266 +496,346 @@ public class GameState {
 	 * the following x += direction.xComponent() y += direction.yComponent()
 	 *
 	 * @return All possible actions and their associated resulting game state
+	 *
+	 * The moves themselves come from MoveGenerator: only the four cardinal
+	 * steps (or one attack per enemy in range) are generated for each unit,
+	 * and then combined into joint actions.
 	 */
 	public List<GameStateChild> getChildren(boolean playerTurn) {
 		//First check if all archers or all footmen are dead
 		if (friendlyUnitIDs.size() < 1 || enemyUnitIDs.size() < 1) {
-			System.out.println("GAME OVER!!");
+			Trace.log(Trace.INFO, "GAME OVER!!");
 			return null;
 		}
 		
 		
-		List<GameStateChild> childNodes = new ArrayList<GameStateChild>();
-		Map<Integer, Action> unitActions = new HashMap<Integer, Action>();
-		//GameState childState = new GameState(this);
-		//If it's the player's turn (our turn), we look at all the possible footmen moves
-		if (playerTurn) {
-			int firstFootmenID;
-			int footmen1X;
-			int footmen1Y;
-			int footmen2X;
-			int footmen2Y;
-			
-			firstFootmenID = friendlyUnitIDs.get(0);
-			footmen1X = units[0].xPosition;
-			footmen1Y = units[0].yPosition;
-			if (!(units[1].unitHP <= 0)) {
-				footmen2X = units[1].xPosition;
-				footmen2Y = units[1].yPosition;
+		//Each distinct joint action exactly once, collisions removed, most promising first.
+		//The search itself only keeps move codes, so the SEPIA actions are made here
+		List<GameStateChild> children = MoveGenerator.getChildren(this, playerTurn);
+		for (GameStateChild child : children) {
+			child.action = child.state.getActions();
+		}
+		return children;
+	}
+
+	//getChildren without SEPIA actions (GameStateChild.action is null), and with the children taken from a
+	//search arena if one is given (see SearchArena)
+	List<GameStateChild> getChildren(boolean playerTurn, SearchArena arena, int ply) {
+		if (friendlyUnitIDs.size() < 1 || enemyUnitIDs.size() < 1) {
+			return null;
+		}
+		return MoveGenerator.getChildren(this, playerTurn, arena, ply);
+	}
+
+	/**
+	 * The exact utility of this state from the endgame tablebase, or NaN if it
+	 * is not a solved position: anything but exactly one live footman against
+	 * one live archer, or a drawn chase.
+	 *
+	 * @param footmenTurn True if the footmen move next
+	 */
+	public double getEndgameValue(boolean footmenTurn) {
+		if (endgameTablebase == null) {
+			return Double.NaN;
+		}
+		int footman = -1;
+		int archer = -1;
+		for (int i = 0; i < getUnitCount(); i++) {
+			if (units[i].unitHP <= 0) {
+				continue;
 			}
-			else {
-				footmen2X = -1;
-				footmen2Y = -1;
+			if (isFootman(i)) {
+				if (footman >= 0) {
+					return Double.NaN;
+				}
+				footman = i;
 			}
-			//Iterate over all the possible directions starting with the first footmen
-			for (Direction direction : Direction.values()) {
-				GameState childState = new GameState(this);
-				int dirX = direction.xComponent();
-				int dirY = direction.yComponent();
-				// A big conditional to check that the direction of the move is
-				// not colliding with an obstacle,
-				// is not a diagonal move (not allowed), and is within the
-				// boundaries of the map
-				if ((dirX == 0 || dirY == 0)
-						&& !resourceLocations.contains(new MapLocation(footmen1X
-								+ dirX, footmen1Y + dirY))
-								&& footmen1Y + dirY >= 0 && footmen1X + dirX >= 0
-								&& footmen1Y + dirY <= mapYExtent
-								&& footmen1X + dirX <= mapXExtent) {
-					Action footAct;
-					
-					int temp1 = (footmen1X + dirX);
-					int temp2 = (footmen1Y + dirY);
-
-					//First check if the footmen is next to an archer, if it is, then always attack
-
-					int archerIndex;
-					if (friendlyUnitIDs.size() < 2) {
-						archerIndex = 1;
-					}
-					else
-						archerIndex = 2;
-					if (isAdjacent(this.units[0], this.units[archerIndex]) || (numArchers == 2 && isAdjacent(this.units[0], this.units[archerIndex + 1]))) {
-						//If adjacent to the first enemy archer
-						if (isAdjacent(this.units[0], this.units[archerIndex])) {
-							
-							footAct = Action.createPrimitiveAttack(firstFootmenID, enemyUnitIDs.get(0));
-							//Subtract from the archer's hp the basic attack damage of the footmen
-							childState.units[archerIndex].unitHP -= childState.units[0].basicAtt;
-						}
-						//Otherwise adjacent to the second enemy archer; Note, if adjacent to both archers,
-						//then the footman will still attack the first one
-						else {
-							footAct = Action.createPrimitiveAttack(firstFootmenID, enemyUnitIDs.get(1));
-							childState.units[archerIndex + 1].unitHP -= childState.units[0].basicAtt;
-						}
-					}
-					//If not close enough to attack, then create the action for footmen1 to move towards direction
-					else {
-						footAct = Action.createPrimitiveMove(firstFootmenID,
-								direction);
-						childState.units[0].xPosition = footmen1X + dirX;
-						childState.units[0].yPosition = footmen1Y + dirY;
-					}
-					
-					if (friendlyUnitIDs.size() < 2) {
-						unitActions.put(firstFootmenID, footAct);
-						childNodes.add(new GameStateChild(unitActions, childState));
-					}
-					//An inner loop that will iterate over the moves of the second footmen
-					for (Direction direction2 : Direction.values()) {
-						GameState innerState = new GameState(childState);
-						Map<Integer, Action> innerActions = new HashMap<Integer, Action>();
-						//If the one of the two footmen is dead, break out of this loop
-						if (friendlyUnitIDs.size() < 2) {
-							break;
-						}
-						innerState.units[0].xPosition = footmen1X + dirX;
-						innerState.units[0].yPosition = footmen1Y + dirY;
-						int secondFootmenID = friendlyUnitIDs.get(1);
-						int dir2X = direction2.xComponent();
-						int dir2Y = direction2.yComponent();
-						//Same as the first footmen; check that the next move is legal
-						if ((dir2X == 0 || dir2Y == 0)
-								&& !resourceLocations.contains(new MapLocation(footmen2X
-										+ dir2X, footmen2Y + dir2Y))
-										&& footmen2Y + dir2Y >= 0 && footmen2X + dir2X >= 0
-										&& footmen2Y + dir2Y <= mapYExtent
-										&& footmen2X + dir2X <= mapXExtent) {
-							Action footAct2;
-							//First check if the footmen is next to an archer, if it is, then always attack
-							if (isAdjacent(this.units[1], this.units[2]) || (numArchers == 2 && isAdjacent(this.units[1], this.units[3]))) {
-
-								//If adjacent to the first enemy archer
-								if (isAdjacent(this.units[1], this.units[2])) {
-
-									footAct2 = Action.createPrimitiveAttack(secondFootmenID, enemyUnitIDs.get(0));
-									innerState.units[2].unitHP -= innerState.units[1].basicAtt;
-								}
-								//Otherwise adjacent to the second enemy archer; Note, if adjacent to both archers,
-								//then the footman will still attack the first one
-								else {
-									footAct2 = Action.createPrimitiveAttack(secondFootmenID, enemyUnitIDs.get(1));
-									innerState.units[3].unitHP -= innerState.units[1].basicAtt;
-								}
-							}
-							//If not close enough to attack, then create the action for footmen1 to move towards direction
-							else {
-								footAct2 = Action.createPrimitiveMove(secondFootmenID,
-										direction2);
-								//Manually change the positions of the footmen via the UnitState object
-								innerState.units[1].xPosition = footmen2X + dir2X;
-								innerState.units[1].yPosition = footmen2Y + dir2Y;
-							}
-							innerActions.put(firstFootmenID, footAct);
-							innerActions.put(secondFootmenID, footAct2);
-
-							//GameState tempState = new GameState(childState);
-							childNodes.add(new GameStateChild(innerActions, innerState));
-						}
-					}
+			else {
+				if (archer >= 0) {
+					return Double.NaN;
 				}
+				archer = i;
 			}
-			return childNodes;
 		}
+		if (footman < 0 || archer < 0) {
+			return Double.NaN;
+		}
+		int plys = endgameTablebase.probe(units[footman].xPosition, units[footman].yPosition, units[footman].unitHP,
+				units[footman].basicAtt, units[archer].xPosition, units[archer].yPosition, units[archer].unitHP,
+				units[archer].basicAtt, units[archer].range, footmenTurn);
+		if (plys == 0) {
+			return Double.NaN;
+		}
+		return plys > 0 ? ENDGAME_WIN - plys : -ENDGAME_WIN - plys;
+	}
 
-		//Otherwise, we are getting the child nodes of an archer
-		else {
-			
-			int firstArcherID = enemyUnitIDs.get(0);
-			int archerIndex;
-			if (friendlyUnitIDs.size() < 2) {
-				archerIndex = 1;
+	//Footmen further apart than twice the planning window cannot meet inside it, so joint planning can't help.
+	//The planner handles a pair, so bigger teams always use the per footman distances
+	private boolean footmenMayInteract(int numFootmen) {
+		if (numFootmen != 2 || units[0].unitHP <= 0 || units[1].unitHP <= 0) {
+			return false;
+		}
+		for (int i = 0; i < numFootmen + numArchers; i++) {
+			if (!onMap(units[i].xPosition, units[i].yPosition)) {
+				return false;
 			}
-			else {
-				archerIndex = 2;
+		}
+		return Math.abs(units[0].xPosition - units[1].xPosition)
+				+ Math.abs(units[0].yPosition - units[1].yPosition) <= 2 * COOPERATIVE_WINDOW;
+	}
+
+	//Summed moves for both footmen to get next to an archer, planned together with a reservation table
+	private double getCooperativeDistance(int numFootmen) {
+		return cooperativePlanner.jointCost(this);
+	}
+
+
+	//Same result as searchAgent.getHopDistance, but answered from the distance table whenever the
+	//other footman cannot be in the way: if going through the blocker is strictly longer than the
+	//static shortest path, then some shortest path avoids it and the static distance is exact.
+	//Otherwise a bitboard flood fill around the blocker gives it; A* is left for cells off the map
+	//and maps too wide for a bitboard. Either of those gives up once the goal is at least bound hops
+	//away and returns bound (see the bounded AstarAgent.getHopDistance). An archer there is no way to
+	//counts 0 hops whatever the bound, as the unbounded search has it, so the result is always
+	//min(unbounded result, bound).
+	//Takes unit slots (blocker -1 for none), so only the A* fallback has to build MapLocations.
+	private double getHopDistance(int footman, int archer, int blocker, double bound) {
+		int startX = units[footman].xPosition;
+		int startY = units[footman].yPosition;
+		int goalX = units[archer].xPosition;
+		int goalY = units[archer].yPosition;
+		boolean hasBlocker = blocker >= 0;
+		int blockerX = hasBlocker ? units[blocker].xPosition : -1;
+		int blockerY = hasBlocker ? units[blocker].yPosition : -1;
+		if (distanceTable != null && onMap(startX, startY) && onMap(goalX, goalY)
+				&& (!hasBlocker || onMap(blockerX, blockerY))) {
+			if (startX == goalX && startY == goalY) {
+				return 0;
 			}
-			//Get the coordinates of the 2 archers
-			int archer1X = units[archerIndex].xPosition;
-			int archer1Y = units[archerIndex].yPosition;
-			//Iterate over all the possible directions starting with the first archer
-			for (Direction direction : Direction.values()) {
-				GameState childState = new GameState(this);
-				int dirX = direction.xComponent();
-				int dirY = direction.yComponent();
-				// A big conditional to check that the direction of the move is
-				// not colliding with an obstacle,
-				// is not a diagonal move (not allowed), and is within the
-				// boundaries of the map
-				if ((dirX == 0 || dirY == 0)
-						&& !resourceLocations.contains(new MapLocation(archer1X
-								+ dirX, archer1Y + dirY))
-								&& archer1Y + dirY >= 0 && archer1X + dirX >= 0
-								&& archer1Y + dirY <= mapYExtent
-								&& archer1X + dirX <= mapXExtent) {
-					Action archerAct;
-					if (friendlyUnitIDs.size() < 2) {
-						archerIndex = 1;
-					}
-					else
-						archerIndex = 2;
-					//If a footmen is within range of the first archer
-					if (getDistance(this.units[0], this.units[archerIndex]) <= this.units[archerIndex].range || (friendlyUnitIDs.size() > 1 &&
-							getDistance(this.units[1], this.units[2]) <= this.units[2].range)) {
-						//If within range of the first footmen
-						if (getDistance(this.units[0], this.units[archerIndex]) <= this.units[archerIndex].range) {
-							archerAct = Action.createPrimitiveAttack(firstArcherID, friendlyUnitIDs.get(0));
-							childState.units[0].unitHP -= childState.units[archerIndex].basicAtt;
-
-						}
-						//Otherwise within range of the second footmen, shoot it! If within range of both footmen
-						//Then it will still shoot the first one
-						else 
-							archerAct = Action.createPrimitiveAttack(firstArcherID, friendlyUnitIDs.get(1));
-							childState.units[1].unitHP -= childState.units[archerIndex].basicAtt;
-					}
-					//Create the action for archer1 to move towards direction
-					else {
-						archerAct = Action.createCompoundMove(firstArcherID,
-								archer1X + dirX, archer1Y + dirY);
-						childState.units[archerIndex].xPosition = archer1X + dirX;
-						childState.units[archerIndex].yPosition = archer1Y + dirY;
-					}
-							
-					
-					if (enemyUnitIDs.size() < 2) {
-						unitActions.put(firstArcherID, archerAct);
-						childNodes.add(new GameStateChild(unitActions, childState));
-					}
-					//An inner loop that will iterate over the moves of the second archer (if it exists)
-					if (numArchers > 1) {
-						int secondArcherID = enemyUnitIDs.get(1);
-						int archer2X = units[archerIndex + 1].xPosition;
-						int archer2Y = units[archerIndex + 1].yPosition;
-						for (Direction direction2 : Direction.values()) {
-							GameState innerState = new GameState(childState);
-							Map<Integer, Action> innerActions = new HashMap<Integer, Action>();
-							int dir2X = direction2.xComponent();
-							int dir2Y = direction2.yComponent();
-							innerState.units[archerIndex].xPosition = archer1X + dirX;
-							innerState.units[archerIndex].yPosition = archer1Y + dirY;
-							//check that the next move is legal
-							if ((dir2X == 0 || dir2Y == 0)
-									&& !resourceLocations.contains(new MapLocation(archer2X
-											+ dir2X, archer2Y + dir2Y))
-											&& archer2Y + dir2Y >= 0 && archer2X + dir2X >= 0
-											&& archer2Y + dir2Y <= mapYExtent
-											&& archer2X + dir2X <= mapXExtent) {
-								Action archerAct2;
-								if (getDistance(this.units[0], this.units[archerIndex + 1]) <= this.units[archerIndex + 1].range || (friendlyUnitIDs.size() > 1 &&
-										getDistance(this.units[1], this.units[archerIndex + 1]) <= this.units[archerIndex + 1].range)) {
-									//If within range of first footmen, shoot it
-									if (getDistance(this.units[0], this.units[archerIndex + 1]) <= this.units[archerIndex + 1].range) {
-										archerAct2 = Action.createPrimitiveAttack(secondArcherID, friendlyUnitIDs.get(0));
-										innerState.units[0].unitHP -= innerState.units[archerIndex + 1].basicAtt;
-									}
-
-									else {
-										archerAct2 = Action.createPrimitiveAttack(secondArcherID, friendlyUnitIDs.get(1));
-										innerState.units[1].unitHP -= innerState.units[archerIndex + 1].basicAtt;
-									}
-								}
-								//Create the action for archer2 to move towards direction
-								else {
-									archerAct2 = Action.createCompoundMove(firstArcherID,
-											archer1X + dirX, archer1Y + dirY);
-									//Manually change the positions of the footmen and archers via the UnitState object								
-									innerState.units[archerIndex + 1].xPosition = archer2X + dir2X;
-									innerState.units[archerIndex + 1].yPosition = archer2Y + dir2Y;
-								}
-								innerActions.put(firstArcherID, archerAct);
-								innerActions.put(secondArcherID, archerAct2);
-
-								
-								childNodes.add(new GameStateChild(innerActions, innerState));
-							}
-						}
-					}
+			if (hasBlocker && goalX == blockerX && goalY == blockerY) {
+				return (double)Integer.MAX_VALUE;
+			}
+			int distance = distanceTable.distance(startX, startY, goalX, goalY);
+			if (distance != DistanceTable.UNREACHABLE) {
+				if (!hasBlocker) {
+					return distance - 1;
+				}
+				int viaBlocker = distanceTable.distance(startX, startY, blockerX, blockerY)
+						+ distanceTable.distance(blockerX, blockerY, goalX, goalY);
+				if (viaBlocker > distance) {
+					return distance - 1;
 				}
 			}
-			return childNodes;
 		}
+		if (bitboard != null && bitboard.onMap(startX, startY) && bitboard.onMap(goalX, goalY)
+				&& (!hasBlocker || bitboard.onMap(blockerX, blockerY))) {
+			if (hasBlocker && goalX == blockerX && goalY == blockerY) {
+				return (double)Integer.MAX_VALUE;
+			}
+			//Hops are steps - 1, so bound steps is the most that can still come in under bound hops
+			int maxSteps = (int) Math.min(bound, Integer.MAX_VALUE);
+			int distance = bitboard.distance(startX, startY, goalX, goalY, blockerX, blockerY, maxSteps);
+			if (distance == HopBitboard.BEYOND) {
+				int reach = connectivity.reachable(startX, startY, goalX, goalY, blockerX, blockerY);
+				if (reach == Connectivity.UNKNOWN) {
+					//A cell is an obstacle, so only a complete fill can tell
+					distance = bitboard.distance(startX, startY, goalX, goalY, blockerX, blockerY);
+					reach = distance == HopBitboard.UNREACHABLE ? Connectivity.UNREACHABLE : Connectivity.REACHABLE;
+				}
+				return reach == Connectivity.REACHABLE ? bound : 0;
+			}
+			//A* gives an empty path, so 0 hops, both when already there and when there is no way through
+			return distance == HopBitboard.UNREACHABLE || distance == 0 ? 0 : distance - 1;
+		}
+		return searchAgent.getHopDistance(searchAgent.new MapLocation(startX, startY, null, 0),
+				searchAgent.new MapLocation(goalX, goalY, null, 0), mapXExtent, mapYExtent,
+				hasBlocker ? searchAgent.new MapLocation(blockerX, blockerY, null, 0) : null,
+				AstarResourceLocations, layoutHash, bound);
+	}
+
+
+	private boolean onMap(int x, int y) {
+		return x >= 0 && y >= 0 && x < mapXExtent && y < mapYExtent;
+	}
+
+	//Package level accessors for MoveGenerator and the other search helpers. Unit slots are the
+	//footmen first (getFootmanCount() of them), then the archers
+	int getUnitCount() {
+		return friendlyUnitIDs.size() + numArchers;
+	}
+
+	int getFootmanCount() {
+		return friendlyUnitIDs.size();
+	}
+
+	boolean isFootman(int unit) {
+		return unit < friendlyUnitIDs.size();
+	}
+
+	int getUnitX(int unit) {
+		return units[unit].xPosition;
+	}
+
+	int getUnitY(int unit) {
+		return units[unit].yPosition;
+	}
+
+	int getUnitHP(int unit) {
+		return units[unit].unitHP;
+	}
+
+	int getUnitID(int unit) {
+		return units[unit].ID;
+	}
+
+	int getUnitAttack(int unit) {
+		return units[unit].basicAtt;
+	}
+
+	int getUnitRange(int unit) {
+		return units[unit].range;
+	}
+
+	int getMapXExtent() {
+		return mapXExtent;
+	}
+
+	int getMapYExtent() {
+		return mapYExtent;
+	}
+
+	//False while some live unit of the side to move still has to pick its part of the team turn
+	boolean isTurnComplete() {
+		return !turnInProgress;
+	}
+
+	boolean hasMoved(int unit) {
+		return turnInProgress && turnMoves[unit] != MoveCode.NONE;
+	}
+
+	//The MoveCode the unit played in the last (or current, while it is in progress) team turn
+	int getTurnMove(int unit) {
+		return turnMoves[unit];
+	}
 
+	//Starts the turn of the side about to move, forgetting the other side's moves
+	void startTurn() {
+		Arrays.fill(turnMoves, MoveCode.NONE);
+		turnInProgress = false;
+	}
+
+	//Records one unit's move in a turn played all at once
+	void setTurnMove(int unit, int code) {
+		turnMoves[unit] = code;
+	}
+
+	/**
+	 * Records that a unit picked its part of the team turn. Once every live
+	 * unit of its side has, the turn is complete again.
+	 */
+	void finishUnitMove(int unit, int code) {
+		turnMoves[unit] = code;
+		for (int i = 0; i < units.length; i++) {
+			if (isFootman(i) == isFootman(unit) && units[i].unitHP > 0 && turnMoves[i] == MoveCode.NONE) {
+				turnInProgress = true;
+				return;
+			}
+		}
+		turnInProgress = false;
+	}
+
+	/**
+	 * The SEPIA actions for the moves of the last team turn (or of the part of
+	 * it picked so far), by unit ID. Only needed for the move that gets played.
+	 */
+	Map<Integer, Action> getActions() {
+		Map<Integer, Action> actions = new HashMap<Integer, Action>();
+		for (int unit = 0; unit < units.length; unit++) {
+			Action action = MoveCode.toAction(turnMoves[unit], this);
+			if (action != null) {
+				actions.put(units[unit].ID, action);
+			}
+		}
+		return actions;
+	}
+
+	//Hash of the map's extents and obstacles (see DistanceTable.layoutHash)
+	long getLayoutHash() {
+		return layoutHash;
+	}
+
+	//The reflections and rotations that map this map's obstacles onto themselves (see CanonicalKey)
+	int[] getSymmetries() {
+		return symmetries;
+	}
+
+	void setUnitPosition(int unit, int x, int y) {
+		units[unit].xPosition = x;
+		units[unit].yPosition = y;
+		utility = Double.NaN;
+	}
+
+	void damageUnit(int unit, int damage) {
+		units[unit].unitHP -= damage;
+		utility = Double.NaN;
+	}
+
+	boolean hasUtility() {
+		return !Double.isNaN(utility);
+	}
+
+	//For BatchEvaluator, which works out exactly what getUtility would
+	void setUtility(double utility) {
+		this.utility = utility;
+	}
+
+	DistanceTable getDistanceTable() {
+		return distanceTable;
+	}
+
+	//True if getUtility plans the footmen jointly here instead of adding up per footman distances
+	boolean usesCooperativeDistance() {
+		return footmenMayInteract(getFootmanCount());
+	}
+
+	//True for cells off the map or holding an obstacle
+	boolean isBlocked(int x, int y) {
+		return !onMap(x, y) || blocked[y * mapXExtent + x];
+	}
+
+	/**
+	 * True if the other state has the same units in the same places with the
+	 * same HP, where two identical units of one side may be swapped.
+	 */
+	boolean sameSituation(GameState other) {
+		return sameSituation(other, new boolean[getUnitCount()]);
+	}
+
+	//The same, with scratch for which of the other state's units are taken (at least getUnitCount() long)
+	boolean sameSituation(GameState other, boolean[] matched) {
+		int count = getUnitCount();
+		if (other.getUnitCount() != count) {
+			return false;
+		}
+		Arrays.fill(matched, 0, count, false);
+		for (int i = 0; i < count; i++) {
+			boolean found = false;
+			for (int j = 0; j < count && !found; j++) {
+				if (!matched[j] && isFootman(i) == other.isFootman(j)
+						&& units[i].xPosition == other.units[j].xPosition
+						&& units[i].yPosition == other.units[j].yPosition
+						&& units[i].unitHP == other.units[j].unitHP
+						&& units[i].basicAtt == other.units[j].basicAtt
+						&& units[i].range == other.units[j].range) {
+					matched[j] = true;
+					found = true;
+				}
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	//A helper function to get the distance (pythagorean) between two units
@@ -0,0 +1,114 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * A map as one long per row (bit x of row y is cell (x, y)), for working out
+ * hop distances with a moving blocker in it.
+ *
+ * The distance table can't answer those whenever the blocker (the other
+ * footman) might be on every shortest path, and running the object based A*
+ * there was most of what getUtility cost. Here the search is a breadth first
+ * flood fill a whole layer at a time: a row's next frontier is its current
+ * frontier shifted left and right plus the rows above and below, masked by the
+ * row's free cells and what has been reached already. One layer over a 25 by
+ * 19 map is a few dozen word operations, and a query allocates only three
+ * arrays of one long per row.
+ *
+ * Only maps up to 64 cells wide fit; forMap returns null for wider ones and
+ * callers keep using A* there. Immutable, so every state on the map (and
+ * every search thread) shares one.
+ */
+class HopBitboard {
+
+	static final int MAX_WIDTH = 64;
+	static final int UNREACHABLE = -1;
+	//distance gave up at maxSteps
+	static final int BEYOND = -2;
+
+	private final int xExtent;
+	private final int yExtent;
+	//Bit x of free[y] is set when (x, y) is on the map and not an obstacle
+	private final long[] free;
+
+	private HopBitboard(int xExtent, int yExtent, long[] free) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.free = free;
+	}
+
+	/**
+	 * The bitboard for a map with these obstacles (indexed y * xExtent + x), or
+	 * null if the map is too wide.
+	 */
+	static HopBitboard forMap(int xExtent, int yExtent, boolean[] blocked) {
+		if (xExtent < 1 || xExtent > MAX_WIDTH || yExtent < 1) {
+			return null;
+		}
+		long[] free = new long[yExtent];
+		for (int y = 0; y < yExtent; y++) {
+			for (int x = 0; x < xExtent; x++) {
+				if (!blocked[y * xExtent + x]) {
+					free[y] |= 1L << x;
+				}
+			}
+		}
+		return new HopBitboard(xExtent, yExtent, free);
+	}
+
+	boolean onMap(int x, int y) {
+		return x >= 0 && y >= 0 && x < xExtent && y < yExtent;
+	}
+
+	/**
+	 * The number of four way steps from start to goal that never enter an
+	 * obstacle or the blocker cell, or UNREACHABLE. Pass a negative blockerX
+	 * for no blocker. All cells must be on the map.
+	 */
+	int distance(int startX, int startY, int goalX, int goalY, int blockerX, int blockerY) {
+		return distance(startX, startY, goalX, goalY, blockerX, blockerY, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * As above, but the fill stops after maxSteps layers and returns BEYOND
+	 * if the goal is further than that (and reachable as far as it got).
+	 */
+	int distance(int startX, int startY, int goalX, int goalY, int blockerX, int blockerY, int maxSteps) {
+		if (startX == goalX && startY == goalY) {
+			return 0;
+		}
+		long blockerBit = blockerX >= 0 ? 1L << blockerX : 0;
+		long goalBit = 1L << goalX;
+		long[] reached = new long[yExtent];
+		long[] frontier = new long[yExtent];
+		long[] next = new long[yExtent];
+		reached[startY] = frontier[startY] = 1L << startX;
+
+		for (int steps = 1; ; steps++) {
+			long grown = 0;
+			long above = 0;
+			for (int y = 0; y < yExtent; y++) {
+				long row = frontier[y];
+				long below = y + 1 < yExtent ? frontier[y + 1] : 0;
+				long cells = (row << 1 | row >>> 1 | above | below) & free[y] & ~reached[y];
+				if (y == blockerY) {
+					cells &= ~blockerBit;
+				}
+				next[y] = cells;
+				reached[y] |= cells;
+				grown |= cells;
+				above = row;
+			}
+			if ((next[goalY] & goalBit) != 0) {
+				return steps;
+			}
+			if (grown == 0) {
+				return UNREACHABLE;
+			}
+			if (steps >= maxSteps) {
+				return BEYOND;
+			}
+			long[] swap = frontier;
+			frontier = next;
+			next = swap;
+		}
+	}
+}
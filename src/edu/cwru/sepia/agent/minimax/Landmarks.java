@@ -0,0 +1,164 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ALT (A*, landmarks, triangle inequality) lower bounds on hop distances.
+ *
+ * A few landmark cells are picked per map, far apart and towards the edges,
+ * and the 4-connected distance from each to every cell is stored. For any
+ * landmark L, |d(L, a) - d(L, b)| <= d(a, b), so the largest of those over the
+ * landmarks is a lower bound on the distance from a to b that knows about the
+ * walls in between, where Chebyshev and Manhattan distance only see open
+ * ground. Units are not obstacles here, and a unit in the way only makes a
+ * path longer, so the bound holds with a blocker too. It is also consistent,
+ * so AstarAgent's closed list stays correct with it.
+ *
+ * Built once per obstacle layout and shared by every AstarAgent and GameState
+ * on that map; immutable once built.
+ */
+class Landmarks {
+
+	//Landmarks per map; each costs one breadth first search and two bytes per cell
+	private static final int LANDMARKS = 8;
+	private static final char UNREACHABLE = (char) DistanceTable.UNREACHABLE;
+
+	//Tables built so far, keyed by layout hash (see DistanceTable.layoutHash)
+	private static final Map<Long, Landmarks> built = new HashMap<Long, Landmarks>();
+
+	private final int xExtent;
+	private final int yExtent;
+	//distances[landmark][y * xExtent + x]
+	private final char[][] distances;
+
+	private Landmarks(int xExtent, int yExtent, char[][] distances) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.distances = distances;
+	}
+
+	/**
+	 * The landmarks for a map with these obstacles (indexed y * xExtent + x),
+	 * building them the first time the map is seen.
+	 */
+	static synchronized Landmarks forMap(int xExtent, int yExtent, boolean[] blocked) {
+		long hash = DistanceTable.layoutHash(xExtent, yExtent, blocked);
+		Landmarks landmarks = built.get(hash);
+		if (landmarks == null) {
+			landmarks = build(xExtent, yExtent, blocked);
+			built.put(hash, landmarks);
+		}
+		return landmarks;
+	}
+
+	boolean covers(int xExtent, int yExtent) {
+		return this.xExtent == xExtent && this.yExtent == yExtent;
+	}
+
+	/**
+	 * A lower bound on the number of steps from (fromX, fromY) to (toX, toY):
+	 * the landmark bound or the Manhattan distance, whichever is larger.
+	 */
+	int lowerBound(int fromX, int fromY, int toX, int toY) {
+		int bound = Math.abs(fromX - toX) + Math.abs(fromY - toY);
+		if (fromX < 0 || fromY < 0 || fromX >= xExtent || fromY >= yExtent
+				|| toX < 0 || toY < 0 || toX >= xExtent || toY >= yExtent) {
+			return bound;
+		}
+		int from = fromY * xExtent + fromX;
+		int to = toY * xExtent + toX;
+		for (char[] row : distances) {
+			//A landmark in another region says nothing about this pair
+			if (row[from] != UNREACHABLE && row[to] != UNREACHABLE) {
+				bound = Math.max(bound, Math.abs(row[from] - row[to]));
+			}
+		}
+		return bound;
+	}
+
+	/*
+	 * Farthest point selection: the first landmark is the free cell furthest
+	 * from an arbitrary one, and each next is the free cell furthest from all
+	 * the landmarks so far. Far apart landmarks on the map's rim give the
+	 * tightest bounds for paths between them.
+	 */
+	private static Landmarks build(int xExtent, int yExtent, boolean[] blocked) {
+		int cells = xExtent * yExtent;
+		int first = 0;
+		while (first < cells && blocked[first]) {
+			first++;
+		}
+		if (first == cells) {
+			return new Landmarks(xExtent, yExtent, new char[0][]);
+		}
+		int[] queue = new int[cells];
+		char[] seed = distancesFrom(first, xExtent, yExtent, blocked, queue);
+		//Distance from each cell to its nearest landmark so far
+		char[] nearest = new char[cells];
+		Arrays.fill(nearest, UNREACHABLE);
+		char[][] distances = new char[Math.min(LANDMARKS, cells)][];
+		int count = 0;
+		int next = farthest(seed, blocked);
+		while (count < distances.length && next >= 0) {
+			char[] row = distancesFrom(next, xExtent, yExtent, blocked, queue);
+			distances[count++] = row;
+			for (int cell = 0; cell < cells; cell++) {
+				if (row[cell] < nearest[cell]) {
+					nearest[cell] = row[cell];
+				}
+			}
+			next = farthest(nearest, blocked);
+			if (next >= 0 && nearest[next] == 0) {
+				//Every free cell is a landmark already
+				break;
+			}
+		}
+		return new Landmarks(xExtent, yExtent, Arrays.copyOf(distances, count));
+	}
+
+	//The free, reachable cell with the largest distance in row; -1 if there is none
+	private static int farthest(char[] row, boolean[] blocked) {
+		int best = -1;
+		for (int cell = 0; cell < row.length; cell++) {
+			if (!blocked[cell] && row[cell] != UNREACHABLE && (best < 0 || row[cell] > row[best])) {
+				best = cell;
+			}
+		}
+		return best;
+	}
+
+	//Breadth first search from one cell, as in DistanceTable
+	private static char[] distancesFrom(int from, int xExtent, int yExtent, boolean[] blocked, int[] queue) {
+		char[] row = new char[xExtent * yExtent];
+		Arrays.fill(row, UNREACHABLE);
+		int head = 0;
+		int tail = 0;
+		row[from] = 0;
+		queue[tail++] = from;
+		while (head < tail) {
+			int current = queue[head++];
+			int x = current % xExtent;
+			int y = current / xExtent;
+			char next = (char) (row[current] + 1);
+			if (x > 0 && !blocked[current - 1] && row[current - 1] == UNREACHABLE) {
+				row[current - 1] = next;
+				queue[tail++] = current - 1;
+			}
+			if (x + 1 < xExtent && !blocked[current + 1] && row[current + 1] == UNREACHABLE) {
+				row[current + 1] = next;
+				queue[tail++] = current + 1;
+			}
+			if (y > 0 && !blocked[current - xExtent] && row[current - xExtent] == UNREACHABLE) {
+				row[current - xExtent] = next;
+				queue[tail++] = current - xExtent;
+			}
+			if (y + 1 < yExtent && !blocked[current + xExtent] && row[current + xExtent] == UNREACHABLE) {
+				row[current + xExtent] = next;
+				queue[tail++] = current + xExtent;
+			}
+		}
+		return row;
+	}
+}
@@ -0,0 +1,84 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * Counts of decision latencies in log-linear buckets, the way HdrHistogram
+ * does it: each power of two range of microseconds is split into
+ * SUB_BUCKETS equal buckets, so any recorded value is known to within
+ * 1 / SUB_BUCKETS of itself (about 6%), from a microsecond up to over an
+ * hour, in a fixed array of counts. Recording is a couple of shifts and an
+ * increment.
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//Enough power of two ranges for 2^32 microseconds
+	private static final int RANGES = 32;
+
+	private final long[] counts = new long[RANGES * SUB_BUCKETS];
+	private long total = 0;
+	private long maxMicros = 0;
+
+	void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts[bucket(micros)]++;
+		total++;
+		maxMicros = Math.max(maxMicros, micros);
+	}
+
+	long count() {
+		return total;
+	}
+
+	long maxMicros() {
+		return maxMicros;
+	}
+
+	/**
+	 * The smallest bucket bound (in microseconds) that at least the given
+	 * fraction of the recorded values are at or below; 0 if nothing was
+	 * recorded.
+	 */
+	long percentileMicros(double fraction) {
+		long wanted = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length && total > 0; bucket++) {
+			seen += counts[bucket];
+			if (seen >= Math.max(1, wanted)) {
+				return Math.min(upperBound(bucket), maxMicros);
+			}
+		}
+		return 0;
+	}
+
+	void reset() {
+		Arrays.fill(counts, 0);
+		total = 0;
+		maxMicros = 0;
+	}
+
+	//Values below SUB_BUCKETS get a bucket each; above that, the top SUB_BUCKET_BITS bits below the leading one pick it
+	private static int bucket(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int range = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+		if (range >= RANGES) {
+			return RANGES * SUB_BUCKETS - 1;
+		}
+		int sub = (int) (micros >>> (range - 1)) - SUB_BUCKETS;
+		return range * SUB_BUCKETS + sub;
+	}
+
+	//Largest value that falls in the bucket
+	private static long upperBound(int bucket) {
+		int range = bucket / SUB_BUCKETS;
+		int sub = bucket % SUB_BUCKETS;
+		if (range == 0) {
+			return sub;
+		}
+		return ((long) (SUB_BUCKETS + sub + 1) << (range - 1)) - 1;
+	}
+}
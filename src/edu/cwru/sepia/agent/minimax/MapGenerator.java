@@ -0,0 +1,422 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Makes footmen against archers maps of any size, for trying the search on
+ * more than the bundled 25 by 19 ones.
+ *
+ * A map is given by its size, an obstacle pattern, the number of footmen and
+ * archers and a random seed; the same arguments always give the same map.
+ * Patterns:
+ *
+ *     open      no obstacles
+ *     random    each cell is a tree with probability density
+ *     walls     vertical walls of trees with gaps, about density of the map,
+ *               like the bundled obstacle maps
+ *     rooms     walls both ways with a door in every stretch, rooms about
+ *               1 / density cells across
+ *     maze      a maze of one cell corridors (density is not used)
+ *
+ * Units only go in the largest connected open area, footmen towards the left
+ * edge and archers towards the right, so there is always a way between them.
+ *
+ * The map is written as a SEPIA state XML that Main2 can load, with the unit
+ * templates, HP and unit stats copied from a bundled map (-Dminimax.templateMap,
+ * data/Game2fv1a_Obstacles.xml by default), and also in CompactMap's binary
+ * form (read back from the XML, so the two always agree).
+ *
+ * Usage: MapGenerator <output base name> <width> <height> <pattern> <density>
+ * <footmen> <archers> <seed>, which writes <base>.xml and <base>.map.
+ */
+public class MapGenerator {
+
+	static final String[] PATTERNS = { "open", "random", "walls", "rooms", "maze" };
+	static final String DEFAULT_TEMPLATE_MAP = "data/Game2fv1a_Obstacles.xml";
+	//Longest side accepted; bigger maps would not fit CompactMap's int cell indexes comfortably
+	private static final int MAX_SIZE = 4096;
+
+	//A generated map: the obstacles (y * xExtent + x) and the units' cells, footmen first
+	static final class Layout {
+		final int xExtent;
+		final int yExtent;
+		final boolean[] blocked;
+		final int[] unitX;
+		final int[] unitY;
+		final int footmen;
+
+		Layout(int xExtent, int yExtent, boolean[] blocked, int[] unitX, int[] unitY, int footmen) {
+			this.xExtent = xExtent;
+			this.yExtent = yExtent;
+			this.blocked = blocked;
+			this.unitX = unitX;
+			this.unitY = unitY;
+			this.footmen = footmen;
+		}
+	}
+
+	/**
+	 * The obstacles and unit cells for these arguments; see the class comment.
+	 *
+	 * @throws IllegalArgumentException if the pattern is unknown, a size is
+	 *             out of range or there is no room for the units
+	 */
+	static Layout generate(int xExtent, int yExtent, String pattern, double density, int footmen, int archers,
+			long seed) {
+		if (xExtent < 2 || yExtent < 2 || xExtent > MAX_SIZE || yExtent > MAX_SIZE) {
+			throw new IllegalArgumentException("Map sizes must be 2 to " + MAX_SIZE + ": " + xExtent + "x" + yExtent);
+		}
+		if (footmen < 1 || archers < 1) {
+			throw new IllegalArgumentException("Need at least one footman and one archer");
+		}
+		Random random = new Random(seed);
+		boolean[] blocked = new boolean[xExtent * yExtent];
+		if (pattern.equals("random")) {
+			for (int cell = 0; cell < blocked.length; cell++) {
+				blocked[cell] = random.nextDouble() < density;
+			}
+		}
+		else if (pattern.equals("walls")) {
+			addWalls(blocked, xExtent, yExtent, spacing(density), true, false, random);
+		}
+		else if (pattern.equals("rooms")) {
+			int spacing = spacing(density);
+			addWalls(blocked, xExtent, yExtent, spacing, true, true, random);
+			addWalls(blocked, xExtent, yExtent, spacing, false, true, random);
+		}
+		else if (pattern.equals("maze")) {
+			carveMaze(blocked, xExtent, yExtent, random);
+		}
+		else if (!pattern.equals("open")) {
+			throw new IllegalArgumentException("Unknown pattern " + pattern + ", expected one of "
+					+ Arrays.toString(PATTERNS));
+		}
+
+		int[] area = largestArea(blocked, xExtent, yExtent);
+		if (area.length < footmen + archers) {
+			throw new IllegalArgumentException("Only " + area.length + " connected free cells for "
+					+ (footmen + archers) + " units");
+		}
+		int[] unitX = new int[footmen + archers];
+		int[] unitY = new int[footmen + archers];
+		boolean[] taken = new boolean[blocked.length];
+		for (int unit = 0; unit < unitX.length; unit++) {
+			boolean footman = unit < footmen;
+			//A few tries in the unit's own quarter of the map, then anywhere in the area
+			int cell = -1;
+			for (int attempt = 0; attempt < 64 && cell < 0; attempt++) {
+				int candidate = area[random.nextInt(area.length)];
+				int x = candidate % xExtent;
+				if (!taken[candidate] && (footman ? x < (xExtent + 3) / 4 : x >= xExtent - (xExtent + 3) / 4)) {
+					cell = candidate;
+				}
+			}
+			while (cell < 0) {
+				int candidate = area[random.nextInt(area.length)];
+				if (!taken[candidate]) {
+					cell = candidate;
+				}
+			}
+			taken[cell] = true;
+			unitX[unit] = cell % xExtent;
+			unitY[unit] = cell / xExtent;
+		}
+		return new Layout(xExtent, yExtent, blocked, unitX, unitY, footmen);
+	}
+
+	//Walls every spacing cells so that they cover about density of the map
+	private static int spacing(double density) {
+		return density <= 0 ? Integer.MAX_VALUE : Math.max(3, (int) Math.round(1 / density));
+	}
+
+	/**
+	 * Walls across the map every spacing columns (vertical) or rows. A wall
+	 * has a gap in each stretch of stretch cells along it: for rooms that is a
+	 * one cell door between each pair of crossing walls, otherwise a two cell
+	 * gap every 16 cells or so.
+	 */
+	private static void addWalls(boolean[] blocked, int xExtent, int yExtent, int spacing, boolean vertical,
+			boolean rooms, Random random) {
+		int across = vertical ? xExtent : yExtent;
+		int along = vertical ? yExtent : xExtent;
+		int stretch = rooms ? spacing : 16;
+		for (int line = spacing - 1; line < across - 1; line += spacing) {
+			boolean[] open = new boolean[along];
+			for (int from = 0; from < along; from += stretch) {
+				//Room doors stay off the crossing walls, which are at the end of each stretch
+				int length = Math.min(stretch, along - from) - (rooms && from + stretch <= along ? 1 : 0);
+				int at = from + random.nextInt(Math.max(1, length - (rooms ? 0 : 1)));
+				open[at] = true;
+				if (!rooms) {
+					open[Math.min(along - 1, at + 1)] = true;
+				}
+			}
+			for (int position = 0; position < along; position++) {
+				if (!open[position]) {
+					blocked[vertical ? position * xExtent + line : line * xExtent + position] = true;
+				}
+			}
+		}
+	}
+
+	//A perfect maze on the odd cells (depth first, with an explicit stack), everything else a wall
+	private static void carveMaze(boolean[] blocked, int xExtent, int yExtent, Random random) {
+		Arrays.fill(blocked, true);
+		int rooms = ((xExtent - 1) / 2) * ((yExtent - 1) / 2);
+		if (rooms == 0) {
+			Arrays.fill(blocked, false);
+			return;
+		}
+		int[] stack = new int[rooms];
+		int depth = 0;
+		int start = 1 * xExtent + 1;
+		blocked[start] = false;
+		stack[depth++] = start;
+		int[] stepX = { 2, -2, 0, 0 };
+		int[] stepY = { 0, 0, 2, -2 };
+		int[] options = new int[4];
+		while (depth > 0) {
+			int cell = stack[depth - 1];
+			int x = cell % xExtent;
+			int y = cell / xExtent;
+			int count = 0;
+			for (int direction = 0; direction < 4; direction++) {
+				int nextX = x + stepX[direction];
+				int nextY = y + stepY[direction];
+				//Rooms stay off the edge, so the maze keeps its outer wall
+				if (nextX >= 1 && nextY >= 1 && nextX <= xExtent - 2 && nextY <= yExtent - 2
+						&& blocked[nextY * xExtent + nextX]) {
+					options[count++] = stepY[direction] * xExtent + stepX[direction];
+				}
+			}
+			if (count == 0) {
+				depth--;
+				continue;
+			}
+			int step = options[random.nextInt(count)];
+			blocked[cell + step / 2] = false;
+			blocked[cell + step] = false;
+			stack[depth++] = cell + step;
+		}
+	}
+
+	//The cells of the largest 4-connected free area
+	private static int[] largestArea(boolean[] blocked, int xExtent, int yExtent) {
+		int[] label = new int[blocked.length];
+		int[] queue = new int[blocked.length];
+		int best = 0;
+		int bestSize = 0;
+		int next = 0;
+		for (int seed = 0; seed < blocked.length; seed++) {
+			if (blocked[seed] || label[seed] != 0) {
+				continue;
+			}
+			next++;
+			int size = fill(seed, next, blocked, label, queue, xExtent, yExtent);
+			if (size > bestSize) {
+				bestSize = size;
+				best = next;
+			}
+		}
+		int[] area = new int[bestSize];
+		int count = 0;
+		for (int cell = 0; cell < blocked.length && bestSize > 0; cell++) {
+			if (label[cell] == best) {
+				area[count++] = cell;
+			}
+		}
+		return area;
+	}
+
+	private static int fill(int seed, int mark, boolean[] blocked, int[] label, int[] queue, int xExtent, int yExtent) {
+		int head = 0;
+		int tail = 0;
+		label[seed] = mark;
+		queue[tail++] = seed;
+		while (head < tail) {
+			int cell = queue[head++];
+			int x = cell % xExtent;
+			int y = cell / xExtent;
+			if (x > 0) {
+				tail = visit(cell - 1, mark, blocked, label, queue, tail);
+			}
+			if (x + 1 < xExtent) {
+				tail = visit(cell + 1, mark, blocked, label, queue, tail);
+			}
+			if (y > 0) {
+				tail = visit(cell - xExtent, mark, blocked, label, queue, tail);
+			}
+			if (y + 1 < yExtent) {
+				tail = visit(cell + xExtent, mark, blocked, label, queue, tail);
+			}
+		}
+		return tail;
+	}
+
+	private static int visit(int cell, int mark, boolean[] blocked, int[] label, int[] queue, int tail) {
+		if (!blocked[cell] && label[cell] == 0) {
+			label[cell] = mark;
+			queue[tail++] = cell;
+		}
+		return tail;
+	}
+
+	/**
+	 * Writes the layout as a SEPIA state XML, with each player's unit
+	 * templates and its units' HP taken from the template map's player of the
+	 * same number.
+	 */
+	static void writeXml(Layout layout, File templateMap, File file) throws IOException {
+		String source = new String(Files.readAllBytes(templateMap.toPath()), Charset.forName("UTF-8"));
+		CompactMap stats = CompactMap.fromXml(templateMap);
+		int units = layout.unitX.length;
+		int trees = 0;
+		for (boolean cell : layout.blocked) {
+			if (cell) {
+				trees++;
+			}
+		}
+		Writer out = new BufferedWriter(new FileWriter(file), 1 << 16);
+		try {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+			//SEPIA gives units and resource nodes IDs from one counter
+			out.write("<state xExtent=\"" + layout.xExtent + "\" yExtent=\"" + layout.yExtent + "\" nextTargetID=\""
+					+ (units + trees) + "\" nextTemplateID=\"" + attribute(source, "nextTemplateID")
+					+ "\" fogOfWar=\"false\">\n");
+			for (int player = 0; player < 2; player++) {
+				String section = playerSection(source, player, templateMap);
+				List<Integer> sample = stats.getUnits(player);
+				if (sample.isEmpty()) {
+					throw new IOException(templateMap + " has no units for player " + player);
+				}
+				int hp = stats.getUnitHP(sample.get(0));
+				String templateID = element(section, "templateID", templateMap);
+				int from = player == 0 ? 0 : layout.footmen;
+				int to = player == 0 ? layout.footmen : units;
+				out.write("    <player>\n        <ID>" + player + "</ID>\n");
+				for (int unit = from; unit < to; unit++) {
+					out.write("        <unit>\n");
+					out.write("            <ID>" + unit + "</ID>\n");
+					out.write("            <currentHealth>" + hp + "</currentHealth>\n");
+					out.write("            <xPosition>" + layout.unitX[unit] + "</xPosition>\n");
+					out.write("            <yPosition>" + layout.unitY[unit] + "</yPosition>\n");
+					out.write("            <templateID>" + templateID + "</templateID>\n");
+					out.write("            <cargoAmount>0</cargoAmount>\n");
+					out.write("            <progressAmount>0</progressAmount>\n");
+					out.write("        </unit>\n");
+				}
+				int templates = section.indexOf("<template ");
+				int templatesEnd = section.lastIndexOf("</template>");
+				if (templates >= 0 && templatesEnd > templates) {
+					out.write("        ");
+					out.write(section, templates, templatesEnd + "</template>".length() - templates);
+					out.write("\n");
+				}
+				out.write("        <resourceAmount>\n            <quantity>0</quantity>\n            <type>GOLD</type>\n"
+						+ "        </resourceAmount>\n");
+				out.write("        <resourceAmount>\n            <quantity>0</quantity>\n            <type>WOOD</type>\n"
+						+ "        </resourceAmount>\n");
+				out.write("        <supply>" + (to - from) + "</supply>\n        <supplyCap>0</supplyCap>\n");
+				out.write("    </player>\n");
+			}
+			int id = units;
+			for (int cell = 0; cell < layout.blocked.length; cell++) {
+				if (!layout.blocked[cell]) {
+					continue;
+				}
+				out.write("    <resourceNode>\n");
+				out.write("        <ID>" + id++ + "</ID>\n");
+				out.write("        <type>TREE</type>\n");
+				out.write("        <xPosition>" + cell % layout.xExtent + "</xPosition>\n");
+				out.write("        <yPosition>" + cell / layout.xExtent + "</yPosition>\n");
+				out.write("        <initialAmount>0</initialAmount>\n");
+				out.write("        <amountRemaining>100</amountRemaining>\n");
+				out.write("    </resourceNode>\n");
+			}
+			out.write("</state>\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	//The text of the template map's <player> element with this ID
+	private static String playerSection(String source, int player, File templateMap) throws IOException {
+		int from = 0;
+		while ((from = source.indexOf("<player>", from)) >= 0) {
+			int end = source.indexOf("</player>", from);
+			if (end < 0) {
+				break;
+			}
+			String section = source.substring(from, end);
+			if (element(section, "ID", templateMap).equals(Integer.toString(player))) {
+				return section;
+			}
+			from = end;
+		}
+		throw new IOException(templateMap + " has no player " + player);
+	}
+
+	//The text of the first <name> element in the XML text
+	private static String element(String xml, String name, File templateMap) throws IOException {
+		int start = xml.indexOf("<" + name + ">");
+		int end = xml.indexOf("</" + name + ">", start);
+		if (start < 0 || end < 0) {
+			throw new IOException(templateMap + " has no " + name);
+		}
+		return xml.substring(start + name.length() + 2, end).trim();
+	}
+
+	private static String attribute(String xml, String name) {
+		int start = xml.indexOf(name + "=\"");
+		if (start < 0) {
+			return "0";
+		}
+		start += name.length() + 2;
+		return xml.substring(start, xml.indexOf('"', start));
+	}
+
+	static File templateMap() {
+		return new File(System.getProperty("minimax.templateMap", DEFAULT_TEMPLATE_MAP));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 8) {
+			System.err.println("Usage: MapGenerator <output base name> <width> <height> <pattern> <density> <footmen>"
+					+ " <archers> <seed>");
+			System.err.println("Patterns: " + Arrays.toString(PATTERNS));
+			System.exit(1);
+		}
+		long startTime = System.nanoTime();
+		Layout layout;
+		try {
+			layout = generate(Integer.parseInt(args[1]), Integer.parseInt(args[2]), args[3],
+					Double.parseDouble(args[4]), Integer.parseInt(args[5]), Integer.parseInt(args[6]),
+					Long.parseLong(args[7]));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+		File xml = new File(args[0] + ".xml");
+		File compact = new File(args[0] + ".map");
+		writeXml(layout, templateMap(), xml);
+		CompactMap map = CompactMap.fromXml(xml);
+		map.write(compact);
+		List<String> units = new ArrayList<String>();
+		for (int unit = 0; unit < layout.unitX.length; unit++) {
+			units.add((unit < layout.footmen ? "F" : "A") + "(" + layout.unitX[unit] + "," + layout.unitY[unit] + ")");
+		}
+		System.out.println(xml + " and " + compact + ": " + layout.xExtent + "x" + layout.yExtent + " " + args[3]
+				+ ", units " + units + ", " + (System.nanoTime() - startTime) / 1000000 + " ms");
+	}
+}
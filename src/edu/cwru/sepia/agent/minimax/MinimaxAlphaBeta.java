@@ -5,16 +5,101 @@ import edu.cwru.sepia.agent.Agent;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class MinimaxAlphaBeta extends Agent {
 
 	private final int numPlys;
 	private static int infinity = 999999999;
+	//History table and opening results, kept across episodes and saved with the player data
+	private final SearchKnowledge knowledge;
+	//How many predicted archer replies a min node searches; 0 searches all of them
+	private final int predictedReplies;
+	private OpponentModel opponentModel = new ArcherAgentModel();
+	//Search nodes below the root are recycled through this, indexed by how many minimax calls deep they are
+	private final SearchArena arena = new SearchArena();
+	private int searchPly = 0;
+	//Works out the utilities of a node's children in one go, before they are ordered (and, at the leaves, scored)
+	private final BatchEvaluator evaluator = new BatchEvaluator();
+	//Time spent and states evaluated at each GameState evaluation tier, for ordering children (see scoreChildren)
+	private final long[] tierNanos = new long[GameState.TIERS];
+	private final long[] tierStates = new long[GameState.TIERS];
+	//Values of positions searched so far this episode, by canonical key (so swapped and mirrored ones count as seen).
+	//Sized by -Dminimax.hashMb if set
+	private final TranspositionTable transpositions;
+	private final TranspositionTable.Entry stored = new TranspositionTable.Entry();
+	private final CanonicalKey canonicalKey = new CanonicalKey();
+	private static final int TRANSPOSITION_BITS = 18;
+	//Lazy SMP: with -Dminimax.threads=N, N - 1 helpers search each turn alongside this agent, sharing only the table
+	private final int numThreads = Math.max(1, Integer.getInteger("minimax.threads", 1));
+	private final MinimaxAlphaBeta[] helpers;
+	private ExecutorService helperPool;
+	//0 for the agent itself; helper n starts its root loop n moves down the ordering, and odd helpers go a ply deeper
+	private final int helperIndex;
+	//Set on a helper once the agent has its answer
+	private volatile boolean stopRequested = false;
+	//minimax calls, to report nodes per second
+	private long nodes = 0;
+	private long totalNodes = 0;
+	private long totalSearchNanos = 0;
+	private long lastNodes = 0;
+	//Appends every decision's root position to -Dminimax.recordFile, if set, for PositionReplay
+	private PositionRecorder recorder;
+	//Proof-number solver for forced wins (see ProofNumberSearch), per -Dminimax.proof: off (the default), low (when
+	//either side is down to half its starting HP), background (alongside every search) or always (before every
+	//search). Its table takes -Dminimax.proofMb megabytes
+	private static final String[] PROOF_MODES = { "off", "low", "background", "always" };
+	private static final int PROOF_OFF = 0;
+	private static final int PROOF_LOW = 1;
+	private static final int PROOF_BACKGROUND = 2;
+	private static final int PROOF_ALWAYS = 3;
+	private final int proofMode;
+	private ProofNumberSearch prover;
+	private ExecutorService proverPool;
+	//Footmen turns a proof may take (-Dminimax.proofTurns), and the most nodes one decision may spend on it
+	private final int proofTurns = Integer.getInteger("minimax.proofTurns", 6);
+	private final long proofNodes = Long.getLong("minimax.proofNodes", 20000);
+	private static final int PROOF_TABLE_MB = 16;
+	//The solver gets this fraction of the turn budget when it runs before the search
+	private static final double PROOF_FRACTION = 0.5;
+	private static final double LOW_MATERIAL = 0.5;
+	//Each side's summed HP at the start of the episode, and whether a win has been proved since
+	private int startFootmanHp;
+	private int startArcherHp;
+	private boolean proven = false;
+	//Both sides' HP when a proof last failed in low mode; it isn't tried again until a unit is hit
+	private int failedHp = -1;
+	private int proofs = 0;
+	private long proofNodesSearched = 0;
+	//Time a turn may take; a search still running near the end of it is cut short (-Dminimax.turnBudgetMs, 0 for none)
+	private final long turnBudgetNanos = Long.getLong("minimax.turnBudgetMs", DEFAULT_TURN_BUDGET_MS) * 1000000L;
+	private static final long DEFAULT_TURN_BUDGET_MS = 2000;
+	//The search stops at this fraction of the budget, leaving the rest to unwind and answer
+	private static final double DEADLINE_FRACTION = 0.9;
+	//minimax only reads the clock once per this many calls
+	private static final int POLL_INTERVAL = 16;
+	private long deadline = Long.MAX_VALUE;
+	private int callsSincePoll = 0;
+	private boolean aborted = false;
+	//How long each decision of this episode took, and how many went over the budget
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private int budgetOverruns = 0;
 
 	public MinimaxAlphaBeta(int playernum, String[] args) {
 		super(playernum);
@@ -26,38 +111,397 @@ public class MinimaxAlphaBeta extends Agent {
 
 		numPlys = Integer.parseInt(args[0]);
 		System.out.println("Number of plys is: " + numPlys);
+
+		//Opponent-model mode: the archers only get their likeliest replies searched
+		predictedReplies = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		if (args.length > 2) {
+			try {
+				opponentModel = (OpponentModel) Class.forName(args[2]).newInstance();
+			} catch (Exception e) {
+				System.err.println("Cannot use " + args[2] + " as the opponent model: " + e);
+				System.exit(1);
+			}
+		}
+		if (predictedReplies > 0) {
+			System.out.println("Searching the " + predictedReplies + " likeliest archer replies predicted by "
+					+ opponentModel.getClass().getSimpleName());
+		}
+
+		knowledge = new SearchKnowledge();
+		long hashMegabytes = Long.getLong("minimax.hashMb", 0);
+		transpositions = new TranspositionTable(hashMegabytes > 0 ? TranspositionTable.bitsFor(hashMegabytes)
+				: TRANSPOSITION_BITS);
+		helperIndex = 0;
+		helpers = new MinimaxAlphaBeta[numThreads - 1];
+		for (int i = 0; i < helpers.length; i++) {
+			helpers[i] = new MinimaxAlphaBeta(this, i + 1);
+		}
+		if (numThreads > 1) {
+			System.out.println("Lazy SMP search on " + numThreads + " threads");
+		}
+		int mode = Arrays.asList(PROOF_MODES).indexOf(System.getProperty("minimax.proof", "off").trim().toLowerCase());
+		if (mode < 0) {
+			System.err.println("Unknown minimax.proof mode " + System.getProperty("minimax.proof") + ", expected one of "
+					+ Arrays.toString(PROOF_MODES) + "; proof search is off");
+			mode = PROOF_OFF;
+		}
+		proofMode = mode;
+		if (proofMode != PROOF_OFF) {
+			prover = new ProofNumberSearch(ProofNumberSearch.bitsFor(Long.getLong("minimax.proofMb", PROOF_TABLE_MB)));
+		}
+		String recordFile = System.getProperty("minimax.recordFile");
+		if (recordFile != null) {
+			recorder = new PositionRecorder(new File(recordFile));
+			System.out.println("Recording positions to " + recordFile);
+		}
+	}
+
+	//A Lazy SMP helper: its own arena, evaluator and key scratch space, the agent's knowledge and transposition table
+	private MinimaxAlphaBeta(MinimaxAlphaBeta agent, int helperIndex) {
+		super(agent.playernum);
+		numPlys = agent.numPlys + (helperIndex & 1);
+		predictedReplies = agent.predictedReplies;
+		try {
+			opponentModel = agent.opponentModel.getClass().newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot make a helper's opponent model: " + e);
+		}
+		knowledge = agent.knowledge;
+		transpositions = agent.transpositions;
+		proofMode = PROOF_OFF;
+		this.helperIndex = helperIndex;
+		helpers = new MinimaxAlphaBeta[0];
 	}
 
 	@Override
 	public Map<Integer, Action> initialStep(State.StateView newstate,
 			History.HistoryView statehistory) {
+		//Map (or precompute once) the hop distance table for this map before the first search; big maps get the
+		//compressed path database in place of the all-pairs table. The endgame tablebase, if it has to be solved,
+		//is built in the background and used from the first turn after it is ready
+		if (newstate.getXExtent() * newstate.getYExtent() <= DistanceTable.MAX_CELLS) {
+			DistanceTable.open(newstate);
+		}
+		else {
+			PathDatabase.open(newstate);
+		}
+		EndgameTablebase.openInBackground(newstate);
+		startEpisode(new GameState(newstate));
+		if (recorder != null) {
+			try {
+				recorder.recordGameStart();
+			} catch (IOException e) {
+				System.err.println("Could not record the game start, recording stops: " + e.getMessage());
+				recorder = null;
+			}
+		}
 		return middleStep(newstate, statehistory);
 	}
 
+	//Resets what is kept per episode; the tables for the map have to be open already. Also used by PositionReplay
+	void startEpisode(GameState start) {
+		knowledge.startEpisode(start);
+		transpositions.clear();
+		if (prover != null) {
+			prover.clear();
+		}
+		startFootmanHp = sideHp(start, true);
+		startArcherHp = sideHp(start, false);
+		proven = false;
+		failedHp = -1;
+		proofs = 0;
+		proofNodesSearched = 0;
+		latencies.reset();
+		budgetOverruns = 0;
+		totalNodes = 0;
+		totalSearchNanos = 0;
+		for (MinimaxAlphaBeta searcher : searchers()) {
+			Arrays.fill(searcher.tierNanos, 0);
+			Arrays.fill(searcher.tierStates, 0);
+		}
+		if (proofMode == PROOF_BACKGROUND && proverPool == null) {
+			proverPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "minimax-prover");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		if (helpers.length > 0 && helperPool == null) {
+			helperPool = Executors.newFixedThreadPool(helpers.length, new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "minimax-helper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
 	@Override
 	public Map<Integer, Action> middleStep(State.StateView newstate,
 			History.HistoryView statehistory) {
-		GameStateChild bestChild = alphaBetaSearch(
-				new GameStateChild(newstate), numPlys,
-				Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+		long startTime = System.nanoTime();
+		GameStateChild bestChild = decide(new GameStateChild(newstate), newstate.getTurnNumber(), startTime);
+
+		//The search only deals in move codes; this is the one place they become SEPIA actions
+		Map<Integer, Action> actions = bestChild.state.getActions();
+		long elapsed = System.nanoTime() - startTime;
+		latencies.record(elapsed);
+		if (turnBudgetNanos > 0 && elapsed > turnBudgetNanos) {
+			budgetOverruns++;
+		}
+		if (Trace.on(Trace.DEBUG)) {
+			Trace.log(Trace.DEBUG, "Turn " + newstate.getTurnNumber() + ": " + elapsed / 1000 + " us"
+					+ (aborted ? ", cut short by the budget" : "") + ", utility " + bestChild.state.getUtility());
+		}
+		if (recorder != null) {
+			try {
+				recorder.record(CompactMap.fromState(newstate), newstate.getTurnNumber(), numPlys, bestChild.state,
+						lastNodes, elapsed, aborted);
+			} catch (IOException e) {
+				System.err.println("Could not record the position, recording stops: " + e.getMessage());
+				recorder = null;
+			}
+		}
+		return actions;
+	}
+
+	/**
+	 * Picks the footmen's move from this root, within the turn budget counted
+	 * from startTime. Also used by PositionReplay.
+	 */
+	GameStateChild decide(GameStateChild root, int turnNumber, long startTime) {
+		deadline = turnBudgetNanos > 0 ? startTime + (long) (turnBudgetNanos * DEADLINE_FRACTION) : Long.MAX_VALUE;
+		aborted = false;
+		lastNodes = 0;
+		boolean opening = turnNumber < SearchKnowledge.OPENING_TURNS;
+		//An opening searched at least this deep in an earlier episode gets the same answer again
+		GameStateChild bestChild = opening ? knowledge.recallOpening(root, numPlys) : null;
+		//Once a win is proved the rest of the proof is in the solver's table, so each later turn is a quick look up
+		if (bestChild == null && prover != null && (proven || proofMode == PROOF_ALWAYS
+				|| (proofMode == PROOF_LOW && lowMaterial(root.state) && totalHp(root.state) != failedHp))) {
+			long proofDeadline = turnBudgetNanos > 0 ? startTime + (long) (turnBudgetNanos * PROOF_FRACTION)
+					: Long.MAX_VALUE;
+			bestChild = prove(root.state, Math.min(proofDeadline, deadline));
+			if (bestChild == null) {
+				failedHp = totalHp(root.state);
+			}
+		}
+		if (bestChild == null) {
+			Future<GameStateChild> proving = proofMode == PROOF_BACKGROUND ? startProver(root.state) : null;
+			List<Future<?>> running = startHelpers(root.state);
+			nodes = 0;
+			bestChild = alphaBetaSearch(root, numPlys,
+					Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+			lastNodes = nodes + stopHelpers(running);
+			totalNodes += lastNodes;
+			totalSearchNanos += System.nanoTime() - startTime;
+			GameStateChild provenChild = proving != null ? stopProver(proving) : null;
+			if (provenChild != null) {
+				bestChild = provenChild;
+			}
+			//A search that was cut short didn't really reach numPlys
+			else if (opening && !aborted) {
+				knowledge.rememberOpening(root, bestChild, numPlys);
+			}
+		}
+		return bestChild;
+	}
+
+	//Runs the solver on this root until the deadline; the proven move, or null
+	private GameStateChild prove(GameState root, long until) {
+		prover.clearStop();
+		GameStateChild child = prover.solve(root, proofTurns, proofNodes, until);
+		proofNodesSearched += prover.getLastNodes();
+		if (child != null) {
+			proven = true;
+			proofs++;
+			if (Trace.on(Trace.INFO)) {
+				Trace.log(Trace.INFO, "Proved a win within " + proofTurns + " turns in " + prover.getLastNodes() + " nodes");
+			}
+		}
+		return child;
+	}
+
+	//Starts the solver on a copy of the root; a proof stops the search (and its helpers) straight away
+	private Future<GameStateChild> startProver(GameState root) {
+		final GameState proverRoot = new GameState(root);
+		final long until = deadline;
+		prover.clearStop();
+		return proverPool.submit(new Callable<GameStateChild>() {
+			public GameStateChild call() {
+				GameStateChild child = prover.solve(proverRoot, proofTurns, proofNodes, until);
+				if (child != null) {
+					stopRequested = true;
+				}
+				return child;
+			}
+		});
+	}
+
+	//Stops the background solver and returns its proven move, or null
+	private GameStateChild stopProver(Future<GameStateChild> proving) {
+		prover.stop();
+		GameStateChild child = null;
+		try {
+			child = proving.get();
+		} catch (Exception e) {
+			Trace.log(Trace.INFO, "Proof search failed: " + e);
+		}
+		stopRequested = false;
+		proofNodesSearched += prover.getLastNodes();
+		if (child != null) {
+			proven = true;
+			proofs++;
+			if (Trace.on(Trace.INFO)) {
+				Trace.log(Trace.INFO, "Proved a win within " + proofTurns + " turns in " + prover.getLastNodes()
+						+ " nodes, alongside the search");
+			}
+		}
+		return child;
+	}
+
+	//True once either side is down to LOW_MATERIAL of the HP it started the episode with
+	private boolean lowMaterial(GameState state) {
+		return sideHp(state, true) <= startFootmanHp * LOW_MATERIAL || sideHp(state, false) <= startArcherHp * LOW_MATERIAL;
+	}
 
-		return bestChild.action;
+	private static int totalHp(GameState state) {
+		return sideHp(state, true) + sideHp(state, false);
+	}
+
+	private static int sideHp(GameState state, boolean footmen) {
+		int hp = 0;
+		for (int unit = 0; unit < state.getUnitCount(); unit++) {
+			if (state.isFootman(unit) == footmen && state.getUnitHP(unit) > 0) {
+				hp += state.getUnitHP(unit);
+			}
+		}
+		return hp;
+	}
+
+	//Minimax calls (helpers' included) and whether the budget cut it short, for the last decide
+	long getLastNodes() {
+		return lastNodes;
+	}
+
+	boolean wasCutShort() {
+		return aborted;
 	}
 
 	@Override
 	public void terminalStep(State.StateView newstate,
 			History.HistoryView statehistory) {
+		System.out.println("Decisions: " + latencies.count() + ", latency p50 " + latencies.percentileMicros(0.5) / 1000.0
+				+ " ms, p99 " + latencies.percentileMicros(0.99) / 1000.0 + " ms, max " + latencies.maxMicros() / 1000.0
+				+ " ms");
+		if (turnBudgetNanos > 0) {
+			System.out.println("Over the " + turnBudgetNanos / 1000000 + " ms budget: " + budgetOverruns);
+		}
+		if (prover != null) {
+			System.out.println("Proof search (" + PROOF_MODES[proofMode] + ", " + proofTurns + " turns): " + proofs
+					+ " moves proved, " + proofNodesSearched + " nodes");
+		}
+		if (totalSearchNanos > 0) {
+			System.out.println("Nodes searched: " + totalNodes + " on " + numThreads + " threads, "
+					+ (long) (totalNodes / (totalSearchNanos / 1e9)) + " per second");
+		}
+		for (int tier = 0; tier < GameState.TIERS; tier++) {
+			long nanos = 0;
+			long states = 0;
+			for (MinimaxAlphaBeta searcher : searchers()) {
+				nanos += searcher.tierNanos[tier];
+				states += searcher.tierStates[tier];
+			}
+			if (states > 0) {
+				System.out.println("Evaluation tier " + tier + ": " + states + " states, " + nanos / states + " ns each");
+			}
+		}
+		if (recorder != null) {
+			boolean footmenLeft = !newstate.getUnitIds(0).isEmpty();
+			boolean archersLeft = !newstate.getUnitIds(1).isEmpty();
+			try {
+				recorder.recordResult(footmenLeft == archersLeft ? 0.5 : footmenLeft ? 1 : 0);
+			} catch (IOException e) {
+				System.err.println("Could not record the result, recording stops: " + e.getMessage());
+				recorder = null;
+			}
+		}
+	}
 
+	//This agent and its Lazy SMP helpers
+	private List<MinimaxAlphaBeta> searchers() {
+		List<MinimaxAlphaBeta> searchers = new ArrayList<MinimaxAlphaBeta>();
+		searchers.add(this);
+		Collections.addAll(searchers, helpers);
+		return searchers;
+	}
+
+	//Sets every helper searching this turn's root, up to the agent's deadline
+	private List<Future<?>> startHelpers(GameState root) {
+		List<Future<?>> running = new ArrayList<Future<?>>(helpers.length);
+		for (final MinimaxAlphaBeta helper : helpers) {
+			//Each helper gets its own copy of the root, so no search state is shared but the table
+			final GameState helperRoot = new GameState(root);
+			helper.deadline = deadline;
+			helper.aborted = false;
+			helper.callsSincePoll = 0;
+			helper.stopRequested = false;
+			helper.nodes = 0;
+			running.add(helperPool.submit(new Runnable() {
+				public void run() {
+					helper.alphaBetaSearch(new GameStateChild(null, helperRoot), helper.numPlys,
+							Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+				}
+			}));
+		}
+		return running;
 	}
 
+	//Stops the helpers, waits for them to unwind, and returns how many nodes they searched
+	private long stopHelpers(List<Future<?>> running) {
+		long helperNodes = 0;
+		for (MinimaxAlphaBeta helper : helpers) {
+			helper.stopRequested = true;
+		}
+		for (int i = 0; i < running.size(); i++) {
+			try {
+				running.get(i).get();
+			} catch (Exception e) {
+				//A helper's answer is never used, so a failed one only costs its share of the table
+				Trace.log(Trace.INFO, "Lazy SMP helper failed: " + e);
+			}
+			helperNodes += helpers[i].nodes;
+		}
+		return helperNodes;
+	}
+
+	//Writes the search knowledge followed by the cached A* hop distances
 	@Override
 	public void savePlayerData(OutputStream os) {
-
+		try {
+			DataOutputStream out = new DataOutputStream(os);
+			knowledge.write(out);
+			AstarAgent.writeHopCache(out);
+			//The runner owns the stream, so flush but don't close it
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("Could not save search knowledge: " + e.getMessage());
+		}
 	}
 
 	@Override
 	public void loadPlayerData(InputStream is) {
-
+		try {
+			DataInputStream in = new DataInputStream(is);
+			knowledge.read(in);
+			AstarAgent.readHopCache(in);
+		} catch (IOException e) {
+			//Starting cold is always safe
+			System.err.println("Could not load search knowledge: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -89,55 +533,201 @@ public class MinimaxAlphaBeta extends Agent {
 		double maxval = -infinity;
 		double childval;
 		List<GameStateChild> children = new ArrayList<GameStateChild>();
-		children = node.state.getChildren(true);
+		children = node.state.getChildren(true, null, 0);
 		if (children == null)
 			return node;
+		//A solved endgame needs no search: play the child the tablebase rates best
+		if (!Double.isNaN(node.state.getEndgameValue(true))) {
+			for (int i = 0; i < children.size(); i++) {
+				childval = children.get(i).state.getEndgameValue(false);
+				if (!Double.isNaN(childval) && childval > maxval) {
+					maxval = childval;
+					node = children.get(i);
+				}
+			}
+			if (maxval > -infinity)
+				return node;
+		}
+		scoreChildren(children, GameState.TIER_FULL);
 		children = orderChildrenWithHeuristics(children, true);
+		if (helperIndex > 0 && children.size() > 1) {
+			Collections.rotate(children, -(helperIndex % children.size()));
+		}
+		GameStateChild root = node;
 		for (int i = 0; i < children.size(); i++) {
-			childval = minimax(children.get(i), depth - 1, alpha, beta, false);
+			childval = minimax(children.get(i), plysLeft(children.get(i), depth), alpha, beta,
+					!children.get(i).state.isTurnComplete());
+			//Out of time: this child's value is incomplete, so only the ones searched before it count
+			if (aborted) {
+				break;
+			}
 			if (childval > maxval) {
 				maxval = childval;
 				node = children.get(i);
 			}
 		}
+		if (aborted && node == root && !children.isEmpty()) {
+			//Nothing finished; the static ordering's favourite is the best guess
+			node = children.get(0);
+		}
+		//Big teams pick one unit per sub-ply; keep going down the best line until every footman has an action
+		if (node != root && !node.state.isTurnComplete()) {
+			return alphaBetaSearch(node, depth, alpha, beta);
+		}
 		return node;
 	}
 
+	//Sub-ply children (see MoveGenerator) leave the same side to move and don't use up a ply
+	private static int plysLeft(GameStateChild child, int depth) {
+		return child.state.isTurnComplete() ? depth - 1 : depth;
+	}
+
+	//The archers' replies: the likeliest few in opponent-model mode, unless the model has no prediction, otherwise all
+	private List<GameStateChild> getReplies(GameState state, int ply) {
+		if (predictedReplies > 0) {
+			List<GameStateChild> replies = opponentModel.predictReplies(state, predictedReplies);
+			if (!replies.isEmpty()) {
+				return replies;
+			}
+		}
+		return state.getChildren(false, arena, ply);
+	}
+
+	//Polled by every minimax call; once the deadline has passed every search call returns straight away
+	private boolean outOfTime() {
+		if (!aborted && ++callsSincePoll >= POLL_INTERVAL) {
+			callsSincePoll = 0;
+			aborted = stopRequested || System.nanoTime() > deadline;
+		}
+		return aborted;
+	}
+
 	//recursively goes through child states and returns utility as a double up the chain
 	public double minimax(GameStateChild node, int depth, double alpha,
 			double beta, boolean maximizingPlayer) {
-		if (depth <= 0) {
-			return node.state.getUtility();
+		//The value doesn't matter, the caller throws it away once it sees the search was aborted
+		if (outOfTime()) {
+			return 0;
 		}
-		double v = 0;
-		List<GameStateChild> children = new ArrayList<GameStateChild>();
-		children = node.state.getChildren(maximizingPlayer);
-		children = orderChildrenWithHeuristics(children, maximizingPlayer);
-		if (children.size() == 0) {
+		nodes++;
+		//Positions in the endgame tablebase have an exact value, so there is nothing left to search
+		double solved = node.state.getEndgameValue(maximizingPlayer);
+		if (!Double.isNaN(solved)) {
+			return solved;
+		}
+		if (depth <= 0) {
 			return node.state.getUtility();
 		}
-		if (maximizingPlayer) {
-			v = -infinity;
-			for (int i = 0; i < children.size(); i++) {
-				v = Math.max(v,
-						minimax(children.get(i), depth - 1, alpha, beta, false));
-				alpha = Math.max(alpha, v);
-				if (beta <= alpha)
-					break;
+		//A position searched at least this deep before either has its value, or a bound that narrows the window
+		long key = canonicalKey.key(node.state, maximizingPlayer);
+		if (transpositions.probe(key, stored) && stored.depth >= depth) {
+			if (stored.bound == TranspositionTable.EXACT) {
+				return stored.value;
+			}
+			if (stored.bound == TranspositionTable.LOWER) {
+				alpha = Math.max(alpha, stored.value);
+			}
+			else {
+				beta = Math.min(beta, stored.value);
+			}
+			if (beta <= alpha) {
+				return stored.value;
 			}
 		}
+		double alphaOriginal = alpha;
+		double betaOriginal = beta;
 
-		else {
-			v = infinity;
-			for (int i = 0; i < children.size(); i++) {
-				v = Math.min(v,
-						minimax(children.get(i), depth - 1, alpha, beta, true));
-				beta = Math.min(beta, v);
-				if (beta <= alpha)
-					break;
+		double v = 0;
+		//The children live in this ply's arena pool, which is recycled as soon as this node is done
+		int ply = searchPly++;
+		try {
+			List<GameStateChild> children = maximizingPlayer ? node.state.getChildren(true, arena, ply)
+					: getReplies(node.state, ply);
+			scoreChildren(children, orderingTier(depth));
+			children = orderChildrenWithHeuristics(children, maximizingPlayer);
+			if (children.size() == 0) {
+				return node.state.getUtility();
+			}
+			if (maximizingPlayer) {
+				v = -infinity;
+				for (int i = 0; i < children.size(); i++) {
+					v = Math.max(v, minimax(children.get(i), plysLeft(children.get(i), depth), alpha, beta,
+							!children.get(i).state.isTurnComplete()));
+					if (aborted) {
+						return v;
+					}
+					alpha = Math.max(alpha, v);
+					if (beta <= alpha) {
+						knowledge.recordCutoff(children.get(i).state, true, depth);
+						break;
+					}
+				}
+			}
+
+			else {
+				v = infinity;
+				for (int i = 0; i < children.size(); i++) {
+					v = Math.min(v, minimax(children.get(i), plysLeft(children.get(i), depth), alpha, beta,
+							children.get(i).state.isTurnComplete()));
+					if (aborted) {
+						return v;
+					}
+					beta = Math.min(beta, v);
+					if (beta <= alpha) {
+						knowledge.recordCutoff(children.get(i).state, false, depth);
+						break;
+					}
+				}
 			}
+			transpositions.store(key, depth, v, v <= alphaOriginal ? TranspositionTable.UPPER
+					: v >= betaOriginal ? TranspositionTable.LOWER : TranspositionTable.EXACT);
+			return v;
+		} finally {
+			arena.release(ply);
+			searchPly--;
 		}
-		return v;
+	}
+
+	/*
+	 * Which evaluation tier to order a node's children with. Just above the
+	 * leaves the children's full utilities are their values anyway, so they
+	 * are worked out (in one batch) for ordering too. One ply further up is
+	 * where most of the remaining interior nodes are, so they get the O(1)
+	 * estimate. Nodes nearer the root are few and have big subtrees, so
+	 * there the table tier's better ordering pays for itself.
+	 */
+	private static int orderingTier(int depth) {
+		if (depth <= 1) {
+			return GameState.TIER_FULL;
+		}
+		return depth == 2 ? GameState.TIER_ESTIMATE : GameState.TIER_TABLE;
+	}
+
+	//Gives every child its ordering value at the given tier, and times it
+	private void scoreChildren(List<GameStateChild> children, int tier) {
+		long startTime = System.nanoTime();
+		if (tier == GameState.TIER_FULL) {
+			evaluator.evaluate(children);
+		}
+		for (int i = 0; i < children.size(); i++) {
+			GameState state = children.get(i).state;
+			state.setOrderValue(state.evaluate(tier));
+		}
+		tierNanos[tier] += System.nanoTime() - startTime;
+		tierStates[tier] += children.size();
+	}
+
+	//Highest history score first, for the footmen's and the archers' moves; made once so sorting allocates nothing
+	private final Comparator<GameStateChild> footmenHistoryOrder = historyOrder(true);
+	private final Comparator<GameStateChild> archersHistoryOrder = historyOrder(false);
+
+	private Comparator<GameStateChild> historyOrder(final boolean maximizingPlayer) {
+		return new Comparator<GameStateChild>() {
+			public int compare(GameStateChild a, GameStateChild b) {
+				return Integer.compare(knowledge.historyScore(b.state, maximizingPlayer),
+						knowledge.historyScore(a.state, maximizingPlayer));
+			}
+		};
 	}
 
 	/**
@@ -155,13 +745,19 @@ public class MinimaxAlphaBeta extends Agent {
 	 * @param children
 	 * @return The list of children sorted by your heuristic.
 	 * 
-	 * orders children according to the utility using insertion sort
+	 * orders children according to the value scoreChildren gave them (the
+	 * utility, or a cheaper estimate of it away from the leaves) using
+	 * insertion sort. Children with equal values are tried in history
+	 * heuristic order: the insertion sort is stable, so sorting by history
+	 * score first breaks its ties.
 	 */
 	public List<GameStateChild> orderChildrenWithHeuristics(
-			List<GameStateChild> children, boolean maximizingPlayer) {
+			List<GameStateChild> children, final boolean maximizingPlayer) {
 		if (children.isEmpty())
 			return children;
 
+		Collections.sort(children, maximizingPlayer ? footmenHistoryOrder : archersHistoryOrder);
+
 		children = insertionSort(children, maximizingPlayer);
 		return children;
 	}
@@ -173,7 +769,7 @@ public class MinimaxAlphaBeta extends Agent {
 			for (int i = 1; i < list.size(); i++) {
 				temp = list.get(i);
 				int j;
-				for (j = i - 1; j >= 0 && temp.state.getUtility() > list.get(j).state.getUtility(); j--) {
+				for (j = i - 1; j >= 0 && temp.state.getOrderValue() > list.get(j).state.getOrderValue(); j--) {
 					list.add(j + 1, list.get(j));
 					list.remove(j + 2);
 				}
@@ -185,7 +781,7 @@ public class MinimaxAlphaBeta extends Agent {
 			for (int i = 1; i < list.size(); i++) {
 				temp = list.get(i);
 				int j;
-				for (j = i - 1; j >= 0 && temp.state.getUtility() < list.get(j).state.getUtility(); j--) {
+				for (j = i - 1; j >= 0 && temp.state.getOrderValue() < list.get(j).state.getOrderValue(); j--) {
 					list.add(j + 1, list.get(j));
 					list.remove(j + 2);
 				}
@@ -198,7 +794,9 @@ public class MinimaxAlphaBeta extends Agent {
 		System.out.println("And the footmen1 positions are: " + list.get(0).state.units[0].xPosition + ", "
 				+ list.get(0).state.units[0].yPosition + "\n and footmen2 positions are: " + list.get(1).state.units[1].xPosition + ", "
 				+ list.get(1).state.units[1].yPosition);*/
-		System.out.println();
+		if (Trace.on(Trace.TRACE) && !list.isEmpty()) {
+			Trace.log(Trace.TRACE, "Sorted " + list.size() + " children, best value " + list.get(0).state.getOrderValue());
+		}
 		return list;
 	}
 }
@@ -0,0 +1,356 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monte Carlo Tree Search agent over the same GameState / GameStateChild
+ * model as MinimaxAlphaBeta, so the two can be compared head to head.
+ *
+ * The footmen and the archers take turns in the tree exactly like the plys of
+ * the minimax search. Children are picked with UCT, leaves are finished with
+ * a fast greedy rollout, and every node's statistics live in flat primitive
+ * arrays indexed by node number. Several worker threads share one tree (tree
+ * parallelism); a thread walking down a path adds a virtual loss to each node
+ * on it so the others spread out over different lines.
+ *
+ * Agent arguments: per turn time budget in milliseconds, then optionally the
+ * number of worker threads (default: one per core) and the UCT exploration
+ * constant (default 1.4).
+ */
+public class MonteCarloTreeSearch extends Agent {
+
+	//Nodes available per turn; once the pool is full the tree simply stops growing
+	private static final int MAX_NODES = 1 << 18;
+	//Plys a rollout plays before falling back to the evaluation function
+	private static final int ROLLOUT_PLYS = 20;
+	//Chance a rollout unit picks a random option instead of the greedy one
+	private static final double ROLLOUT_EPSILON = 0.1;
+	//Utility difference that moves a squashed evaluation from 0.5 to about 0.73
+	private static final double UTILITY_SCALE = 100.0;
+	//Values are summed as fixed point numbers so they can be updated atomically
+	private static final double VALUE_UNIT = 1000000.0;
+
+	private final long budgetNanos;
+	private final int numThreads;
+	private final double exploration;
+
+	//Node statistics. Values are always from the footmen's point of view, in [0, 1]
+	private final AtomicIntegerArray visits = new AtomicIntegerArray(MAX_NODES);
+	private final AtomicIntegerArray virtualLoss = new AtomicIntegerArray(MAX_NODES);
+	private final AtomicLongArray valueSum = new AtomicLongArray(MAX_NODES);
+	//0 = not expanded, 1 = being expanded by some thread, 2 = children ready
+	private final AtomicIntegerArray expansion = new AtomicIntegerArray(MAX_NODES);
+	private final int[] firstChild = new int[MAX_NODES];
+	private final int[] childCount = new int[MAX_NODES];
+	private final boolean[] footmenToMove = new boolean[MAX_NODES];
+	private final GameStateChild[] nodes = new GameStateChild[MAX_NODES];
+	private final AtomicInteger nodeCount = new AtomicInteger();
+
+	private int turns = 0;
+	private long totalIterations = 0;
+	private long totalDecisionTime = 0; //nsecs
+	private long maxDecisionTime = 0; //nsecs
+
+	public MonteCarloTreeSearch(int playernum, String[] args) {
+		super(playernum);
+
+		if (args.length < 1) {
+			System.err.println("You must specify the time budget per turn in milliseconds");
+			System.exit(1);
+		}
+
+		budgetNanos = Long.parseLong(args[0]) * 1000000L;
+		numThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		exploration = args.length > 2 ? Double.parseDouble(args[2]) : 1.4;
+		System.out.println("MCTS budget per turn: " + args[0] + " ms on " + numThreads + " threads");
+	}
+
+	@Override
+	public Map<Integer, Action> initialStep(State.StateView newstate,
+			History.HistoryView statehistory) {
+		if (newstate.getXExtent() * newstate.getYExtent() <= DistanceTable.MAX_CELLS) {
+			DistanceTable.open(newstate);
+		}
+		else {
+			PathDatabase.open(newstate);
+		}
+		return middleStep(newstate, statehistory);
+	}
+
+	@Override
+	public Map<Integer, Action> middleStep(State.StateView newstate,
+			History.HistoryView statehistory) {
+		long startTime = System.nanoTime();
+		GameStateChild best = search(new GameStateChild(newstate), startTime + budgetNanos);
+		long elapsed = System.nanoTime() - startTime;
+
+		turns++;
+		totalDecisionTime += elapsed;
+		maxDecisionTime = Math.max(maxDecisionTime, elapsed);
+		return best.state.getActions();
+	}
+
+	@Override
+	public void terminalStep(State.StateView newstate,
+			History.HistoryView statehistory) {
+		System.out.println("MCTS turns: " + turns);
+		System.out.println("Total iterations: " + totalIterations);
+		if (turns > 0) {
+			System.out.println("Iterations per turn: " + totalIterations / turns);
+			System.out.println("Mean decision time: " + totalDecisionTime / turns / 1e6 + " ms");
+			System.out.println("Max decision time: " + maxDecisionTime / 1e6 + " ms");
+		}
+	}
+
+	@Override
+	public void savePlayerData(OutputStream os) {
+
+	}
+
+	@Override
+	public void loadPlayerData(InputStream is) {
+
+	}
+
+	/**
+	 * Grows a fresh tree from the root until the deadline and returns the most
+	 * visited footmen move.
+	 */
+	public GameStateChild search(GameStateChild root, final long deadline) {
+		List<GameStateChild> rootChildren = root.state.getChildren(true, null, 0);
+		if (rootChildren == null || rootChildren.isEmpty()) {
+			return root;
+		}
+		if (rootChildren.size() == 1) {
+			return completeTurn(rootChildren.get(0));
+		}
+
+		resetTree(root);
+		final AtomicInteger iterations = new AtomicInteger();
+		Thread[] workers = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final Random random = new Random(31L * t + System.nanoTime());
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					int done = 0;
+					do {
+						iterate(random);
+						done++;
+					} while (System.nanoTime() < deadline);
+					iterations.addAndGet(done);
+				}
+			}, "mcts-worker-" + t);
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		totalIterations += iterations.get();
+
+		int bestChild = mostVisitedChild(0);
+		return bestChild < 0 ? completeTurn(rootChildren.get(0)) : completeTurn(bestChild);
+	}
+
+	private int mostVisitedChild(int node) {
+		int bestChild = -1;
+		int bestVisits = -1;
+		if (expansion.get(node) != 2) {
+			return bestChild;
+		}
+		for (int i = 0; i < childCount[node]; i++) {
+			int child = firstChild[node] + i;
+			if (visits.get(child) > bestVisits) {
+				bestVisits = visits.get(child);
+				bestChild = child;
+			}
+		}
+		return bestChild;
+	}
+
+	//With sub-ply children (see MoveGenerator) a root child may only cover some of the footmen, so follow
+	//the most visited line, and the best ordered children past the end of the tree, until all have an action
+	private GameStateChild completeTurn(int node) {
+		while (!nodes[node].state.isTurnComplete()) {
+			int child = mostVisitedChild(node);
+			if (child < 0) {
+				return completeTurn(nodes[node]);
+			}
+			node = child;
+		}
+		return nodes[node];
+	}
+
+	private GameStateChild completeTurn(GameStateChild child) {
+		while (!child.state.isTurnComplete()) {
+			List<GameStateChild> children = child.state.getChildren(true, null, 0);
+			if (children == null || children.isEmpty()) {
+				break;
+			}
+			child = children.get(0);
+		}
+		return child;
+	}
+
+	private void resetTree(GameStateChild root) {
+		int used = Math.min(Math.max(nodeCount.get(), 1), MAX_NODES);
+		for (int i = 0; i < used; i++) {
+			visits.set(i, 0);
+			virtualLoss.set(i, 0);
+			valueSum.set(i, 0);
+			expansion.set(i, 0);
+			nodes[i] = null;
+		}
+		nodes[0] = root;
+		footmenToMove[0] = true;
+		nodeCount.set(1);
+	}
+
+	//One selection / expansion / rollout / backup pass
+	private void iterate(Random random) {
+		int[] path = new int[256];
+		int length = 0;
+		int node = 0;
+		path[length++] = node;
+		virtualLoss.incrementAndGet(node);
+
+		while (expansion.get(node) == 2 && childCount[node] > 0 && length < path.length) {
+			node = select(node);
+			path[length++] = node;
+			virtualLoss.incrementAndGet(node);
+		}
+		if (expansion.get(node) == 0 && expansion.compareAndSet(node, 0, 1)) {
+			expand(node);
+		}
+
+		double value = rollout(nodes[node].state, footmenToMove[node], random);
+
+		long scaled = (long) (value * VALUE_UNIT);
+		for (int i = 0; i < length; i++) {
+			valueSum.addAndGet(path[i], scaled);
+			visits.incrementAndGet(path[i]);
+			virtualLoss.decrementAndGet(path[i]);
+		}
+	}
+
+	//UCT over the children of an expanded node. Virtual losses count as visits the mover lost
+	private int select(int node) {
+		boolean maximizing = footmenToMove[node];
+		double logParent = Math.log(Math.max(1, visits.get(node) + virtualLoss.get(node)));
+		int best = firstChild[node];
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < childCount[node]; i++) {
+			int child = firstChild[node] + i;
+			int n = visits.get(child);
+			int pending = virtualLoss.get(child);
+			if (n + pending == 0) {
+				//Children are already ordered by MoveGenerator, so the first unvisited one is a decent guess
+				return child;
+			}
+			double footmenWins = valueSum.get(child) / VALUE_UNIT;
+			double moverWins = maximizing ? footmenWins : n - footmenWins;
+			double score = moverWins / (n + pending) + exploration * Math.sqrt(logParent / (n + pending));
+			if (score > bestScore) {
+				bestScore = score;
+				best = child;
+			}
+		}
+		return best;
+	}
+
+	private void expand(int node) {
+		List<GameStateChild> children = nodes[node].state.getChildren(footmenToMove[node], null, 0);
+		int count = children == null ? 0 : children.size();
+		int first = count == 0 ? 0 : nodeCount.getAndAdd(count);
+		if (first + count > MAX_NODES) {
+			//Out of nodes for this turn; leave it as a leaf
+			count = 0;
+		}
+		for (int i = 0; i < count; i++) {
+			int child = first + i;
+			nodes[child] = children.get(i);
+			//A sub-ply child leaves the same side to move
+			footmenToMove[child] = children.get(i).state.isTurnComplete() ? !footmenToMove[node] : footmenToMove[node];
+			firstChild[child] = 0;
+			childCount[child] = 0;
+		}
+		firstChild[node] = first;
+		childCount[node] = count;
+		//Publishes the child arrays to the other threads
+		expansion.set(node, 2);
+	}
+
+	//Plays both sides greedily (with a little noise) and returns the footmen's result in [0, 1]
+	private double rollout(GameState start, boolean footmenTurn, Random random) {
+		GameState state = new GameState(start);
+		for (int ply = 0; ply < ROLLOUT_PLYS; ply++) {
+			if (sideDead(state, true)) {
+				return 0;
+			}
+			if (sideDead(state, false)) {
+				return 1;
+			}
+			//Units that already picked in an unfinished team turn sit out the rest of it
+			playGreedy(state, footmenTurn, random, ply == 0);
+			footmenTurn = !footmenTurn;
+		}
+		if (sideDead(state, true)) {
+			return 0;
+		}
+		if (sideDead(state, false)) {
+			return 1;
+		}
+		return 1.0 / (1.0 + Math.exp(-state.getUtility() / UTILITY_SCALE));
+	}
+
+	//Every live unit of one side attacks if it can, otherwise takes its best static step
+	private void playGreedy(GameState state, boolean footmen, Random random, boolean skipMoved) {
+		for (int unit = 0; unit < state.getUnitCount(); unit++) {
+			if (state.isFootman(unit) != footmen || state.getUnitHP(unit) <= 0 || (skipMoved && state.hasMoved(unit))) {
+				continue;
+			}
+			List<MoveGenerator.UnitMove> options = MoveGenerator.getUnitMoves(state, unit);
+			MoveGenerator.UnitMove choice = null;
+			if (random.nextDouble() < ROLLOUT_EPSILON) {
+				choice = options.get(random.nextInt(options.size()));
+			}
+			else {
+				for (MoveGenerator.UnitMove option : options) {
+					if (choice == null || option.score > choice.score) {
+						choice = option;
+					}
+				}
+			}
+			if (choice.isAttack()) {
+				state.damageUnit(choice.target, state.getUnitAttack(unit));
+			}
+			else if (!choice.isStay() && !MoveGenerator.friendAt(state, unit, choice.toX, choice.toY)) {
+				state.setUnitPosition(unit, choice.toX, choice.toY);
+			}
+		}
+	}
+
+	private static boolean sideDead(GameState state, boolean footmen) {
+		for (int unit = 0; unit < state.getUnitCount(); unit++) {
+			if (state.isFootman(unit) == footmen && state.getUnitHP(unit) > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
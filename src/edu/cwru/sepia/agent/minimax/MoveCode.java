@@ -0,0 +1,76 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.util.Direction;
+
+/**
+ * A single unit's action packed into an int, which is what the search keeps
+ * instead of SEPIA Action objects. A joint move is one of these per unit slot
+ * (see GameState.getTurnMove); they become Actions only for the move that is
+ * actually played, through GameState.getActions.
+ *
+ * Layout: bits 16-31 the unit slot, bits 14-15 the kind, bits 0-13 the
+ * direction ordinal of a step or the target slot of an attack. NONE (0) means
+ * the unit has no action this turn.
+ */
+final class MoveCode {
+
+	static final int NONE = 0;
+
+	static final int STEP = 1;
+	static final int ATTACK = 2;
+	//Picked, but nothing to tell SEPIA: a boxed in unit waiting its turn
+	static final int STAY = 3;
+
+	private static final int KIND_SHIFT = 14;
+	private static final int UNIT_SHIFT = 16;
+	private static final int ARGUMENT_MASK = (1 << KIND_SHIFT) - 1;
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private MoveCode() {
+	}
+
+	static int step(int unit, Direction direction) {
+		return unit << UNIT_SHIFT | STEP << KIND_SHIFT | direction.ordinal();
+	}
+
+	static int attack(int unit, int target) {
+		return unit << UNIT_SHIFT | ATTACK << KIND_SHIFT | target;
+	}
+
+	static int stay(int unit) {
+		return unit << UNIT_SHIFT | STAY << KIND_SHIFT;
+	}
+
+	static int unit(int code) {
+		return code >>> UNIT_SHIFT;
+	}
+
+	static int kind(int code) {
+		return (code >>> KIND_SHIFT) & 3;
+	}
+
+	static Direction direction(int code) {
+		return DIRECTIONS[code & ARGUMENT_MASK];
+	}
+
+	static int target(int code) {
+		return code & ARGUMENT_MASK;
+	}
+
+	/**
+	 * The SEPIA action for a step or an attack, or null for NONE and STAY.
+	 */
+	static Action toAction(int code, GameState state) {
+		int unitID = state.getUnitID(unit(code));
+		switch (kind(code)) {
+		case STEP:
+			return Action.createPrimitiveMove(unitID, direction(code));
+		case ATTACK:
+			return Action.createPrimitiveAttack(unitID, state.getUnitID(target(code)));
+		default:
+			return null;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.util.Direction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds the children of a GameState, one per distinct joint action.
+ *
+ * Each live unit of the side to move gets its own option list first: an
+ * attack for every enemy in range (a unit in range always attacks, as
+ * before), otherwise a step in each cardinal direction that stays on the map
+ * and does not walk into an obstacle or an enemy. The joint actions are the
+ * combinations of those lists, minus combinations where friendly units
+ * collide and combinations that only swap what two identical units do.
+ * Children come back ordered by a cheap static score, best for the mover
+ * first.
+ *
+ * The number of joint actions grows as 5^N with the size of a side, so a side
+ * with more than JOINT_LIMIT live units instead plays its turn as a series of
+ * sub-plys, one unit at a time in slot order. Each sub-ply child carries the
+ * moves picked so far and the state is marked as mid-turn until the last
+ * unit has picked (see GameState.isTurnComplete), so the search sees roughly
+ * 5 children per unit-step and can prune between them.
+ *
+ * The moves are kept in the child states as MoveCodes; the children come
+ * without SEPIA actions (GameStateChild.action is null) unless they are asked
+ * for through GameState.getChildren.
+ */
+public class MoveGenerator {
+
+	//The only directions a unit may move in; diagonals are never legal
+	static final Direction[] CARDINALS = { Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST };
+
+	//Static ordering weight of an attack compared to a step
+	private static final int ATTACK_SCORE = 1000;
+	//Largest side still expanded as full joint actions; bigger ones move one unit per sub-ply
+	static final int JOINT_LIMIT = 2;
+
+	/**
+	 * One option for a single unit: a step in a direction, an attack on the
+	 * unit in slot target, or (only when boxed in) standing still.
+	 */
+	static class UnitMove {
+		int unit;
+		Direction direction; //null for an attack or for standing still
+		int target; //-1 for a move or for standing still
+		int toX, toY;
+		int score;
+
+		UnitMove(int unit, Direction direction, int target, int toX, int toY, int score) {
+			set(unit, direction, target, toX, toY, score);
+		}
+
+		//Refills a pooled option (see SearchArena.move)
+		UnitMove set(int unit, Direction direction, int target, int toX, int toY, int score) {
+			this.unit = unit;
+			this.direction = direction;
+			this.target = target;
+			this.toX = toX;
+			this.toY = toY;
+			this.score = score;
+			return this;
+		}
+
+		boolean isAttack() {
+			return target >= 0;
+		}
+
+		boolean isStay() {
+			return direction == null && target < 0;
+		}
+	}
+
+	private static final Comparator<UnitMove> BEST_FIRST = new Comparator<UnitMove>() {
+		public int compare(UnitMove a, UnitMove b) {
+			return b.score - a.score;
+		}
+	};
+
+	/**
+	 * All distinct joint actions for the footmen (playerTurn) or the archers,
+	 * with their resulting states, ordered by static score. For a side bigger
+	 * than JOINT_LIMIT (or a turn already split up) only the next unit's
+	 * options, as sub-ply children. Empty if every unit of that side is dead.
+	 */
+	public static List<GameStateChild> getChildren(GameState state, boolean playerTurn) {
+		return getChildren(state, playerTurn, null, 0);
+	}
+
+	/**
+	 * Same as above, but with the child states, the children, the returned
+	 * list and the scratch used to build them taken from the arena's pool for
+	 * the given ply (a null arena allocates them). See SearchArena for how
+	 * long they stay valid.
+	 */
+	static List<GameStateChild> getChildren(GameState state, boolean playerTurn, SearchArena arena, int ply) {
+		int live = 0;
+		for (int unit = 0; unit < state.getUnitCount(); unit++) {
+			if (state.isFootman(unit) == playerTurn && state.getUnitHP(unit) > 0) {
+				live++;
+			}
+		}
+		if (live > JOINT_LIMIT || !state.isTurnComplete()) {
+			return getSubPlyChildren(state, playerTurn, arena, ply);
+		}
+
+		List<List<UnitMove>> options = arena != null ? arena.options(ply) : new ArrayList<List<UnitMove>>();
+		for (int unit = 0; unit < state.getUnitCount(); unit++) {
+			if (state.isFootman(unit) == playerTurn && state.getUnitHP(unit) > 0) {
+				List<UnitMove> unitOptions = arena != null ? arena.optionList(ply, options.size())
+						: new ArrayList<UnitMove>(CARDINALS.length);
+				addUnitMoves(state, unit, unitOptions, arena, ply);
+				options.add(unitOptions);
+			}
+		}
+
+		int joint = 1;
+		for (int i = 0; i < options.size(); i++) {
+			joint *= options.get(i).size();
+		}
+		List<GameStateChild> children = arena != null ? arena.children(ply) : new ArrayList<GameStateChild>(joint);
+		int[] scores = arena != null ? arena.scores(ply, joint) : new int[joint];
+		if (!options.isEmpty()) {
+			UnitMove[] chosen = arena != null ? arena.chosen(ply, options.size()) : new UnitMove[options.size()];
+			boolean[] matched = arena != null ? arena.matched(ply, state.getUnitCount())
+					: new boolean[state.getUnitCount()];
+			addJointMoves(state, options, 0, chosen, matched, children, scores, arena, ply);
+		}
+		//Insertion sort (stable, so equally scored children keep the generation order) of both lists together
+		for (int i = 1; i < children.size(); i++) {
+			GameStateChild child = children.get(i);
+			int score = scores[i];
+			int j = i - 1;
+			for (; j >= 0 && scores[j] < score; j--) {
+				children.set(j + 1, children.get(j));
+				scores[j + 1] = scores[j];
+			}
+			children.set(j + 1, child);
+			scores[j + 1] = score;
+		}
+		return children;
+	}
+
+	/**
+	 * One child per option of the next live unit of the side that has not
+	 * picked yet this turn. Units that already moved hold their new cells and
+	 * the ones still to move hold their old ones, so nobody steps onto a
+	 * friend (which also rules out two units swapping).
+	 */
+	private static List<GameStateChild> getSubPlyChildren(GameState state, boolean playerTurn, SearchArena arena,
+			int ply) {
+		int unit = 0;
+		while (unit < state.getUnitCount() && (state.isFootman(unit) != playerTurn
+				|| state.getUnitHP(unit) <= 0 || state.hasMoved(unit))) {
+			unit++;
+		}
+		List<GameStateChild> children = arena != null ? arena.children(ply)
+				: new ArrayList<GameStateChild>(CARDINALS.length);
+		if (unit == state.getUnitCount()) {
+			return children;
+		}
+
+		List<UnitMove> options = arena != null ? arena.optionList(ply, 0) : new ArrayList<UnitMove>(CARDINALS.length);
+		addUnitMoves(state, unit, options, arena, ply);
+		List<UnitMove> moves = arena != null ? arena.optionList(ply, 1) : new ArrayList<UnitMove>(CARDINALS.length);
+		for (int i = 0; i < options.size(); i++) {
+			UnitMove move = options.get(i);
+			if (move.isAttack() || move.isStay() || !friendAt(state, unit, move.toX, move.toY)) {
+				moves.add(move);
+			}
+		}
+		if (moves.isEmpty()) {
+			//Every step is taken by a friend, so wait for this turn
+			moves.add(newMove(arena, ply, unit, null, -1, state.getUnitX(unit), state.getUnitY(unit), 0));
+		}
+		//Stable sort, best for the mover first
+		Collections.sort(moves, BEST_FIRST);
+
+		for (int i = 0; i < moves.size(); i++) {
+			UnitMove move = moves.get(i);
+			GameState child = arena != null ? arena.copy(ply, state) : new GameState(state);
+			if (state.isTurnComplete()) {
+				child.startTurn();
+			}
+			child.finishUnitMove(unit, applyMove(state, child, move));
+			children.add(arena != null ? arena.child(ply, child) : new GameStateChild(null, child));
+		}
+		return children;
+	}
+
+	/**
+	 * The complete turn in which each unit plays its given option, in list
+	 * order. Unlike the generated children, a step may be blocked: a step off
+	 * the map, into an obstacle or onto a cell a unit holds at that point
+	 * fails and the unit stays where it is, as in the game.
+	 */
+	static GameStateChild playMoves(GameState state, List<UnitMove> moves) {
+		GameState child = new GameState(state);
+		child.startTurn();
+		for (UnitMove move : moves) {
+			if (!move.isAttack() && !move.isStay() && (child.isBlocked(move.toX, move.toY)
+					|| friendAt(child, move.unit, move.toX, move.toY)
+					|| enemyAt(child, child.isFootman(move.unit), move.toX, move.toY))) {
+				//Still issued, SEPIA just won't carry it out
+				child.setTurnMove(move.unit, MoveCode.step(move.unit, move.direction));
+				continue;
+			}
+			child.setTurnMove(move.unit, applyMove(state, child, move));
+		}
+		return new GameStateChild(null, child);
+	}
+
+	//Plays one unit's option on the child state and returns its MoveCode
+	private static int applyMove(GameState state, GameState child, UnitMove move) {
+		if (move.isAttack()) {
+			child.damageUnit(move.target, state.getUnitAttack(move.unit));
+			return MoveCode.attack(move.unit, move.target);
+		}
+		if (move.isStay()) {
+			return MoveCode.stay(move.unit);
+		}
+		child.setUnitPosition(move.unit, move.toX, move.toY);
+		return MoveCode.step(move.unit, move.direction);
+	}
+
+	/**
+	 * True if a live unit on the same side as this one (other than itself)
+	 * stands on the cell.
+	 */
+	static boolean friendAt(GameState state, int unit, int x, int y) {
+		for (int other = 0; other < state.getUnitCount(); other++) {
+			if (other != unit && state.isFootman(other) == state.isFootman(unit) && state.getUnitHP(other) > 0
+					&& state.getUnitX(other) == x && state.getUnitY(other) == y) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The options of a single live unit, without duplicates.
+	 */
+	static List<UnitMove> getUnitMoves(GameState state, int unit) {
+		List<UnitMove> moves = new ArrayList<UnitMove>(CARDINALS.length);
+		addUnitMoves(state, unit, moves, null, 0);
+		return moves;
+	}
+
+	//Adds the options of a single live unit to the (empty) list, taking them from the arena if there is one
+	private static void addUnitMoves(GameState state, int unit, List<UnitMove> moves, SearchArena arena, int ply) {
+		boolean footman = state.isFootman(unit);
+		int x = state.getUnitX(unit);
+		int y = state.getUnitY(unit);
+
+		//Anyone in range gets attacked, one option per distinct target
+		for (int other = 0; other < state.getUnitCount(); other++) {
+			if (state.isFootman(other) != footman && state.getUnitHP(other) > 0 && inRange(state, unit, other)) {
+				moves.add(newMove(arena, ply, unit, null, other, x, y, ATTACK_SCORE - state.getUnitHP(other)));
+			}
+		}
+		if (!moves.isEmpty()) {
+			return;
+		}
+
+		for (Direction direction : CARDINALS) {
+			int toX = x + direction.xComponent();
+			int toY = y + direction.yComponent();
+			if (state.isBlocked(toX, toY) || enemyAt(state, footman, toX, toY)) {
+				//Would not move at all in the game, so it's just a duplicate of standing still
+				continue;
+			}
+			moves.add(newMove(arena, ply, unit, direction, -1, toX, toY, stepScore(state, footman, toX, toY)));
+		}
+		if (moves.isEmpty()) {
+			//Boxed in, so the only thing this unit can do is wait
+			moves.add(newMove(arena, ply, unit, null, -1, x, y, 0));
+		}
+	}
+
+	private static UnitMove newMove(SearchArena arena, int ply, int unit, Direction direction, int target,
+			int toX, int toY, int score) {
+		return arena != null ? arena.move(ply).set(unit, direction, target, toX, toY, score)
+				: new UnitMove(unit, direction, target, toX, toY, score);
+	}
+
+	//Footmen attack when orthogonally adjacent; archers when within their range (chebyshev, like SEPIA)
+	static boolean inRange(GameState state, int attacker, int target) {
+		int dx = Math.abs(state.getUnitX(attacker) - state.getUnitX(target));
+		int dy = Math.abs(state.getUnitY(attacker) - state.getUnitY(target));
+		if (state.isFootman(attacker)) {
+			return dx + dy == 1;
+		}
+		return Math.max(dx, dy) <= state.getUnitRange(attacker);
+	}
+
+	private static boolean enemyAt(GameState state, boolean footman, int x, int y) {
+		for (int other = 0; other < state.getUnitCount(); other++) {
+			if (state.isFootman(other) != footman && state.getUnitHP(other) > 0
+					&& state.getUnitX(other) == x && state.getUnitY(other) == y) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Footmen like steps that close in on the nearest archer, archers like steps that keep their distance
+	private static int stepScore(GameState state, boolean footman, int x, int y) {
+		int nearest = Integer.MAX_VALUE;
+		for (int other = 0; other < state.getUnitCount(); other++) {
+			if (state.isFootman(other) != footman && state.getUnitHP(other) > 0) {
+				nearest = Math.min(nearest, Math.abs(state.getUnitX(other) - x) + Math.abs(state.getUnitY(other) - y));
+			}
+		}
+		if (nearest == Integer.MAX_VALUE) {
+			return 0;
+		}
+		return footman ? -nearest : nearest;
+	}
+
+	//Recursively combines one option per unit, skipping collisions and symmetric duplicates
+	private static void addJointMoves(GameState state, List<List<UnitMove>> options, int depth, UnitMove[] chosen,
+			boolean[] matched, List<GameStateChild> children, int[] scores, SearchArena arena, int ply) {
+		if (depth == options.size()) {
+			GameState child = arena != null ? arena.copy(ply, state) : new GameState(state);
+			child.startTurn();
+			int score = 0;
+			//chosen may be longer than options when it comes from the arena
+			for (int i = 0; i < depth; i++) {
+				UnitMove move = chosen[i];
+				child.setTurnMove(move.unit, applyMove(state, child, move));
+				score += move.score;
+			}
+			for (int i = 0; i < children.size(); i++) {
+				if (children.get(i).state.sameSituation(child, matched)) {
+					if (arena != null) {
+						arena.discardLastCopy(ply);
+					}
+					return;
+				}
+			}
+			scores[children.size()] = score;
+			children.add(arena != null ? arena.child(ply, child) : new GameStateChild(null, child));
+			return;
+		}
+
+		List<UnitMove> unitOptions = options.get(depth);
+		for (int o = 0; o < unitOptions.size(); o++) {
+			UnitMove move = unitOptions.get(o);
+			//An attacking unit stays where it is, so this also stops anyone stepping onto it
+			boolean collides = false;
+			for (int i = 0; i < depth && !collides; i++) {
+				UnitMove earlier = chosen[i];
+				collides = CooperativePlanner.conflicts(state.getUnitX(earlier.unit), state.getUnitY(earlier.unit),
+						earlier.toX, earlier.toY, state.getUnitX(move.unit), state.getUnitY(move.unit),
+						move.toX, move.toY);
+			}
+			if (collides) {
+				continue;
+			}
+			chosen[depth] = move;
+			addJointMoves(state, options, depth + 1, chosen, matched, children, scores, arena, ply);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.List;
+
+/**
+ * Predicts how the archers answer a footman turn, so MinimaxAlphaBeta can
+ * search a few likely replies at its min nodes instead of every joint archer
+ * action (its opponent-model mode).
+ *
+ * Implementations need a public no-argument constructor to be picked from the
+ * agent arguments.
+ */
+public interface OpponentModel {
+
+	/**
+	 * At most limit archer replies to this state, each one a complete archer
+	 * turn, most likely first. An empty list means the model has nothing to
+	 * say about this state and the search expands every reply instead.
+	 */
+	List<GameStateChild> predictReplies(GameState state, int limit);
+}
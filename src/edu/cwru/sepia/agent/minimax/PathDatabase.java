@@ -0,0 +1,412 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compressed path database (CPD): for every source cell, the first move of a
+ * shortest 4-connected path to every other cell, ignoring units. Walking the
+ * first moves from source to target gives an exact shortest path, and its
+ * length, with no search, for maps too big for DistanceTable's all-pairs
+ * distances.
+ *
+ * A source's first moves are run-length encoded over the targets in row
+ * major order. Where several first moves are optimal the builder keeps
+ * whichever continues the current run, and obstacle cells (never a target)
+ * take whatever move their neighbours have, so on typical maps a source needs
+ * a few dozen runs rather than one entry per cell. A lookup is a binary search
+ * in the source's runs.
+ *
+ * Files live next to the distance tables (see DistanceTable.dataDirectory),
+ * named after the layout hash with a .cpd extension, and are memory-mapped.
+ *
+ * File layout (big endian):
+ * int magic, int version, int xExtent, int yExtent, long layoutHash,
+ * int run count, then cells + 1 ints giving where each source's runs start,
+ * then the runs, one int each: first target << 3 | move.
+ */
+public class PathDatabase {
+
+	//First moves, in the order AstarAgent.getNeighbor tries them
+	static final int WEST = 0;
+	static final int NORTH = 1;
+	static final int SOUTH = 2;
+	static final int EAST = 3;
+	//No move: the target can't be reached
+	static final int NONE = 4;
+	public static final int UNREACHABLE = -1;
+
+	private static final int[] DX = { -1, 0, 0, 1 };
+	private static final int[] DY = { 0, -1, 1, 0 };
+	//Sets of allowed moves: bits 0-3 are the directions, bit 4 NONE; an obstacle target allows anything
+	private static final int ANY = 0x1F;
+
+	private static final int MAGIC = 0x43504431; // "CPD1"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 28;
+
+	//Databases opened so far, keyed by layout hash
+	private static final Map<Long, PathDatabase> openDatabases = new HashMap<Long, PathDatabase>();
+
+	private final ByteBuffer data;
+	private final int xExtent;
+	private final int yExtent;
+	private final int cells;
+	private final long layoutHash;
+	private final int runsStart;
+
+	private PathDatabase(ByteBuffer data, int xExtent, int yExtent, long layoutHash) {
+		this.data = data;
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.cells = xExtent * yExtent;
+		this.layoutHash = layoutHash;
+		this.runsStart = HEADER_BYTES + 4 * (cells + 1);
+	}
+
+	/**
+	 * The first move (WEST, NORTH, SOUTH or EAST) of a shortest path from one
+	 * cell to another, or NONE if there is none. Undefined when the two are
+	 * the same cell or either is an obstacle.
+	 */
+	public int firstMove(int fromX, int fromY, int toX, int toY) {
+		int source = fromY * xExtent + fromX;
+		int target = toY * xExtent + toX;
+		int low = data.getInt(HEADER_BYTES + 4 * source);
+		int high = data.getInt(HEADER_BYTES + 4 * (source + 1)) - 1;
+		//The last run starting at or before target
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (data.getInt(runsStart + 4 * middle) >>> 3 <= target) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+		return data.getInt(runsStart + 4 * low) & 7;
+	}
+
+	/**
+	 * The number of steps on a shortest path between two free cells, ignoring
+	 * units, or UNREACHABLE; found by walking the first moves.
+	 */
+	public int distance(int fromX, int fromY, int toX, int toY) {
+		int steps = 0;
+		int x = fromX;
+		int y = fromY;
+		while (x != toX || y != toY) {
+			int move = firstMove(x, y, toX, toY);
+			if (move == NONE || steps > cells) {
+				return UNREACHABLE;
+			}
+			x += DX[move];
+			y += DY[move];
+			steps++;
+		}
+		return steps;
+	}
+
+	/**
+	 * The cells (y * xExtent + x) of a shortest path between two free cells,
+	 * the start left out and the goal included; null if there is none.
+	 */
+	public int[] path(int fromX, int fromY, int toX, int toY) {
+		int steps = distance(fromX, fromY, toX, toY);
+		if (steps == UNREACHABLE) {
+			return null;
+		}
+		int[] path = new int[steps];
+		int x = fromX;
+		int y = fromY;
+		for (int i = 0; i < steps; i++) {
+			int move = firstMove(x, y, toX, toY);
+			x += DX[move];
+			y += DY[move];
+			path[i] = y * xExtent + x;
+		}
+		return path;
+	}
+
+	public int getXExtent() {
+		return xExtent;
+	}
+
+	public int getYExtent() {
+		return yExtent;
+	}
+
+	public long getLayoutHash() {
+		return layoutHash;
+	}
+
+	//Total runs over all sources, for reporting the compression
+	public int getRunCount() {
+		return data.getInt(24);
+	}
+
+	/**
+	 * Returns the database already opened for this map, or null if nobody
+	 * called open() for it.
+	 */
+	public static synchronized PathDatabase lookup(long layoutHash) {
+		return openDatabases.get(layoutHash);
+	}
+
+	/**
+	 * Maps the database for this state's map, building and writing the file
+	 * first if it does not exist yet. Call this once from initialStep.
+	 */
+	public static PathDatabase open(State.StateView state) {
+		return open(state.getXExtent(), state.getYExtent(), DistanceTable.obstacleGrid(state));
+	}
+
+	public static PathDatabase open(CompactMap map) {
+		return open(map.getXExtent(), map.getYExtent(), map.getBlocked());
+	}
+
+	private static synchronized PathDatabase open(int xExtent, int yExtent, boolean[] blocked) {
+		long hash = DistanceTable.layoutHash(xExtent, yExtent, blocked);
+		PathDatabase database = openDatabases.get(hash);
+		if (database != null) {
+			return database;
+		}
+
+		File file = databaseFile(hash);
+		try {
+			if (!file.exists()) {
+				write(file, xExtent, yExtent, blocked, Runtime.getRuntime().availableProcessors());
+			}
+			database = map(file);
+		} catch (IOException e) {
+			//As with the distance tables, no file only means building it again next time
+			System.err.println("Could not use path database " + file + ": " + e.getMessage());
+			database = new PathDatabase(build(xExtent, yExtent, blocked, hash, 1), xExtent, yExtent, hash);
+		}
+		if (database.layoutHash != hash || database.xExtent != xExtent || database.yExtent != yExtent) {
+			System.err.println("Path database " + file + " does not match the map, rebuilding in memory");
+			database = new PathDatabase(build(xExtent, yExtent, blocked, hash, 1), xExtent, yExtent, hash);
+		}
+		openDatabases.put(hash, database);
+		return database;
+	}
+
+	/**
+	 * Memory-maps an existing database file.
+	 */
+	public static PathDatabase map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("not a path database (version " + VERSION + ")");
+			}
+			int xExtent = buffer.getInt(8);
+			int yExtent = buffer.getInt(12);
+			long hash = buffer.getLong(16);
+			long cells = (long) xExtent * yExtent;
+			if (channel.size() != HEADER_BYTES + 4 * (cells + 1) + 4L * buffer.getInt(24)) {
+				throw new IOException("truncated path database");
+			}
+			return new PathDatabase(buffer, xExtent, yExtent, hash);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Builds the database for a map on the given number of threads and writes
+	 * it to the given file.
+	 */
+	public static void write(File file, int xExtent, int yExtent, boolean[] blocked, int threads) throws IOException {
+		ByteBuffer database = build(xExtent, yExtent, blocked, DistanceTable.layoutHash(xExtent, yExtent, blocked),
+				threads);
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("cannot create " + parent);
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			database.rewind();
+			while (database.hasRemaining()) {
+				channel.write(database);
+			}
+		} finally {
+			raf.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("cannot rename " + temp + " to " + file);
+		}
+	}
+
+	public static File databaseFile(long layoutHash) {
+		return new File(DistanceTable.dataDirectory(), String.format("%016x.cpd", layoutHash));
+	}
+
+	//Sources are independent, so they are handed out in blocks to a pool of threads and the runs joined in order
+	private static ByteBuffer build(final int xExtent, final int yExtent, final boolean[] blocked, long hash,
+			int threads) {
+		final int cells = xExtent * yExtent;
+		final int[][] runs = new int[cells][];
+		int blocks = Math.max(1, Math.min(cells, threads * 8));
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<?>> pending = new ArrayList<Future<?>>();
+			for (int block = 0; block < blocks; block++) {
+				final int first = (int) ((long) cells * block / blocks);
+				final int last = (int) ((long) cells * (block + 1) / blocks);
+				pending.add(pool.submit(new Runnable() {
+					public void run() {
+						int[] queue = new int[cells];
+						int[] moves = new int[cells];
+						int[] scratch = new int[cells];
+						for (int source = first; source < last; source++) {
+							runs[source] = compress(source, xExtent, yExtent, blocked, queue, moves, scratch);
+						}
+					}
+				}));
+			}
+			for (Future<?> future : pending) {
+				future.get();
+			}
+		} catch (Exception e) {
+			throw new IllegalStateException("Building the path database failed", e);
+		} finally {
+			pool.shutdown();
+		}
+
+		int total = 0;
+		for (int[] sourceRuns : runs) {
+			total += sourceRuns.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * (cells + 1) + 4 * total);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(xExtent).putInt(yExtent).putLong(hash).putInt(total);
+		int offset = 0;
+		for (int source = 0; source < cells; source++) {
+			buffer.putInt(offset);
+			offset += runs[source].length;
+		}
+		buffer.putInt(offset);
+		for (int[] sourceRuns : runs) {
+			for (int run : sourceRuns) {
+				buffer.putInt(run);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/*
+	 * One source's runs. A breadth first search gives every target the set of
+	 * first moves that start a shortest path to it (the union over its parents
+	 * one step closer). Then each run starts at the first target not covered
+	 * yet and is made as long as some single move stays allowed, which is the
+	 * fewest runs for that order of targets.
+	 */
+	private static int[] compress(int source, int xExtent, int yExtent, boolean[] blocked, int[] queue, int[] moves,
+			int[] scratch) {
+		int cells = xExtent * yExtent;
+		//moves[cell] is the allowed set; 0 while not reached yet
+		for (int cell = 0; cell < cells; cell++) {
+			moves[cell] = blocked[cell] ? ANY : 0;
+		}
+		int[] distance = scratch;
+		moves[source] = ANY;
+		if (!blocked[source]) {
+			int head = 0;
+			int tail = 0;
+			distance[source] = 0;
+			queue[tail++] = source;
+			while (head < tail) {
+				int current = queue[head++];
+				int x = current % xExtent;
+				int y = current / xExtent;
+				for (int move = 0; move < 4; move++) {
+					int nx = x + DX[move];
+					int ny = y + DY[move];
+					if (nx < 0 || ny < 0 || nx >= xExtent || ny >= yExtent) {
+						continue;
+					}
+					int next = ny * xExtent + nx;
+					if (blocked[next] || next == source) {
+						continue;
+					}
+					int allowed = current == source ? 1 << move : moves[current];
+					if (moves[next] == 0) {
+						moves[next] = allowed;
+						distance[next] = distance[current] + 1;
+						queue[tail++] = next;
+					}
+					else if (distance[next] == distance[current] + 1) {
+						moves[next] |= allowed;
+					}
+				}
+			}
+		}
+		for (int cell = 0; cell < cells; cell++) {
+			if (moves[cell] == 0) {
+				moves[cell] = 1 << NONE;
+			}
+		}
+
+		int count = 0;
+		int target = 0;
+		while (target < cells) {
+			int start = target;
+			int allowed = moves[target];
+			while (target < cells && (allowed & moves[target]) != 0) {
+				allowed &= moves[target];
+				target++;
+			}
+			//Plain moves before NONE, so a run of obstacles alone still says something walkable
+			queue[count++] = start << 3 | Integer.numberOfTrailingZeros(allowed);
+		}
+		int[] result = new int[count];
+		System.arraycopy(queue, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Precomputes the databases for the given map files (state XMLs or
+	 * compact maps) on every core, e.g.
+	 * java edu.cwru.sepia.agent.minimax.PathDatabase data/Game2fv2a_Obstacles.xml
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: PathDatabase <map file>...");
+			System.exit(1);
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (String mapName : args) {
+			CompactMap map = CompactMap.load(new File(mapName));
+			File file = databaseFile(map.getLayoutHash());
+			long startTime = System.nanoTime();
+			write(file, map.getXExtent(), map.getYExtent(), map.getBlocked(), threads);
+			PathDatabase database = map(file);
+			int cells = map.getXExtent() * map.getYExtent();
+			System.out.println(mapName + " -> " + file + " (" + file.length() + " bytes, "
+					+ database.getRunCount() / (double) cells + " runs per cell, "
+					+ (System.nanoTime() - startTime) / 1000000 + " ms on " + threads + " threads)");
+		}
+	}
+}
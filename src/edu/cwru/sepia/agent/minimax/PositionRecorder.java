@@ -0,0 +1,208 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only log of the root positions MinimaxAlphaBeta decided on, with
+ * what it chose and what that cost, so the same positions can be searched
+ * again offline by PositionReplay without SEPIA running the game.
+ *
+ * Each record is an int payload length followed by the payload, written with
+ * one write() on a file opened for appending, so a crash can only leave a
+ * truncated last record, which readAll() ignores. Payload layout (big
+ * endian): int magic, int version, int turn, int plys, long nodes, long
+ * nanoseconds, boolean cut short by the budget, double utility of the chosen
+ * state, int unit count, that many MoveCodes (the move each unit was given),
+ * then the position as a CompactMap.
+ *
+ * When a game ends a result record follows its positions: int magic "RSLT",
+ * int version, double result (1 for a footmen win, 0 for an archer win, 0.5
+ * for neither). readAll() gives every position of the game that result, for
+ * EvaluationTuner. A game start record (int magic "GAME", int version) comes
+ * before each game's positions, so the positions of a game that was cut off
+ * before its result keep NaN instead of taking the next game's result. Logs
+ * from before game start records are split where the turn number goes back.
+ */
+class PositionRecorder {
+
+	private static final int MAGIC = 0x504F534E; //"POSN"
+	private static final int RESULT_MAGIC = 0x52534C54; //"RSLT"
+	private static final int GAME_MAGIC = 0x47414D45; //"GAME"
+	private static final int VERSION = 1;
+
+	//One recorded decision
+	static final class Position {
+		int turn;
+		int plys;
+		long nodes;
+		long nanos;
+		boolean cutShort;
+		double utility;
+		int[] moves;
+		CompactMap map;
+		//How the game went on to end, from the footmen's side; NaN if unknown
+		double result = Double.NaN;
+	}
+
+	private final File file;
+
+	PositionRecorder(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Appends one decision: the root position, the turn and depth it was
+	 * searched at, the state the search chose and the search's cost.
+	 */
+	synchronized void record(CompactMap map, int turn, int plys, GameState chosen, long nodes, long nanos,
+			boolean cutShort) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeInt(MAGIC);
+		payload.writeInt(VERSION);
+		payload.writeInt(turn);
+		payload.writeInt(plys);
+		payload.writeLong(nodes);
+		payload.writeLong(nanos);
+		payload.writeBoolean(cutShort);
+		payload.writeDouble(chosen.getUtility());
+		payload.writeInt(chosen.getUnitCount());
+		for (int unit = 0; unit < chosen.getUnitCount(); unit++) {
+			payload.writeInt(chosen.getTurnMove(unit));
+		}
+		map.write(payload);
+		payload.flush();
+		append(bytes);
+	}
+
+	/**
+	 * Marks the start of a game: positions recorded before this and not
+	 * followed by a result belong to a game that never finished.
+	 */
+	synchronized void recordGameStart() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeInt(GAME_MAGIC);
+		payload.writeInt(VERSION);
+		payload.flush();
+		append(bytes);
+	}
+
+	/**
+	 * Appends the result of the game whose positions were recorded last: 1
+	 * if the footmen won, 0 if the archers did, 0.5 otherwise.
+	 */
+	synchronized void recordResult(double result) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeInt(RESULT_MAGIC);
+		payload.writeInt(VERSION);
+		payload.writeDouble(result);
+		payload.flush();
+		append(bytes);
+	}
+
+	//Writes the length and then the payload, in one write
+	private void append(ByteArrayOutputStream bytes) throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.size() + 4);
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+		out.flush();
+		FileOutputStream stream = new FileOutputStream(file, true);
+		try {
+			record.writeTo(stream);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Every complete position in a log, oldest first, each with the result of
+	 * its game (NaN if the game has none). A truncated record at the end (a
+	 * recording that was killed mid write) is dropped.
+	 */
+	static List<Position> readAll(File file) throws IOException {
+		List<Position> positions = new ArrayList<Position>();
+		//The first position with no result yet
+		int unsettled = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				byte[] payload;
+				try {
+					int length = in.readInt();
+					if (length <= 0) {
+						throw new IOException(file + ": bad record length " + length + " after "
+								+ positions.size() + " records");
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch (EOFException e) {
+					break;
+				}
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				int magic = payload.length >= 8 ? record.readInt() : 0;
+				if (magic == RESULT_MAGIC || magic == GAME_MAGIC) {
+					if (record.readInt() != VERSION) {
+						throw new IOException(file + ": record after " + positions.size()
+								+ " positions is not version " + VERSION);
+					}
+					if (magic == GAME_MAGIC) {
+						//Whatever is still unsettled was cut off, so it keeps NaN
+						unsettled = positions.size();
+						continue;
+					}
+					double result = record.readDouble();
+					for (; unsettled < positions.size(); unsettled++) {
+						positions.get(unsettled).result = result;
+					}
+					continue;
+				}
+				Position position = parse(new DataInputStream(new ByteArrayInputStream(payload)), file, positions.size());
+				//No game start record (an older log), but the turn going back still means a new game
+				if (unsettled < positions.size() && position.turn <= positions.get(positions.size() - 1).turn) {
+					unsettled = positions.size();
+				}
+				positions.add(position);
+			}
+		} finally {
+			in.close();
+		}
+		return positions;
+	}
+
+	private static Position parse(DataInputStream in, File file, int index) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException(file + ": record " + index + " is not a position (version " + VERSION + ")");
+		}
+		Position position = new Position();
+		position.turn = in.readInt();
+		position.plys = in.readInt();
+		position.nodes = in.readLong();
+		position.nanos = in.readLong();
+		position.cutShort = in.readBoolean();
+		position.utility = in.readDouble();
+		position.moves = new int[in.readInt()];
+		for (int unit = 0; unit < position.moves.length; unit++) {
+			position.moves[unit] = in.readInt();
+		}
+		try {
+			position.map = CompactMap.read(in);
+		} catch (IOException e) {
+			throw new IOException(file + ": record " + index + ": " + e.getMessage(), e);
+		}
+		return position;
+	}
+}
@@ -0,0 +1,93 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Searches the positions in a PositionRecorder log again, outside SEPIA, and
+ * reports how the search's cost and choices compare with the recording.
+ *
+ * Usage: PositionReplay <log file> <plys> [predicted replies [opponent model]],
+ * the same arguments the agent takes; everything else (threads, hash size,
+ * turn budget) comes from the usual -Dminimax properties. A log can hold
+ * several games back to back; a new episode starts wherever the map changes
+ * or the turn number stops increasing, as it would in a live run, so the
+ * transposition table and opening knowledge are carried over exactly as far
+ * as they were while recording. With a budget set the timing and the cut
+ * short searches depend on the machine, so turn it off
+ * (-Dminimax.turnBudgetMs=0) to compare node counts between builds.
+ */
+public class PositionReplay {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: PositionReplay <log file> <plys> [predicted replies [opponent model]]");
+			System.exit(1);
+		}
+		List<PositionRecorder.Position> positions = PositionRecorder.readAll(new File(args[0]));
+		System.out.println(positions.size() + " positions in " + args[0]);
+		MinimaxAlphaBeta agent = new MinimaxAlphaBeta(0, Arrays.copyOfRange(args, 1, args.length));
+
+		long recordedNodes = 0;
+		long recordedNanos = 0;
+		long replayNodes = 0;
+		long replayNanos = 0;
+		int agreed = 0;
+		int cutShort = 0;
+		int episodes = 0;
+		long layout = 0;
+		int lastTurn = Integer.MAX_VALUE;
+		for (int i = 0; i < positions.size(); i++) {
+			PositionRecorder.Position position = positions.get(i);
+			CompactMap map = position.map;
+			if (episodes == 0 || map.getLayoutHash() != layout || position.turn <= lastTurn) {
+				if (map.getXExtent() * map.getYExtent() <= DistanceTable.MAX_CELLS) {
+					DistanceTable.open(map);
+				}
+				else {
+					PathDatabase.open(map);
+				}
+				EndgameTablebase.open(map);
+				agent.startEpisode(new GameState(map));
+				layout = map.getLayoutHash();
+				episodes++;
+			}
+			lastTurn = position.turn;
+
+			long startTime = System.nanoTime();
+			GameStateChild best = agent.decide(new GameStateChild(null, new GameState(map)), position.turn, startTime);
+			long nanos = System.nanoTime() - startTime;
+			boolean same = best.state.getUnitCount() == position.moves.length;
+			for (int unit = 0; same && unit < position.moves.length; unit++) {
+				same = best.state.getTurnMove(unit) == position.moves[unit];
+			}
+
+			recordedNodes += position.nodes;
+			recordedNanos += position.nanos;
+			replayNodes += agent.getLastNodes();
+			replayNanos += nanos;
+			if (same) {
+				agreed++;
+			}
+			if (agent.wasCutShort()) {
+				cutShort++;
+			}
+			System.out.println(String.format("%5d turn %3d: recorded %9d nodes %8.1f ms%s, replay %9d nodes %8.1f ms%s, %s",
+					i, position.turn, position.nodes, position.nanos / 1e6, position.cutShort ? " (cut)" : "",
+					agent.getLastNodes(), nanos / 1e6, agent.wasCutShort() ? " (cut)" : "",
+					same ? "same move" : "different move"));
+		}
+
+		if (positions.isEmpty()) {
+			return;
+		}
+		System.out.println(positions.size() + " positions in " + episodes + " episodes");
+		System.out.println(String.format("Recorded: %d nodes in %.1f ms, %.0f nodes per second", recordedNodes,
+				recordedNanos / 1e6, recordedNodes / Math.max(recordedNanos / 1e9, 1e-9)));
+		System.out.println(String.format("Replay:   %d nodes in %.1f ms, %.0f nodes per second, %d cut short",
+				replayNodes, replayNanos / 1e6, replayNodes / Math.max(replayNanos / 1e9, 1e-9), cutShort));
+		System.out.println(String.format("Same move in %d of %d positions (%.1f%%)", agreed, positions.size(),
+				100.0 * agreed / positions.size()));
+	}
+}
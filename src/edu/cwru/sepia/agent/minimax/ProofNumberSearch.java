@@ -0,0 +1,302 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Depth-first proof-number search (df-pn) for "the footmen kill every archer
+ * within K of their turns, whatever the archers do".
+ *
+ * Footmen nodes are OR nodes (one winning move proves them) and archer nodes
+ * AND nodes (every reply has to lose). Each node has a proof number, the
+ * fewest leaves still to prove to prove it, and a disproof number, the same
+ * for disproving it; df-pn always works on the most proving child, depth
+ * first, under thresholds that send it back up once a sibling looks cheaper.
+ * Unlike fixed depth alpha-beta it needs no evaluation and goes as deep as
+ * the forcing line does, so a kill a few turns past the search horizon is
+ * found, and once found it is certain. A node whose footmen have run out of
+ * turns is disproved; so is one where they are all dead.
+ *
+ * The numbers live in a fixed size table (two way buckets, 20 bytes an
+ * entry), so memory is bounded however long the search runs. A new entry
+ * replaces the one in its bucket that took less work to find, and solved
+ * entries are kept over unsolved ones. Losing an entry only costs searching
+ * it again. Positions are keyed by CanonicalKey with the turns left mixed in,
+ * since the same units with fewer turns to go is a different question. The
+ * table lasts the episode (clear() starts a new one), so once the root is
+ * proved the next turns' roots, further down the same proof, are answered
+ * from it straight away.
+ *
+ * Not thread safe: one search at a time, though stop() may be called from
+ * another thread.
+ */
+class ProofNumberSearch {
+
+	//Proof and disproof numbers saturate here; a node with either at INFINITY is solved
+	static final int INFINITY = 1 << 28;
+
+	private static final int ENTRY_BYTES = 20;
+	private static final int MAX_BITS = 26;
+	//The clock is only read once per this many nodes
+	private static final int POLL_INTERVAL = 64;
+
+	private final long[] keys;
+	private final int[] proofs;
+	private final int[] disproofs;
+	//Nodes searched under each entry, for choosing which to replace
+	private final int[] works;
+	private final int mask;
+	private final CanonicalKey canonicalKey = new CanonicalKey();
+
+	private long nodes;
+	private long maxNodes;
+	private long deadline;
+	private boolean aborted;
+	private volatile boolean stopRequested;
+
+	/**
+	 * @param bits The table has 2^bits entries
+	 */
+	ProofNumberSearch(int bits) {
+		if (bits < 2 || bits > MAX_BITS) {
+			throw new IllegalArgumentException("Proof table bits must be 2 to " + MAX_BITS + ": " + bits);
+		}
+		keys = new long[1 << bits];
+		proofs = new int[1 << bits];
+		disproofs = new int[1 << bits];
+		works = new int[1 << bits];
+		mask = (1 << bits) - 2;
+	}
+
+	//The number of bits for the largest table that fits in the given number of megabytes
+	static int bitsFor(long megabytes) {
+		long entries = Math.max(4, megabytes * 1024 * 1024 / ENTRY_BYTES);
+		return Math.min(MAX_BITS, 63 - Long.numberOfLeadingZeros(entries));
+	}
+
+	void clear() {
+		Arrays.fill(keys, 0);
+	}
+
+	//Makes a running solve() give up soon, or the next one at once if it has not started yet; safe from any thread
+	void stop() {
+		stopRequested = true;
+	}
+
+	//Lets the next solve() run; call before handing it to another thread, so a stop() that beats it there still counts
+	void clearStop() {
+		stopRequested = false;
+	}
+
+	long getLastNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Tries to prove that the footmen, to move in root, win within the given
+	 * number of their turns. Gives up after maxNodes nodes, at deadline
+	 * (System.nanoTime) or on stop() since the last clearStop(), whichever
+	 * comes first.
+	 *
+	 * @return The first step of a proven win, carried on through sub-ply
+	 *         children until every footman has its action (as
+	 *         alphaBetaSearch returns it), or null if the win was disproved
+	 *         or the search gave up
+	 */
+	GameStateChild solve(GameState root, int turns, long maxNodes, long deadline) {
+		this.nodes = 0;
+		this.maxNodes = maxNodes;
+		this.deadline = deadline;
+		this.aborted = false;
+		GameStateChild line = new GameStateChild(null, root);
+		do {
+			search(line.state, true, turns, INFINITY, INFINITY);
+			if (aborted || proof(line.state, true, turns) != 0) {
+				return null;
+			}
+			line = provingChild(line.state, turns);
+			if (line == null) {
+				//The proof was pushed out of the table on the way back up
+				return null;
+			}
+		} while (!line.state.isTurnComplete());
+		return line;
+	}
+
+	//The OR child with proof number 0, or null if none is known
+	private GameStateChild provingChild(GameState state, int turns) {
+		for (GameStateChild child : MoveGenerator.getChildren(state, true)) {
+			boolean childTurn = !child.state.isTurnComplete();
+			int childTurns = child.state.isTurnComplete() ? turns - 1 : turns;
+			if (proof(child.state, childTurn, childTurns) == 0) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	//Searches this node until its proof number reaches proofLimit or its disproof number disproofLimit
+	private void search(GameState state, boolean footmenTurn, int turns, int proofLimit, int disproofLimit) {
+		if (outOfBudget()) {
+			return;
+		}
+		long startNodes = nodes++;
+		long key = key(state, footmenTurn, turns);
+		List<GameStateChild> children = MoveGenerator.getChildren(state, footmenTurn);
+		int count = children.size();
+		boolean[] childTurns = new boolean[count];
+		int[] childLeft = new int[count];
+		for (int i = 0; i < count; i++) {
+			GameState child = children.get(i).state;
+			childTurns[i] = child.isTurnComplete() ? !footmenTurn : footmenTurn;
+			childLeft[i] = footmenTurn && child.isTurnComplete() ? turns - 1 : turns;
+		}
+
+		while (true) {
+			int proof;
+			int disproof;
+			int best = -1;
+			//The best child's number and the runner up's: proof numbers at an OR node, disproof numbers at an AND node
+			int bestNumber = INFINITY;
+			int secondNumber = INFINITY;
+			int bestOther = 0;
+			if (count == 0) {
+				//A side with no moves has no live units
+				proof = footmenTurn ? INFINITY : 0;
+				disproof = footmenTurn ? 0 : INFINITY;
+			}
+			else {
+				int sum = 0;
+				for (int i = 0; i < count; i++) {
+					GameState child = children.get(i).state;
+					int childProof = proof(child, childTurns[i], childLeft[i]);
+					int childDisproof = disproof(child, childTurns[i], childLeft[i]);
+					int number = footmenTurn ? childProof : childDisproof;
+					int other = footmenTurn ? childDisproof : childProof;
+					sum = Math.min(INFINITY, sum + other);
+					if (number < bestNumber) {
+						secondNumber = bestNumber;
+						bestNumber = number;
+						bestOther = other;
+						best = i;
+					}
+					else if (number < secondNumber) {
+						secondNumber = number;
+					}
+				}
+				proof = footmenTurn ? bestNumber : sum;
+				disproof = footmenTurn ? sum : bestNumber;
+				if (best < 0) {
+					//Every child is solved against the side to move
+					best = 0;
+				}
+			}
+			store(key, proof, disproof, nodes - startNodes);
+			if (proof >= proofLimit || disproof >= disproofLimit || proof == 0 || disproof == 0 || aborted) {
+				return;
+			}
+
+			//The best child may only use up the slack this node has before its own limit, and must hand back once
+			//it stops being the best
+			int total = footmenTurn ? disproof : proof;
+			int totalLimit = footmenTurn ? disproofLimit : proofLimit;
+			int numberLimit = footmenTurn ? proofLimit : disproofLimit;
+			int childNumberLimit = Math.min(numberLimit, secondNumber == INFINITY ? INFINITY : secondNumber + 1);
+			int childOtherLimit = (int) Math.min(INFINITY, (long) totalLimit - total + bestOther);
+			GameState child = children.get(best).state;
+			if (footmenTurn) {
+				search(child, childTurns[best], childLeft[best], childNumberLimit, childOtherLimit);
+			}
+			else {
+				search(child, childTurns[best], childLeft[best], childOtherLimit, childNumberLimit);
+			}
+		}
+	}
+
+	private int proof(GameState state, boolean footmenTurn, int turns) {
+		int leaf = leaf(state, footmenTurn, turns);
+		if (leaf >= 0) {
+			return leaf == 1 ? 0 : INFINITY;
+		}
+		int slot = find(key(state, footmenTurn, turns));
+		return slot >= 0 ? proofs[slot] : 1;
+	}
+
+	private int disproof(GameState state, boolean footmenTurn, int turns) {
+		int leaf = leaf(state, footmenTurn, turns);
+		if (leaf >= 0) {
+			return leaf == 1 ? INFINITY : 0;
+		}
+		int slot = find(key(state, footmenTurn, turns));
+		return slot >= 0 ? disproofs[slot] : 1;
+	}
+
+	//1 if the footmen have won here, 0 if they can no longer win in time, -1 if the game goes on
+	private static int leaf(GameState state, boolean footmenTurn, int turns) {
+		boolean footmenLeft = false;
+		boolean archersLeft = false;
+		for (int unit = 0; unit < state.getUnitCount(); unit++) {
+			if (state.getUnitHP(unit) > 0) {
+				if (state.isFootman(unit)) {
+					footmenLeft = true;
+				}
+				else {
+					archersLeft = true;
+				}
+			}
+		}
+		if (!archersLeft) {
+			return 1;
+		}
+		if (!footmenLeft || (footmenTurn && state.isTurnComplete() && turns <= 0)) {
+			return 0;
+		}
+		return -1;
+	}
+
+	private long key(GameState state, boolean footmenTurn, int turns) {
+		long key = canonicalKey.key(state, footmenTurn) ^ (turns + 1) * 0x9E3779B97F4A7C15L;
+		//0 marks an empty slot
+		return key == 0 ? 1 : key;
+	}
+
+	//The slot holding this key, or -1
+	private int find(long key) {
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+		if (keys[slot] == key) {
+			return slot;
+		}
+		if (keys[slot + 1] == key) {
+			return slot + 1;
+		}
+		return -1;
+	}
+
+	private void store(long key, int proof, int disproof, long work) {
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+		if (keys[slot] != key && (keys[slot + 1] == key || replaceable(slot + 1) < replaceable(slot))) {
+			slot++;
+		}
+		keys[slot] = key;
+		proofs[slot] = proof;
+		disproofs[slot] = disproof;
+		works[slot] = (int) Math.min(Integer.MAX_VALUE, work);
+	}
+
+	//How much keeping a slot is worth: empty slots nothing, solved ones the most
+	private long replaceable(int slot) {
+		if (keys[slot] == 0) {
+			return -1;
+		}
+		boolean solved = proofs[slot] == 0 || disproofs[slot] == 0;
+		return (solved ? 1L << 32 : 0) + works[slot];
+	}
+
+	private boolean outOfBudget() {
+		if (!aborted && (nodes >= maxNodes || stopRequested
+				|| (nodes % POLL_INTERVAL == 0 && System.nanoTime() > deadline))) {
+			aborted = true;
+		}
+		return aborted;
+	}
+}
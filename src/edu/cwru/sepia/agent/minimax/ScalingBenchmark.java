@@ -0,0 +1,256 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * How the search's parts scale with map size, obstacles and unit count, on
+ * maps made by MapGenerator.
+ *
+ * Usage: ScalingBenchmark [sizes [patterns [teams]]], each a comma separated
+ * list: sizes as WxH, patterns as name or name:density, teams as FvA, e.g.
+ *
+ *     ScalingBenchmark 25x19,64x64,128x128 random:0.2,maze 2v1,2v2
+ *
+ * The default sweep is 25x19 up to 512x512 with random, walls and maze maps
+ * and 2v1 and 2v2 teams. For each map it prints one line with:
+ *
+ *     xml      writing the SEPIA XML and reading it back as a CompactMap
+ *     table    building the hop distance table, or the compressed path
+ *              database on maps over DistanceTable.MAX_CELLS, and its file
+ *              size (built once per obstacle layout, so the other teams on
+ *              it repeat the figures); skipped over -Dminimax.benchTableCells
+ *              cells (default 16384), as the database build grows with the
+ *              square of the map
+ *     state    building the root GameState (landmarks, bitboard, planner)
+ *              and the heap it keeps
+ *     astar    one unbounded AstarSearch between random free cells
+ *     children one getChildren call, and the children it returns
+ *     eval     one full getUtility
+ *     search   one alphaBetaSearch decision from the start (-Dminimax.benchPlys
+ *              plys, default 4, within the usual turn budget), its nodes per
+ *              second and the heap the search keeps
+ *
+ * Tables are built in a temporary directory of their own (minimax.distanceDir
+ * is pointed there) that goes away when the run ends, so the agent's cached
+ * tables are never rebuilt or deleted, even for a generated layout that
+ * matches a real map.
+ *
+ * Times are per operation, from a timed loop, so the first map's also pay
+ * for JIT compilation. Heap is the growth in use measured after a garbage
+ * collection, so it is only a rough figure. Maps are seeded from
+ * -Dminimax.benchSeed (default 1), so runs compare.
+ */
+public class ScalingBenchmark {
+
+	private static final String DEFAULT_SIZES = "25x19,64x64,128x128,256x256,512x512";
+	private static final String DEFAULT_PATTERNS = "random:0.15,walls:0.1,maze";
+	private static final String DEFAULT_TEAMS = "2v1,2v2";
+	private static final int DEFAULT_TABLE_CELLS = 16384;
+	//Each timed loop runs for at least this long
+	private static final long MIN_NANOS = 200000000L;
+	private static final int WALK_TURNS = 30;
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length > 0 ? args[0] : DEFAULT_SIZES).split(",");
+		String[] patterns = (args.length > 1 ? args[1] : DEFAULT_PATTERNS).split(",");
+		String[] teams = (args.length > 2 ? args[2] : DEFAULT_TEAMS).split(",");
+		int tableCells = Integer.getInteger("minimax.benchTableCells", DEFAULT_TABLE_CELLS);
+		long seed = Long.getLong("minimax.benchSeed", 1);
+		//Before anything opens a table, so every file goes there; registered first, so deleted after its files
+		File tableDirectory = Files.createTempDirectory("scaling-tables").toFile();
+		tableDirectory.deleteOnExit();
+		System.setProperty("minimax.distanceDir", tableDirectory.getPath());
+		MinimaxAlphaBeta agent = new MinimaxAlphaBeta(0,
+				new String[] { Integer.toString(Integer.getInteger("minimax.benchPlys", 4)) });
+		File directory = new File(System.getProperty("java.io.tmpdir"));
+		Map<Long, String> tables = new HashMap<Long, String>();
+
+		System.out.println(String.format("%-9s %-12s %-4s | %8s | %-4s %9s %8s | %8s %6s | %9s | %9s %5s | %9s | %9s %9s %9s %6s",
+				"map", "pattern", "team", "xml ms", "tbl", "build ms", "file KB", "state ms", "heap", "astar us",
+				"chld us", "n", "eval us", "search ms", "nodes", "nodes/s", "heap"));
+		for (String size : sizes) {
+			String[] extents = size.trim().split("x");
+			int xExtent = Integer.parseInt(extents[0]);
+			int yExtent = Integer.parseInt(extents[1]);
+			for (String patternSpec : patterns) {
+				String[] parts = patternSpec.trim().split(":");
+				String pattern = parts[0];
+				double density = parts.length > 1 ? Double.parseDouble(parts[1]) : 0.1;
+				for (String team : teams) {
+					String[] counts = team.trim().split("v");
+					int footmen = Integer.parseInt(counts[0]);
+					int archers = Integer.parseInt(counts[1]);
+					String line = String.format("%-9s %-12s %-4s", size.trim(), patternSpec.trim(), team.trim());
+					try {
+						System.out.println(line + " | " + run(agent, directory, xExtent, yExtent, pattern, density,
+								footmen, archers, seed, tableCells, tables));
+					} catch (IllegalArgumentException e) {
+						System.out.println(line + " | skipped: " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	//One map's measurements, as the rest of its line
+	private static String run(MinimaxAlphaBeta agent, File directory, int xExtent, int yExtent, String pattern,
+			double density, int footmen, int archers, long seed, int tableCells, Map<Long, String> tables)
+			throws Exception {
+		MapGenerator.Layout layout = MapGenerator.generate(xExtent, yExtent, pattern, density, footmen, archers,
+				seed);
+		long startTime = System.nanoTime();
+		File xml = File.createTempFile("scaling", ".xml", directory);
+		CompactMap map;
+		try {
+			MapGenerator.writeXml(layout, MapGenerator.templateMap(), xml);
+			map = CompactMap.fromXml(xml);
+		} finally {
+			xml.delete();
+		}
+		double xmlMillis = (System.nanoTime() - startTime) / 1e6;
+
+		String table = tables.get(map.getLayoutHash());
+		if (table == null) {
+			table = buildTable(map, tableCells);
+			tables.put(map.getLayoutHash(), table);
+		}
+
+		long heapBefore = usedHeap();
+		startTime = System.nanoTime();
+		GameState root = new GameState(map);
+		double stateMillis = (System.nanoTime() - startTime) / 1e6;
+		double stateHeap = Math.max(0, usedHeap() - heapBefore) / 1048576.0;
+
+		Random random = new Random(seed);
+		double astarMicros = timeAstar(map, random);
+
+		//States from a random playout, for the per state measurements
+		List<GameState> states = new ArrayList<GameState>();
+		List<Boolean> sides = new ArrayList<Boolean>();
+		GameState state = root;
+		boolean footmenTurn = true;
+		for (int turn = 0; turn < WALK_TURNS; turn++) {
+			List<GameStateChild> children = MoveGenerator.getChildren(state, footmenTurn);
+			if (children.isEmpty()) {
+				break;
+			}
+			states.add(state);
+			sides.add(footmenTurn);
+			state = children.get(random.nextInt(children.size())).state;
+			if (state.isTurnComplete()) {
+				footmenTurn = !footmenTurn;
+			}
+		}
+
+		long calls = 0;
+		long generated = 0;
+		startTime = System.nanoTime();
+		long elapsed;
+		do {
+			int i = (int) (calls % states.size());
+			generated += MoveGenerator.getChildren(states.get(i), sides.get(i)).size();
+			calls++;
+		} while ((elapsed = System.nanoTime() - startTime) < MIN_NANOS);
+		double childrenMicros = elapsed / 1e3 / calls;
+		double childCount = generated / (double) calls;
+
+		//Fresh copies each time, since a state keeps its utility once worked out
+		long evaluations = 0;
+		long evalNanos = 0;
+		while (evalNanos < MIN_NANOS) {
+			for (int i = 0; i < states.size() && evalNanos < MIN_NANOS; i++) {
+				GameState copy = new GameState(states.get(i));
+				startTime = System.nanoTime();
+				copy.getUtility();
+				evalNanos += System.nanoTime() - startTime;
+				evaluations++;
+			}
+		}
+		double evalMicros = evalNanos / 1e3 / evaluations;
+
+		heapBefore = usedHeap();
+		agent.startEpisode(new GameState(map));
+		startTime = System.nanoTime();
+		agent.decide(new GameStateChild(null, new GameState(map)), 0, startTime);
+		long searchNanos = System.nanoTime() - startTime;
+		double searchHeap = Math.max(0, usedHeap() - heapBefore) / 1048576.0;
+		long nodes = agent.getLastNodes();
+
+		return String.format("%8.1f | %s | %8.1f %5.1fM | %9.1f | %9.1f %5.1f | %9.1f | %9.1f %9d %9.0f %5.1fM%s",
+				xmlMillis, table, stateMillis, stateHeap, astarMicros,
+				childrenMicros, childCount, evalMicros, searchNanos / 1e6, nodes, nodes / (searchNanos / 1e9),
+				searchHeap, agent.wasCutShort() ? " (cut)" : "");
+	}
+
+	/**
+	 * Builds this map's table from scratch in the benchmark's directory and
+	 * returns its columns: kind, milliseconds and file size.
+	 */
+	private static String buildTable(CompactMap map, int tableCells) throws Exception {
+		int cells = map.getXExtent() * map.getYExtent();
+		if (cells > tableCells) {
+			return String.format("%-4s %9s %8s", "-", "-", "-");
+		}
+		long startTime = System.nanoTime();
+		File file;
+		String kind;
+		if (cells <= DistanceTable.MAX_CELLS) {
+			kind = "dist";
+			file = DistanceTable.tableFile(map.getLayoutHash());
+			DistanceTable.open(map);
+		}
+		else {
+			kind = "cpd";
+			file = PathDatabase.databaseFile(map.getLayoutHash());
+			PathDatabase.open(map);
+		}
+		//Only ever in the benchmark's own directory (see main), which goes when the run ends
+		file.deleteOnExit();
+		return String.format("%-4s %9.0f %8d", kind, (System.nanoTime() - startTime) / 1e6, file.length() / 1024);
+	}
+
+	//Microseconds per unbounded A* query between random free cells, with the landmarks GameState would use
+	private static double timeAstar(CompactMap map, Random random) {
+		int xExtent = map.getXExtent();
+		int yExtent = map.getYExtent();
+		boolean[] blocked = map.getBlocked();
+		AstarAgent search = new AstarAgent(0);
+		search.setLandmarks(Landmarks.forMap(xExtent, yExtent, blocked));
+		HashSet<AstarAgent.MapLocation> obstacles = new HashSet<AstarAgent.MapLocation>();
+		List<Integer> free = new ArrayList<Integer>();
+		for (int cell = 0; cell < blocked.length; cell++) {
+			if (blocked[cell]) {
+				obstacles.add(search.new MapLocation(cell % xExtent, cell / xExtent, null, 0));
+			}
+			else {
+				free.add(cell);
+			}
+		}
+		long queries = 0;
+		long startTime = System.nanoTime();
+		long elapsed;
+		do {
+			int from = free.get(random.nextInt(free.size()));
+			int to = free.get(random.nextInt(free.size()));
+			search.getHopDistance(search.new MapLocation(from % xExtent, from / xExtent, null, 0),
+					search.new MapLocation(to % xExtent, to / xExtent, null, 0), xExtent, yExtent, null, obstacles);
+			queries++;
+		} while ((elapsed = System.nanoTime() - startTime) < MIN_NANOS);
+		return elapsed / 1e3 / queries;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 2; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,180 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable search nodes for one MinimaxAlphaBeta search, kept per ply (the
+ * distance from the root). MoveGenerator takes the child states and
+ * GameStateChild wrappers of a node from its ply's pool and fills them in
+ * place, and the search releases the ply once it is done with that node, so
+ * the next node at the same ply gets the same objects again. A pool only
+ * grows when a node has more children than any earlier node at that ply, so
+ * after the first few turns the search stops allocating nodes. The same goes
+ * for MoveGenerator's scratch: each unit's option list, the options
+ * themselves and the arrays it works in.
+ *
+ * Everything handed out for a ply is only valid until that ply is released;
+ * nothing from it may be kept past the search (the root's children are never
+ * taken from the arena). Not thread safe: one arena per searching thread.
+ */
+class SearchArena {
+
+	private static class Ply {
+		GameState[] states = new GameState[0];
+		GameStateChild[] children = new GameStateChild[0];
+		int usedStates = 0;
+		int usedChildren = 0;
+		final List<GameStateChild> list = new ArrayList<GameStateChild>();
+		int[] scores = new int[0];
+		MoveGenerator.UnitMove[] moves = new MoveGenerator.UnitMove[0];
+		int usedMoves = 0;
+		final List<List<MoveGenerator.UnitMove>> options = new ArrayList<List<MoveGenerator.UnitMove>>();
+		final List<List<MoveGenerator.UnitMove>> optionLists = new ArrayList<List<MoveGenerator.UnitMove>>();
+		MoveGenerator.UnitMove[] chosen = new MoveGenerator.UnitMove[0];
+		boolean[] matched = new boolean[0];
+	}
+
+	private Ply[] plies = new Ply[0];
+
+	private Ply ply(int ply) {
+		if (ply >= plies.length) {
+			Ply[] grown = new Ply[Math.max(ply + 1, plies.length * 2)];
+			System.arraycopy(plies, 0, grown, 0, plies.length);
+			for (int i = plies.length; i < grown.length; i++) {
+				grown[i] = new Ply();
+			}
+			plies = grown;
+		}
+		return plies[ply];
+	}
+
+	/**
+	 * A copy of the given state, made in a pooled state of this ply.
+	 */
+	GameState copy(int ply, GameState source) {
+		Ply pool = ply(ply);
+		if (pool.usedStates == pool.states.length) {
+			GameState[] grown = new GameState[Math.max(8, pool.states.length * 2)];
+			System.arraycopy(pool.states, 0, grown, 0, pool.states.length);
+			pool.states = grown;
+		}
+		GameState state = pool.states[pool.usedStates];
+		if (state == null) {
+			state = new GameState(source);
+			pool.states[pool.usedStates] = state;
+		}
+		else {
+			state.copyFrom(source);
+		}
+		pool.usedStates++;
+		return state;
+	}
+
+	//Gives back the state copy() handed out last, when it turned out to duplicate a sibling
+	void discardLastCopy(int ply) {
+		ply(ply).usedStates--;
+	}
+
+	//A child for the state, with no SEPIA action (the search works with move codes, see MoveCode)
+	GameStateChild child(int ply, GameState state) {
+		Ply pool = ply(ply);
+		if (pool.usedChildren == pool.children.length) {
+			GameStateChild[] grown = new GameStateChild[Math.max(8, pool.children.length * 2)];
+			System.arraycopy(pool.children, 0, grown, 0, pool.children.length);
+			pool.children = grown;
+		}
+		GameStateChild child = pool.children[pool.usedChildren];
+		if (child == null) {
+			child = new GameStateChild(null, state);
+			pool.children[pool.usedChildren] = child;
+		}
+		else {
+			child.action = null;
+			child.state = state;
+		}
+		pool.usedChildren++;
+		return child;
+	}
+
+	//The (emptied) list a node at this ply returns its children in
+	List<GameStateChild> children(int ply) {
+		List<GameStateChild> list = ply(ply).list;
+		list.clear();
+		return list;
+	}
+
+	//Scratch ordering scores for this ply, at least size long
+	int[] scores(int ply, int size) {
+		Ply pool = ply(ply);
+		if (pool.scores.length < size) {
+			pool.scores = new int[Math.max(size, pool.scores.length * 2)];
+		}
+		return pool.scores;
+	}
+
+	//An option to fill in (see UnitMove.set)
+	MoveGenerator.UnitMove move(int ply) {
+		Ply pool = ply(ply);
+		if (pool.usedMoves == pool.moves.length) {
+			MoveGenerator.UnitMove[] grown = new MoveGenerator.UnitMove[Math.max(16, pool.moves.length * 2)];
+			System.arraycopy(pool.moves, 0, grown, 0, pool.moves.length);
+			pool.moves = grown;
+		}
+		MoveGenerator.UnitMove move = pool.moves[pool.usedMoves];
+		if (move == null) {
+			move = new MoveGenerator.UnitMove(0, null, -1, 0, 0, 0);
+			pool.moves[pool.usedMoves] = move;
+		}
+		pool.usedMoves++;
+		return move;
+	}
+
+	//The (emptied) list of per unit option lists for a node at this ply
+	List<List<MoveGenerator.UnitMove>> options(int ply) {
+		List<List<MoveGenerator.UnitMove>> options = ply(ply).options;
+		options.clear();
+		return options;
+	}
+
+	//The index-th (emptied) option list of this ply
+	List<MoveGenerator.UnitMove> optionList(int ply, int index) {
+		Ply pool = ply(ply);
+		while (pool.optionLists.size() <= index) {
+			pool.optionLists.add(new ArrayList<MoveGenerator.UnitMove>(MoveGenerator.CARDINALS.length));
+		}
+		List<MoveGenerator.UnitMove> list = pool.optionLists.get(index);
+		list.clear();
+		return list;
+	}
+
+	//Scratch for the option picked per unit while combining them, at least size long
+	MoveGenerator.UnitMove[] chosen(int ply, int size) {
+		Ply pool = ply(ply);
+		if (pool.chosen.length < size) {
+			pool.chosen = new MoveGenerator.UnitMove[size];
+		}
+		return pool.chosen;
+	}
+
+	//Scratch for GameState.sameSituation, at least size long
+	boolean[] matched(int ply, int size) {
+		Ply pool = ply(ply);
+		if (pool.matched.length < size) {
+			pool.matched = new boolean[size];
+		}
+		return pool.matched;
+	}
+
+	/**
+	 * Call when the search is done with the node whose children came from this
+	 * ply; everything handed out for it may be reused from then on.
+	 */
+	void release(int ply) {
+		Ply pool = ply(ply);
+		pool.usedStates = 0;
+		pool.usedChildren = 0;
+		pool.usedMoves = 0;
+		pool.list.clear();
+	}
+}
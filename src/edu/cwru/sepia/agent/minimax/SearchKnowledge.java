@@ -0,0 +1,203 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What MinimaxAlphaBeta learns while it plays that is still worth having in
+ * the next episode on the same map: a history heuristic table (which unit
+ * ended up on which cell in moves that caused cutoffs) and the results of the
+ * root searches from the opening turns.
+ *
+ * It is written with DataOutputStream as: int magic, int version, long
+ * layoutHash, int cell count, int history length, int non-zero entries, then
+ * (int index, int score) per non-zero entry, int opening count, then (long
+ * position key, int depth, long best child key) per opening.
+ */
+public class SearchKnowledge {
+
+	private static final int MAGIC = 0x4b4e4f57; // "KNOW"
+	private static final int VERSION = 2;
+
+	//Only root searches from the first turns of an episode are remembered; later positions rarely repeat
+	static final int OPENING_TURNS = 12;
+	//Upper bound on remembered openings, so the saved data can't grow without limit
+	private static final int MAX_OPENINGS = 4096;
+	//Longest history table read back (64 MB); anything longer comes from a corrupt file
+	private static final int MAX_HISTORY = 1 << 24;
+
+	//A root search result: the searched depth and the key of the state the chosen move leads to
+	private static class Opening {
+		final int depth;
+		final long bestChildKey;
+
+		Opening(int depth, long bestChildKey) {
+			this.depth = depth;
+			this.bestChildKey = bestChildKey;
+		}
+	}
+
+	//Map this knowledge was learned on; 0 until the first episode starts
+	private long layoutHash = 0;
+	private int cellCount = 0;
+	//Cutoff credit per (unit slot, cell the unit ended up on), indexed unit * cellCount + cell
+	private int[] history = new int[0];
+	private final Map<Long, Opening> openings = new HashMap<Long, Opening>();
+	//Openings are keyed canonically, so a swapped or mirrored opening position is recognised too
+	private final CanonicalKey canonicalKey = new CanonicalKey();
+
+	/**
+	 * Call at the start of every episode. Knowledge from another map is thrown
+	 * away, and the history scores are halved so recent cutoffs count for more.
+	 */
+	public void startEpisode(GameState state) {
+		int cells = state.getMapXExtent() * state.getMapYExtent();
+		int length = state.getUnitCount() * cells;
+		if (state.getLayoutHash() != layoutHash || history.length < length) {
+			layoutHash = state.getLayoutHash();
+			cellCount = cells;
+			history = new int[length];
+			openings.clear();
+			return;
+		}
+		for (int i = 0; i < history.length; i++) {
+			history[i] >>= 1;
+		}
+	}
+
+	/**
+	 * Summed history score of where the units of the side that just moved
+	 * ended up in this child state.
+	 */
+	public int historyScore(GameState child, boolean footmenMoved) {
+		int score = 0;
+		for (int unit = 0; unit < child.getUnitCount(); unit++) {
+			int index = historyIndex(child, unit, footmenMoved);
+			if (index >= 0) {
+				score += history[index];
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Credits the move that produced this child with a cutoff found with the
+	 * given remaining depth; deeper cutoffs count quadratically more.
+	 */
+	public void recordCutoff(GameState child, boolean footmenMoved, int depth) {
+		for (int unit = 0; unit < child.getUnitCount(); unit++) {
+			int index = historyIndex(child, unit, footmenMoved);
+			if (index >= 0) {
+				history[index] = (int) Math.min(Integer.MAX_VALUE / 2, (long) history[index] + depth * depth);
+			}
+		}
+	}
+
+	private int historyIndex(GameState child, int unit, boolean footmenMoved) {
+		if (child.isFootman(unit) != footmenMoved || child.getUnitHP(unit) <= 0 || child.isBlocked(
+				child.getUnitX(unit), child.getUnitY(unit))) {
+			return -1;
+		}
+		int index = unit * cellCount + child.getUnitY(unit) * child.getMapXExtent() + child.getUnitX(unit);
+		return index < history.length ? index : -1;
+	}
+
+	/**
+	 * The child a remembered root search of at least this depth chose from this
+	 * position, or null if there is none.
+	 */
+	public GameStateChild recallOpening(GameStateChild root, int depth) {
+		Opening opening = openings.get(canonicalKey.key(root.state, true));
+		if (opening == null || opening.depth < depth) {
+			return null;
+		}
+		for (GameStateChild child : root.state.getChildren(true)) {
+			if (canonicalKey.key(child.state, !child.state.isTurnComplete()) == opening.bestChildKey) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	public void rememberOpening(GameStateChild root, GameStateChild best, int depth) {
+		long key = canonicalKey.key(root.state, true);
+		Opening previous = openings.get(key);
+		if (best == root || (previous == null && openings.size() >= MAX_OPENINGS)
+				|| (previous != null && previous.depth > depth)) {
+			return;
+		}
+		openings.put(key, new Opening(depth, canonicalKey.key(best.state, !best.state.isTurnComplete())));
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(layoutHash);
+		out.writeInt(cellCount);
+		out.writeInt(history.length);
+		int used = 0;
+		for (int score : history) {
+			if (score != 0) {
+				used++;
+			}
+		}
+		out.writeInt(used);
+		for (int i = 0; i < history.length; i++) {
+			if (history[i] != 0) {
+				out.writeInt(i);
+				out.writeInt(history[i]);
+			}
+		}
+		out.writeInt(openings.size());
+		for (Map.Entry<Long, Opening> entry : openings.entrySet()) {
+			out.writeLong(entry.getKey());
+			out.writeInt(entry.getValue().depth);
+			out.writeLong(entry.getValue().bestChildKey);
+		}
+	}
+
+	public void read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("not saved search knowledge (version " + VERSION + ")");
+		}
+		long hash = in.readLong();
+		int cells = in.readInt();
+		int length = in.readInt();
+		//A whole number of units' worth of cells, or nothing before the first episode
+		if (cells < 0 || length < 0 || length > MAX_HISTORY || (cells == 0 ? length != 0 : length % cells != 0)) {
+			throw new IOException("history of " + length + " entries does not fit " + cells + " cells");
+		}
+		int[] scores = new int[length];
+		int used = in.readInt();
+		if (used < 0 || used > length) {
+			throw new IOException(used + " history entries used out of " + length);
+		}
+		for (int i = 0; i < used; i++) {
+			int index = in.readInt();
+			int score = in.readInt();
+			if (index < 0 || index >= scores.length) {
+				throw new IOException("history index " + index + " out of range");
+			}
+			scores[index] = score;
+		}
+		Map<Long, Opening> loaded = new HashMap<Long, Opening>();
+		int count = in.readInt();
+		if (count < 0 || count > MAX_OPENINGS) {
+			throw new IOException(count + " openings, at most " + MAX_OPENINGS + " are kept");
+		}
+		for (int i = 0; i < count; i++) {
+			long key = in.readLong();
+			int depth = in.readInt();
+			loaded.put(key, new Opening(depth, in.readLong()));
+		}
+		//Only replace what we have once the whole stream has been read successfully
+		layoutHash = hash;
+		cellCount = cells;
+		history = scores;
+		openings.clear();
+		openings.putAll(loaded);
+	}
+}
@@ -0,0 +1,187 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Diagnostic output for code that runs inside the search, where printing to
+ * System.out (a synchronized write per line) would cost more than the work
+ * being reported on.
+ *
+ * The level is read once from -Dminimax.trace (off, info, debug or trace;
+ * default off) into a constant, so call sites written as
+ *
+ *     if (Trace.on(Trace.DEBUG)) {
+ *         Trace.log(Trace.DEBUG, "...");
+ *     }
+ *
+ * cost nothing once the JIT has folded the check, message building included.
+ * When tracing is on, log() stamps the event and puts it in a bounded lock
+ * free ring buffer (a Vyukov style sequenced array, safe for any number of
+ * producing threads), and a daemon thread writes the events out as lines to
+ * -Dminimax.traceFile, or stderr if that is not set. A full buffer drops the
+ * event and counts it rather than block the search. An event the writer
+ * fails to write is counted too and its slot freed all the same. Both
+ * counts are written when the JVM exits.
+ */
+final class Trace {
+
+	static final int OFF = 0;
+	static final int INFO = 1;
+	static final int DEBUG = 2;
+	static final int TRACE = 3;
+
+	private static final String[] LEVEL_NAMES = { "OFF", "INFO", "DEBUG", "TRACE" };
+	private static final int LEVEL = parseLevel(System.getProperty("minimax.trace", "off"));
+
+	private static final int CAPACITY = 1 << 14;
+	private static final int MASK = CAPACITY - 1;
+	//Slot i holds the event numbered sequence - 1 when it is ready to read, and is free for event n when it equals n
+	private static final AtomicLongArray sequences;
+	private static final long[] times = new long[CAPACITY];
+	private static final int[] levels = new int[CAPACITY];
+	private static final String[] threads = new String[CAPACITY];
+	private static final String[] messages = new String[CAPACITY];
+	private static final AtomicLong tail = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	//Only touched by the writer thread and the shutdown hook, both holding the writer's lock
+	private static long failed = 0;
+	private static final long startNanos = System.nanoTime();
+
+	static {
+		if (LEVEL > OFF) {
+			sequences = new AtomicLongArray(CAPACITY);
+			for (int i = 0; i < CAPACITY; i++) {
+				sequences.set(i, i);
+			}
+			startWriter();
+		}
+		else {
+			sequences = null;
+		}
+	}
+
+	private Trace() {
+	}
+
+	//True if events of this level are written; check it before building a message
+	static boolean on(int level) {
+		return level <= LEVEL;
+	}
+
+	/**
+	 * Queues an event, unless its level is off or the buffer is full. Never
+	 * blocks.
+	 */
+	static void log(int level, String message) {
+		if (level > LEVEL) {
+			return;
+		}
+		long position;
+		int slot;
+		while (true) {
+			position = tail.get();
+			slot = (int) position & MASK;
+			long sequence = sequences.get(slot);
+			if (sequence < position) {
+				//The writer hasn't caught up with this slot yet
+				dropped.incrementAndGet();
+				return;
+			}
+			if (sequence == position && tail.compareAndSet(position, position + 1)) {
+				break;
+			}
+		}
+		times[slot] = System.nanoTime() - startNanos;
+		levels[slot] = level;
+		threads[slot] = Thread.currentThread().getName();
+		messages[slot] = message;
+		sequences.lazySet(slot, position + 1);
+	}
+
+	private static int parseLevel(String name) {
+		for (int level = 0; level < LEVEL_NAMES.length; level++) {
+			if (LEVEL_NAMES[level].equalsIgnoreCase(name.trim())) {
+				return level;
+			}
+		}
+		System.err.println("Unknown minimax.trace level " + name + ", tracing is off");
+		return OFF;
+	}
+
+	private static void startWriter() {
+		Writer out;
+		String file = System.getProperty("minimax.traceFile");
+		try {
+			out = file == null ? new OutputStreamWriter(System.err) : new FileWriter(file);
+		} catch (IOException e) {
+			System.err.println("Cannot write the trace to " + file + ": " + e.getMessage());
+			out = new OutputStreamWriter(System.err);
+		}
+		final BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+		Thread thread = new Thread("minimax-trace") {
+			public void run() {
+				long head = 0;
+				while (true) {
+					head = drain(writer, head);
+					LockSupport.parkNanos(1000000L);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("minimax-trace-flush") {
+			public void run() {
+				//The writer thread may be anywhere; events it already wrote can't show up again, so just flush
+				synchronized (writer) {
+					try {
+						if (dropped.get() > 0) {
+							writer.write("trace: " + dropped.get() + " events dropped, buffer full\n");
+						}
+						if (failed > 0) {
+							writer.write("trace: " + failed + " events lost to write errors\n");
+						}
+						writer.flush();
+					} catch (IOException e) {
+						//Nowhere left to report it
+					}
+				}
+			}
+		});
+	}
+
+	//Writes every ready event from head on, flushes, and returns the next event number to read
+	private static long drain(BufferedWriter writer, long head) {
+		synchronized (writer) {
+			while (true) {
+				int slot = (int) head & MASK;
+				if (sequences.get(slot) != head + 1) {
+					break;
+				}
+				try {
+					writer.write(String.format("%10.3f ms %-5s [%s] %s%n", times[slot] / 1e6, LEVEL_NAMES[levels[slot]],
+							threads[slot], messages[slot]));
+				} catch (IOException e) {
+					//Tracing is best effort; count the event and keep freeing slots so the search never notices
+					failed++;
+				}
+				messages[slot] = null;
+				threads[slot] = null;
+				sequences.lazySet(slot, head + CAPACITY);
+				head++;
+			}
+			try {
+				writer.flush();
+			} catch (IOException e) {
+				//Whatever was buffered is lost; the slots are free already
+			}
+		}
+		return head;
+	}
+}
@@ -0,0 +1,125 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Minimax values of positions already searched, keyed by CanonicalKey, so a
+ * position reached again (by another move order, with identical units
+ * swapped, or as a mirror image) is not searched again.
+ *
+ * A fixed size table, one entry per slot: a new result replaces the slot's
+ * entry unless that is for another position searched deeper. Values come
+ * from alpha-beta, so each entry says whether it is exact or only a lower or
+ * upper bound.
+ *
+ * The table is shared by all the threads of a Lazy SMP search and takes no
+ * locks. Entries are 16 bytes in direct (off-heap) buffers, so a table of
+ * gigabytes costs the garbage collector nothing: the value's bits, and the
+ * key (low bits replaced by depth and bound) XORed with those same bits. Two
+ * threads writing one slot at once can leave it with one's key word and the
+ * other's value word; such a torn entry no longer XORs back to a key a reader
+ * is looking for, so it reads as a miss instead of a wrong value.
+ */
+class TranspositionTable {
+
+	static final int EXACT = 0;
+	static final int LOWER = 1;
+	static final int UPPER = 2;
+
+	//What a successful probe found
+	static final class Entry {
+		int depth;
+		int bound;
+		double value;
+	}
+
+	private static final int ENTRY_BYTES = 16;
+	//The low key bits that hold depth << 2 | bound instead; the slot number already covers most of them
+	private static final long META_MASK = 0xFFFF;
+	private static final int MAX_DEPTH = (int) (META_MASK >> 2);
+	//A ByteBuffer is indexed by int, so big tables are split into buffers of 2^CHUNK_BITS entries (1 GB)
+	private static final int CHUNK_BITS = 26;
+	static final int MAX_BITS = 30;
+
+	private final ByteBuffer[] chunks;
+	private final int chunkBits;
+	private final int chunkMask;
+	private final int mask;
+
+	/**
+	 * @param bits The table has 2^bits slots (16 bytes each)
+	 */
+	TranspositionTable(int bits) {
+		if (bits < 1 || bits > MAX_BITS) {
+			throw new IllegalArgumentException("Transposition table bits must be 1 to " + MAX_BITS + ": " + bits);
+		}
+		chunkBits = Math.min(bits, CHUNK_BITS);
+		chunkMask = (1 << chunkBits) - 1;
+		mask = (int) ((1L << bits) - 1);
+		chunks = new ByteBuffer[1 << (bits - chunkBits)];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = ByteBuffer.allocateDirect((1 << chunkBits) * ENTRY_BYTES).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * The number of bits for the largest table that fits in the given number
+	 * of megabytes.
+	 */
+	static int bitsFor(long megabytes) {
+		long entries = Math.max(2, megabytes * 1024 * 1024 / ENTRY_BYTES);
+		return Math.min(MAX_BITS, 63 - Long.numberOfLeadingZeros(entries));
+	}
+
+	/**
+	 * Copies this position's entry into entry and returns true, or returns
+	 * false if it is not in the table.
+	 */
+	boolean probe(long key, Entry entry) {
+		int slot = slot(key);
+		ByteBuffer chunk = chunks[slot >>> chunkBits];
+		int offset = (slot & chunkMask) * ENTRY_BYTES;
+		long check = chunk.getLong(offset);
+		long valueBits = chunk.getLong(offset + 8);
+		long stored = check ^ valueBits;
+		if ((stored & ~META_MASK) != (key & ~META_MASK) || check == 0) {
+			return false;
+		}
+		int meta = (int) (stored & META_MASK);
+		entry.depth = meta >> 2;
+		entry.bound = meta & 3;
+		entry.value = Double.longBitsToDouble(valueBits);
+		return true;
+	}
+
+	void store(long key, int depth, double value, int bound) {
+		int slot = slot(key);
+		ByteBuffer chunk = chunks[slot >>> chunkBits];
+		int offset = (slot & chunkMask) * ENTRY_BYTES;
+		long check = chunk.getLong(offset);
+		if (check != 0) {
+			long stored = check ^ chunk.getLong(offset + 8);
+			if ((stored & ~META_MASK) != (key & ~META_MASK) && (stored & META_MASK) >> 2 > depth) {
+				return;
+			}
+		}
+		long valueBits = Double.doubleToRawLongBits(value);
+		long meta = Math.min(depth, MAX_DEPTH) << 2 | bound;
+		chunk.putLong(offset + 8, valueBits);
+		chunk.putLong(offset, ((key & ~META_MASK) | meta) ^ valueBits);
+	}
+
+	//Not safe while a search is running
+	void clear() {
+		for (ByteBuffer chunk : chunks) {
+			for (int offset = 0; offset < chunk.capacity(); offset += 8) {
+				chunk.putLong(offset, 0);
+			}
+		}
+	}
+
+	private int slot(long key) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+}